@@ -0,0 +1,427 @@
+package com.kisstools.server.benchmark;
+
+import com.kisstools.server.http.HttpRequest;
+import com.kisstools.server.http.HttpResponse;
+import com.kisstools.server.http.HttpServer;
+import com.kisstools.server.http.HttpStatus;
+import com.kisstools.server.http.RequestHandler;
+import com.kisstools.server.metrics.HistogramSnapshot;
+import com.kisstools.server.metrics.LatencyHistogram;
+import com.kisstools.server.metrics.StripedCounter;
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.nio.ServerEngine;
+import com.kisstools.server.packet.Packet;
+import com.kisstools.server.packet.PacketCodec;
+import com.kisstools.server.socket.SocketServer;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * closed loop load against {@link HttpServer} or {@link SocketServer}: every
+ * connection sends a request, waits for the response and sends the next one.
+ * <p>
+ * usage: LoadGenerator http|socket [-host h] [-port p] [-connections n]
+ * [-duration s] [-warmup s] [-keepalive true|false] [-path p] [-size bytes]
+ * [-embedded] [-engine BLOCKING|NIO] [-binary]
+ * <p>
+ * -embedded starts the target in this jvm with a handler answering size
+ * bytes at /bench, otherwise a running server is loaded. -binary switches
+ * socket connections to {@link PacketCodec} frames.
+ */
+public class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static final int READ_TIMEOUT = 30000;
+
+    private static final String BENCH_PATH = "/bench";
+
+    private String target = "http";
+
+    private String host = "127.0.0.1";
+
+    private int port = -1;
+
+    private int connections = 16;
+
+    private int duration = 10;
+
+    private int warmup = 3;
+
+    private boolean keepAlive = true;
+
+    private String path = BENCH_PATH;
+
+    private int size = 1024;
+
+    private boolean embedded;
+
+    private boolean binary;
+
+    private ServerEngine engine = ServerEngine.BLOCKING;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final StripedCounter completed = new StripedCounter();
+
+    private final StripedCounter errors = new StripedCounter();
+
+    private volatile boolean measuring;
+
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int index = 0; index < args.length; ++index) {
+            String arg = args[index];
+            if ("http".equals(arg) || "socket".equals(arg)) {
+                target = arg;
+            } else if ("-embedded".equals(arg)) {
+                embedded = true;
+            } else if ("-binary".equals(arg)) {
+                binary = true;
+            } else if (index + 1 < args.length) {
+                String value = args[++index];
+                if ("-host".equals(arg)) {
+                    host = value;
+                } else if ("-port".equals(arg)) {
+                    port = Integer.parseInt(value);
+                } else if ("-connections".equals(arg)) {
+                    connections = Integer.parseInt(value);
+                } else if ("-duration".equals(arg)) {
+                    duration = Integer.parseInt(value);
+                } else if ("-warmup".equals(arg)) {
+                    warmup = Integer.parseInt(value);
+                } else if ("-keepalive".equals(arg)) {
+                    keepAlive = Boolean.parseBoolean(value);
+                } else if ("-path".equals(arg)) {
+                    path = value;
+                } else if ("-size".equals(arg)) {
+                    size = Integer.parseInt(value);
+                } else if ("-engine".equals(arg)) {
+                    engine = ServerEngine.valueOf(value.toUpperCase(Locale.US));
+                } else {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } else {
+                throw new IllegalArgumentException("missing value of " + arg);
+            }
+        }
+        if (port < 0) {
+            port = "http".equals(target) ? 7777 : SocketServer.PORT;
+        }
+    }
+
+    private void run() throws Exception {
+        HttpServer httpServer = null;
+        SocketServer socketServer = null;
+        if (embedded && "http".equals(target)) {
+            httpServer = startHttpServer();
+        } else if (embedded) {
+            socketServer = new SocketServer(engine);
+            socketServer.setPort(port);
+            socketServer.start();
+        }
+
+        Thread[] workers = new Thread[connections];
+        for (int index = 0; index < connections; ++index) {
+            workers[index] = new Thread(new Worker(), "load-" + index);
+            workers[index].setDaemon(true);
+            workers[index].start();
+        }
+        Thread.sleep(warmup * 1000L);
+        long startCount = completed.sum();
+        long startErrors = errors.sum();
+        long start = System.nanoTime();
+        measuring = true;
+        Thread.sleep(duration * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        long count = completed.sum() - startCount;
+        long failed = errors.sum() - startErrors;
+        running = false;
+        for (Thread worker : workers) {
+            worker.join(1000);
+        }
+
+        report(count, failed, elapsed);
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+        if (socketServer != null) {
+            socketServer.stop();
+        }
+    }
+
+    private HttpServer startHttpServer() {
+        char[] body = new char[size];
+        Arrays.fill(body, 'x');
+        final String content = new String(body);
+        HttpServer server = new HttpServer(port, engine);
+        server.setMaxConnections(Math.max(connections * 2, 256));
+        server.addHandler("GET", BENCH_PATH, new RequestHandler() {
+            @Override
+            public boolean handleRequest(HttpRequest request, HttpResponse response) {
+                response.status = HttpStatus.OK;
+                response.header.put("Content-Type", "text/plain");
+                response.setBody(content);
+                return true;
+            }
+        });
+        if (!server.start()) {
+            throw new IllegalStateException("can not start http server at " + port);
+        }
+        return server;
+    }
+
+    private void report(long count, long failed, long elapsedNanos) {
+        HistogramSnapshot snapshot = latency.snapshot();
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(Locale.US,
+                "%s %s:%d%s connections=%d keepalive=%b engine=%s duration=%ds",
+                target + (binary ? " binary" : ""), host, port,
+                "http".equals(target) ? path : "", connections,
+                keepAlive, embedded ? engine : "external", duration));
+        System.out.println(String.format(Locale.US,
+                "requests %d, errors %d, %.1f req/s", count, failed, count / seconds));
+        System.out.println(String.format(Locale.US,
+                "latency p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms, mean %.3f ms",
+                snapshot.getValueAtPercentile(50) / 1000.0,
+                snapshot.getValueAtPercentile(99) / 1000.0,
+                snapshot.getValueAtPercentile(99.9) / 1000.0,
+                snapshot.getMax() / 1000.0,
+                snapshot.getMean() / 1000.0));
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        return socket;
+    }
+
+    class Worker implements Runnable {
+
+        private Socket socket;
+
+        private InputStream in;
+
+        private OutputStream out;
+
+        @Override
+        public void run() {
+            byte[] request = createRequest();
+            while (running) {
+                long start = System.nanoTime();
+                boolean ok;
+                try {
+                    if (socket == null) {
+                        socket = connect();
+                        in = new BufferedInputStream(socket.getInputStream());
+                        out = socket.getOutputStream();
+                        if (binary) {
+                            handshake();
+                        }
+                    }
+                    out.write(request);
+                    out.flush();
+                    if ("http".equals(target)) {
+                        ok = readHttpResponse();
+                    } else {
+                        ok = binary ? readFrame() : readPacket();
+                    }
+                } catch (IOException e) {
+                    ok = false;
+                    close();
+                }
+                if (measuring) {
+                    latency.recordSince(start);
+                }
+                (ok ? completed : errors).increment();
+                if (!keepAlive && "http".equals(target)) {
+                    close();
+                }
+            }
+            close();
+        }
+
+        private byte[] createRequest() {
+            if (binary) {
+                byte[] data = new byte[size];
+                Arrays.fill(data, (byte) 'x');
+                Packet packet = new Packet();
+                packet.setPayload(data);
+                try {
+                    ByteBuffer frame = PacketCodec.encode(packet, new BufferPool(0, 0));
+                    return Arrays.copyOf(frame.array(), frame.limit());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            if ("http".equals(target)) {
+                sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+                sb.append("Host: ").append(host).append(':').append(port).append("\r\n");
+                if (!keepAlive) {
+                    sb.append("Connection: close\r\n");
+                }
+                sb.append("\r\n");
+            } else {
+                // packets without a command are echoed back
+                char[] data = new char[size];
+                Arrays.fill(data, 'x');
+                sb.append("{\"data\":\"").append(data).append("\"}\n");
+            }
+            return sb.toString().getBytes();
+        }
+
+        /**
+         * @return false for a non 2xx status.
+         */
+        private boolean readHttpResponse() throws IOException {
+            String status = readLine();
+            long length = -1;
+            boolean chunked = false;
+            boolean close = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    length = Long.parseLong(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase(Locale.US).contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    close = "close".equalsIgnoreCase(value);
+                }
+            }
+            if (chunked) {
+                long chunk;
+                while ((chunk = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+                    skip(chunk + 2);
+                }
+                while (!readLine().isEmpty()) {
+                    // trailers
+                }
+            } else if (length >= 0) {
+                skip(length);
+            } else {
+                skipToEnd();
+                close = true;
+            }
+            if (close) {
+                close();
+            }
+            return status.length() > 9 && status.charAt(9) == '2';
+        }
+
+        private void handshake() throws IOException {
+            out.write(PacketCodec.MAGIC);
+            byte[] magic = new byte[PacketCodec.MAGIC.length];
+            new DataInputStream(in).readFully(magic);
+            if (!PacketCodec.isMagic(magic)) {
+                throw new IOException("binary framing refused");
+            }
+        }
+
+        private boolean readFrame() throws IOException {
+            int length = new DataInputStream(in).readInt();
+            skip(PacketCodec.checkLength(length));
+            return true;
+        }
+
+        /**
+         * responses are single json objects without a separator, read up to
+         * the brace closing the first one.
+         */
+        private boolean readPacket() throws IOException {
+            int depth = 0;
+            boolean started = false;
+            boolean quoted = false;
+            boolean escaped = false;
+            while (!started || depth > 0) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                if (escaped) {
+                    escaped = false;
+                } else if (quoted) {
+                    escaped = b == '\\';
+                    quoted = b != '"';
+                } else if (b == '"') {
+                    quoted = true;
+                } else if (b == '{') {
+                    started = true;
+                    depth++;
+                } else if (b == '}') {
+                    depth--;
+                }
+            }
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                if (b != '\r') {
+                    sb.append((char) b);
+                }
+            }
+            return sb.toString();
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private void skipToEnd() throws IOException {
+            while (in.read() >= 0) {
+                in.skip(Long.MAX_VALUE);
+            }
+        }
+
+        private void close() {
+            IOUtil.close(socket);
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.kisstools.server.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * directory listings of {@link FileHandler}, rendered every time and served
+ * from the listing cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FolderListingBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private File folder;
+
+    private FileHandler rendering;
+
+    private FileHandler caching;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = File.createTempFile("listing", "");
+        if (!folder.delete() || !folder.mkdir()) {
+            throw new IOException("can not create " + folder);
+        }
+        for (int index = 0; index < entries; ++index) {
+            String name = index % 10 == 0 ? "folder " + index : "file-" + index + ".txt";
+            File file = new File(folder, name);
+            boolean created = index % 10 == 0 ? file.mkdir() : file.createNewFile();
+            if (!created) {
+                throw new IOException("can not create " + file);
+            }
+        }
+        // the cache only keeps listings of folders that settled
+        folder.setLastModified(System.currentTimeMillis() - 60 * 1000);
+
+        rendering = new FileHandler();
+        rendering.setListingCacheSize(0);
+        caching = new FileHandler();
+        caching.setListingCacheSize(64 * 1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] children = folder.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Benchmark
+    public long render() throws IOException {
+        return list(rendering);
+    }
+
+    @Benchmark
+    public long cached() throws IOException {
+        return list(caching);
+    }
+
+    private long list(FileHandler handler) throws IOException {
+        HttpRequest request = new HttpRequest();
+        request.method = "GET";
+        request.path = "/file";
+        request.query.put("path", folder.getPath());
+        HttpResponse response = new HttpResponse();
+        handler.handleRequest(request, response);
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        if (response.writer != null) {
+            response.writer.writeBody(out);
+        } else {
+            copy(response.body, out);
+        }
+        return out.getCount();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
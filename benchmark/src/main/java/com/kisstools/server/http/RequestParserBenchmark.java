@@ -0,0 +1,94 @@
+package com.kisstools.server.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * parsing of request heads by {@link HttpRequestParser}, one parser is reused
+ * across requests like on a keep-alive connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+    private static final String MINIMAL = "GET /file HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:7777\r\n"
+            + "\r\n";
+
+    private static final String BROWSER = "GET /file?path=%2Fsdcard%2FDownload HTTP/1.1\r\n"
+            + "Host: 192.168.1.20:7777\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,"
+            + "image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Referer: http://192.168.1.20:7777/file?path=%2Fsdcard\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "If-Modified-Since: Tue, 10 Oct 2023 08:00:00 GMT\r\n"
+            + "\r\n";
+
+    @Param({"minimal", "browser"})
+    public String request;
+
+    /**
+     * bytes delivered per read, 0 feeds the whole head at once.
+     */
+    @Param({"0", "64"})
+    public int slice;
+
+    private byte[] bytes;
+
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setup() throws Exception {
+        String text = "browser".equals(request) ? BROWSER : MINIMAL;
+        bytes = text.getBytes("ISO-8859-1");
+        parser = new HttpRequestParser();
+    }
+
+    @Benchmark
+    public HttpRequest parse() throws HttpParseException {
+        if (slice <= 0) {
+            return parser.parse(ByteBuffer.wrap(bytes));
+        }
+        HttpRequest parsed = null;
+        for (int offset = 0; offset < bytes.length && parsed == null; offset += slice) {
+            int length = Math.min(slice, bytes.length - offset);
+            parsed = parser.parse(ByteBuffer.wrap(bytes, offset, length));
+        }
+        return parsed;
+    }
+
+    /**
+     * parse and read what a handler typically looks at, header and query
+     * maps are decoded lazily.
+     */
+    @Benchmark
+    public void parseAndRead(Blackhole blackhole) throws HttpParseException {
+        HttpRequest parsed = parser.parse(ByteBuffer.wrap(bytes));
+        blackhole.consume(parsed.header.get("host"));
+        blackhole.consume(parsed.header.get("accept-encoding"));
+        blackhole.consume(parsed.query.get("path"));
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.kisstools.server.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * serialization of response heads by {@link HttpServer#writeHead}, lives in
+ * the http package to reach it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseHeadBenchmark {
+
+    /**
+     * small is a generated page, file is a static file with validators.
+     */
+    @Param({"small", "file"})
+    public String response;
+
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    private HttpServer server;
+
+    private HttpResponse head;
+
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() {
+        server = new HttpServer(0);
+        head = new HttpResponse();
+        head.status = HttpStatus.OK;
+        head.header.put("Content-Type", "text/html");
+        head.header.put("Content-Length", "1024");
+        if ("file".equals(response)) {
+            head.header.put("Last-Modified", HttpDate.format(1700000000000L));
+            head.header.put("ETag", "\"5f3e-18bcfe56800\"");
+            head.header.put("Cache-Control", "max-age=3600");
+            head.header.put("Accept-Ranges", "bytes");
+            head.header.put("Content-Encoding", "gzip");
+            head.header.put("Vary", "Accept-Encoding");
+        }
+        out = new ByteArrayOutputStream(1024);
+    }
+
+    @Benchmark
+    public int writeHead() throws IOException {
+        out.reset();
+        return server.writeHead(head, out, keepAlive, false);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.kisstools.server.packet;
+
+import com.alibaba.fastjson.JSONObject;
+import com.kisstools.server.nio.BufferPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * json encoding of socket packets by {@link Packet#pack} and {@link Packet#unpack},
+ * and binary frames of {@link PacketCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+    /**
+     * length of the data field.
+     */
+    @Param({"16", "1024"})
+    public int size;
+
+    private Packet packet;
+
+    private String text;
+
+    private BufferPool pool;
+
+    private byte[] frame;
+
+    @Setup
+    public void setup() {
+        char[] data = new char[size];
+        Arrays.fill(data, 'x');
+        JSONObject params = new JSONObject();
+        params.put("id", 42);
+        params.put("path", "/sdcard/Download");
+        packet = new Packet();
+        packet.setCommand(Packet.CMD_SYS_INFO);
+        packet.setData(new String(data));
+        packet.setParams(params);
+        text = Packet.pack(packet);
+        pool = new BufferPool(16 * 1024, 4);
+        try {
+            ByteBuffer encoded = PacketCodec.encode(packet, pool);
+            frame = Arrays.copyOfRange(encoded.array(), PacketCodec.HEADER_SIZE, encoded.limit());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public String pack() {
+        return Packet.pack(packet);
+    }
+
+    @Benchmark
+    public Packet unpack() {
+        return Packet.unpack(text);
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        return Packet.pack(Packet.unpack(text));
+    }
+
+    @Benchmark
+    public int encodeFrame() throws IOException {
+        ByteBuffer encoded = PacketCodec.encode(packet, pool);
+        pool.release(encoded.array());
+        return encoded.remaining();
+    }
+
+    @Benchmark
+    public Packet decodeFrame() throws IOException {
+        return PacketCodec.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Benchmark
+    public int frameRoundTrip() throws IOException {
+        ByteBuffer encoded = PacketCodec.encode(PacketCodec.decode(ByteBuffer.wrap(frame)), pool);
+        pool.release(encoded.array());
+        return encoded.remaining();
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.kisstools.server;
+
+import com.kisstools.server.http.FileHandler;
+import com.kisstools.server.http.HttpServer;
+import com.kisstools.server.http.MetricsHandler;
+import com.kisstools.server.log.AccessLog;
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.metrics.MetricsRegistry;
+import com.kisstools.server.nio.ServerEngine;
+import com.kisstools.server.nio.ThreadMode;
+import com.kisstools.server.socket.Broadcaster;
+import com.kisstools.server.socket.PacketWebSocketHandler;
+import com.kisstools.server.socket.SocketServer;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * runs the http and socket servers on a plain jvm.
+ * <p>
+ * usage: java -jar server.jar [config.properties], see server.properties for
+ * the keys. a system property of the same name overrides the file.
+ */
+public class ServerMain {
+
+    public static final String TAG = "ServerMain";
+
+    private static final String DEFAULT_CONFIG = "server.properties";
+
+    private final Properties config;
+
+    private HttpServer httpServer;
+
+    private SocketServer socketServer;
+
+    private AccessLog accessLog;
+
+    public ServerMain(Properties config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long start = System.nanoTime();
+        Properties config = loadConfig(args.length > 0 ? args[0] : null);
+        final ServerMain main = new ServerMain(config);
+        if (!main.start()) {
+            main.stop();
+            System.exit(1);
+        }
+        ServerLog.d(TAG, "started in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread("ServerMain-shutdown") {
+            @Override
+            public void run() {
+                main.stop();
+                stopped.countDown();
+            }
+        });
+        // server threads are daemons, hold the jvm until it is asked to exit
+        stopped.await();
+    }
+
+    /**
+     * @param path the config file, null reads server.properties of the working
+     *             directory if it exists.
+     */
+    public static Properties loadConfig(String path) throws IOException {
+        Properties config = new Properties();
+        File file = new File(path == null ? DEFAULT_CONFIG : path);
+        if (path != null || file.isFile()) {
+            InputStream is = new FileInputStream(file);
+            try {
+                config.load(is);
+            } finally {
+                IOUtil.close(is);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("http.") || name.startsWith("socket.")
+                    || name.startsWith("accesslog.") || name.startsWith("log.")) {
+                config.setProperty(name, System.getProperty(name));
+            }
+        }
+        return config;
+    }
+
+    public boolean start() {
+        DebugLog.setEnabled(getBoolean("log.debug", false));
+
+        ServerEngine httpEngine = getEngine("http.engine", ServerEngine.BLOCKING);
+        httpServer = new HttpServer(getInt("http.port", 7777), httpEngine);
+        ThreadMode httpThreads = getThreadMode("http.threadMode", ThreadMode.PLATFORM);
+        httpServer.setThreadMode(httpThreads);
+        httpServer.setWorkerThreads(getInt("http.workerThreads", 64));
+        httpServer.setWorkerQueueSize(getInt("http.workerQueueSize", 128));
+        httpServer.setMaxConnections(getInt("http.maxConnections", 256));
+        httpServer.setHeaderTimeout(getInt("http.headerTimeout", 10000));
+        httpServer.setKeepAliveTimeout(getInt("http.keepAliveTimeout", 15000));
+        httpServer.setBodyTimeout(getInt("http.bodyTimeout", 30000));
+        httpServer.setMinDataRate(getInt("http.minDataRate", 240));
+        httpServer.setMaxKeepAliveRequests(getInt("http.maxKeepAliveRequests", 100));
+        httpServer.setHttp2Enabled(getBoolean("http.h2c", true));
+        String eventLoops = config.getProperty("http.eventLoops");
+        if (eventLoops != null) {
+            httpServer.setEventLoopCount(Integer.parseInt(eventLoops.trim()));
+        }
+
+        FileHandler fileHandler = httpServer.getFileHandler();
+        fileHandler.setUploadEnabled(getBoolean("http.upload", false));
+        fileHandler.setFileCacheSize(getInt("http.fileCacheSize", 0));
+        fileHandler.setFileCacheMaxFileSize(getInt("http.fileCacheMaxFileSize", 64 * 1024));
+        String dataPath = config.getProperty("http.dataPath");
+        if (dataPath != null) {
+            fileHandler.setDataPath(dataPath.trim());
+        }
+
+        String logFile = config.getProperty("accesslog.file");
+        if (logFile != null && !logFile.trim().isEmpty()) {
+            accessLog = new AccessLog(new File(logFile.trim()));
+            accessLog.setSampleRate(getInt("accesslog.sampleRate", 1));
+            accessLog.setMaxFileSize(getInt("accesslog.maxFileSize", 8 * 1024 * 1024));
+            accessLog.setMaxFiles(getInt("accesslog.maxFiles", 3));
+            httpServer.setAccessLog(accessLog);
+        }
+
+        List<MetricsRegistry> registries = new ArrayList<MetricsRegistry>();
+        registries.add(httpServer.getMetrics());
+        if (getBoolean("socket.enabled", true)) {
+            socketServer = new SocketServer(getEngine("socket.engine", httpEngine));
+            socketServer.setPort(getInt("socket.port", SocketServer.PORT));
+            socketServer.setThreadMode(getThreadMode("socket.threadMode", httpThreads));
+            socketServer.setWorkerThreads(getInt("socket.workerThreads", 10));
+            socketServer.setMaxConnections(getInt("socket.maxConnections", 256));
+            socketServer.setIdleTimeout(getInt("socket.idleTimeout", 0));
+            socketServer.setWriteTimeout(getInt("socket.writeTimeout", 30000));
+            socketServer.setMaxInFlight(getInt("socket.maxInFlight", 64));
+            Broadcaster broadcaster = socketServer.getBroadcaster();
+            broadcaster.setMaxQueuedEvents(getInt("socket.maxQueuedEvents", 1024));
+            String policy = config.getProperty("socket.overflowPolicy");
+            if (policy != null && !policy.trim().isEmpty()) {
+                broadcaster.setOverflowPolicy(
+                        Broadcaster.OverflowPolicy.valueOf(policy.trim().toUpperCase()));
+            }
+            registries.add(socketServer.getMetrics());
+            String webSocketPath = config.getProperty("http.websocket", "/ws").trim();
+            if (!webSocketPath.isEmpty()) {
+                httpServer.addWebSocketHandler(webSocketPath, new PacketWebSocketHandler(socketServer));
+            }
+        }
+        String metricsPath = config.getProperty("http.metrics", "/metrics").trim();
+        if (!metricsPath.isEmpty()) {
+            httpServer.addHandler("GET", metricsPath, new MetricsHandler(
+                    registries.toArray(new MetricsRegistry[registries.size()])));
+        }
+
+        if (!httpServer.start()) {
+            return false;
+        }
+        if (socketServer != null) {
+            socketServer.start();
+        }
+        return true;
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+        if (socketServer != null) {
+            socketServer.stop();
+        }
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private ServerEngine getEngine(String key, ServerEngine defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return ServerEngine.valueOf(value.trim().toUpperCase());
+    }
+
+    private ThreadMode getThreadMode(String key, ThreadMode defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return ThreadMode.valueOf(value.trim().toUpperCase());
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.kisstools.server.http;
+
+/**
+ * a handler that may finish its response later, on any thread. the worker
+ * thread is released as soon as handleRequest returns.
+ */
+public interface AsyncRequestHandler {
+
+    /**
+     * fill the response and report it through the callback, now or later.
+     */
+    void handleRequest(HttpRequest request, HttpResponse response, ResponseCallback callback);
+
+}
@@ -0,0 +1,266 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * incremental decoder of a request body framing, consumes exactly the body
+ * bytes from the connection buffer so pipelined requests stay in it.
+ */
+abstract class BodyDecoder {
+
+    /**
+     * @return null if the request has no body.
+     */
+    static BodyDecoder create(HttpRequest request) throws HttpParseException {
+        String encoding = request.header.get("transfer-encoding");
+        if (encoding != null) {
+            if (!"chunked".equalsIgnoreCase(encoding.trim())) {
+                throw new HttpParseException(HttpStatus.NOT_IMPLEMENTED,
+                        "unsupported transfer-encoding " + encoding);
+            }
+            return new ChunkedDecoder();
+        }
+        String length = request.header.get("content-length");
+        if (length == null) {
+            return null;
+        }
+        long contentLength;
+        try {
+            contentLength = Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "bad content-length " + length);
+        }
+        if (contentLength < 0) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "bad content-length " + length);
+        }
+        return contentLength == 0 ? null : new LengthDecoder(contentLength);
+    }
+
+    /**
+     * move body content from the input into the array.
+     *
+     * @return the content bytes produced, 0 if only framing was consumed.
+     */
+    abstract int decode(ByteBuffer in, byte[] out, int offset, int length) throws IOException;
+
+    abstract boolean isFinished();
+
+    /**
+     * @return the declared length, -1 for chunked bodies.
+     */
+    long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * @return content bytes still to come, -1 if unknown.
+     */
+    long remaining() {
+        return -1;
+    }
+
+    static class LengthDecoder extends BodyDecoder {
+
+        private final long contentLength;
+
+        private long remaining;
+
+        LengthDecoder(long contentLength) {
+            this.contentLength = contentLength;
+            this.remaining = contentLength;
+        }
+
+        @Override
+        int decode(ByteBuffer in, byte[] out, int offset, int length) {
+            int count = (int) Math.min(Math.min(in.remaining(), length), remaining);
+            in.get(out, offset, count);
+            remaining -= count;
+            return count;
+        }
+
+        /**
+         * account for content that was consumed without decoding.
+         */
+        void skip(long count) {
+            remaining -= count;
+        }
+
+        @Override
+        boolean isFinished() {
+            return remaining == 0;
+        }
+
+        @Override
+        long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        long remaining() {
+            return remaining;
+        }
+    }
+
+    static class ChunkedDecoder extends BodyDecoder {
+
+        private static final int MAX_LINE_SIZE = 4 * 1024;
+
+        private static final int MAX_TRAILER_SIZE = 16 * 1024;
+
+        private static final int SIZE = 0;
+
+        private static final int EXTENSION = 1;
+
+        private static final int SIZE_LF = 2;
+
+        private static final int DATA = 3;
+
+        private static final int DATA_CR = 4;
+
+        private static final int DATA_LF = 5;
+
+        private static final int TRAILER = 6;
+
+        private static final int TRAILER_LINE = 7;
+
+        private static final int TRAILER_LF = 8;
+
+        private static final int DONE = 9;
+
+        private int state = SIZE;
+
+        private long chunkRemaining;
+
+        private int digits;
+
+        private int lineLength;
+
+        private int trailerLength;
+
+        @Override
+        int decode(ByteBuffer in, byte[] out, int offset, int length) throws IOException {
+            int produced = 0;
+            while (in.hasRemaining() && state != DONE) {
+                if (state == DATA) {
+                    if (produced == length) {
+                        break;
+                    }
+                    int count = (int) Math.min(Math.min(in.remaining(), length - produced),
+                            chunkRemaining);
+                    in.get(out, offset + produced, count);
+                    produced += count;
+                    chunkRemaining -= count;
+                    if (chunkRemaining == 0) {
+                        state = DATA_CR;
+                    }
+                    continue;
+                }
+                byte b = in.get();
+                if (++lineLength > MAX_LINE_SIZE) {
+                    throw new HttpParseException(HttpStatus.BAD_REQUEST, "chunk line too long");
+                }
+                switch (state) {
+                    case SIZE:
+                        int digit = Character.digit(b, 16);
+                        if (digit >= 0) {
+                            if (chunkRemaining > (Long.MAX_VALUE >> 4)) {
+                                throw new HttpParseException(HttpStatus.BAD_REQUEST,
+                                        "chunk size overflow");
+                            }
+                            chunkRemaining = (chunkRemaining << 4) + digit;
+                            digits++;
+                        } else if (b == ';' || b == ' ' || b == '\t') {
+                            state = EXTENSION;
+                        } else if (b == '\r') {
+                            state = SIZE_LF;
+                        } else if (b == '\n') {
+                            endSizeLine();
+                        } else {
+                            throw new HttpParseException(HttpStatus.BAD_REQUEST, "bad chunk size");
+                        }
+                        break;
+                    case EXTENSION:
+                        if (b == '\r') {
+                            state = SIZE_LF;
+                        } else if (b == '\n') {
+                            endSizeLine();
+                        }
+                        break;
+                    case SIZE_LF:
+                        expect(b, '\n');
+                        endSizeLine();
+                        break;
+                    case DATA_CR:
+                        if (b == '\r') {
+                            state = DATA_LF;
+                            break;
+                        }
+                        expect(b, '\n');
+                        startLine(SIZE);
+                        break;
+                    case DATA_LF:
+                        expect(b, '\n');
+                        startLine(SIZE);
+                        break;
+                    case TRAILER:
+                        if (b == '\r') {
+                            state = TRAILER_LF;
+                        } else if (b == '\n') {
+                            state = DONE;
+                        } else {
+                            state = TRAILER_LINE;
+                        }
+                        break;
+                    case TRAILER_LINE:
+                        if (b == '\n') {
+                            // trailers are skipped
+                            trailerLength += lineLength;
+                            if (trailerLength > MAX_TRAILER_SIZE) {
+                                throw new HttpParseException(HttpStatus.HEADER_TOO_LARGE,
+                                        "chunk trailer too large");
+                            }
+                            startLine(TRAILER);
+                        }
+                        break;
+                    case TRAILER_LF:
+                        expect(b, '\n');
+                        state = DONE;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return produced;
+        }
+
+        private void endSizeLine() throws HttpParseException {
+            if (digits == 0) {
+                throw new HttpParseException(HttpStatus.BAD_REQUEST, "missing chunk size");
+            }
+            if (chunkRemaining == 0) {
+                startLine(TRAILER);
+            } else {
+                state = DATA;
+            }
+        }
+
+        private void startLine(int next) {
+            state = next;
+            lineLength = 0;
+            digits = 0;
+        }
+
+        private void expect(byte b, char expected) throws HttpParseException {
+            if (b != expected) {
+                throw new HttpParseException(HttpStatus.BAD_REQUEST, "bad chunk framing");
+            }
+        }
+
+        @Override
+        boolean isFinished() {
+            return state == DONE;
+        }
+    }
+
+}
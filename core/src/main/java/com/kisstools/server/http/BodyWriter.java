@@ -0,0 +1,17 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * produces a response body while it is sent, without a Content-Length the
+ * body goes out with chunked transfer encoding.
+ */
+public interface BodyWriter {
+
+    /**
+     * write the body to the connection, the stream must not be closed.
+     */
+    void writeBody(OutputStream outputStream) throws IOException;
+
+}
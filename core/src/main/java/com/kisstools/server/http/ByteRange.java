@@ -0,0 +1,114 @@
+package com.kisstools.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * an inclusive byte range of a Range request header.
+ */
+public class ByteRange {
+
+    private static final String UNIT = "bytes=";
+
+    private static final int MAX_RANGES = 32;
+
+    public final long start;
+
+    public final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * parse a Range header against a resource of the given size, overlapping
+     * and adjacent ranges are merged.
+     *
+     * @return null if the header is malformed or too fragmented and should be
+     * ignored, an empty list if no range is satisfiable.
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.toLowerCase(Locale.US).startsWith(UNIT)) {
+            return null;
+        }
+        String[] specs = header.substring(UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // suffix range, the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0 || size == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start >= size) {
+                        continue;
+                    }
+                    end = Math.min(end, size - 1);
+                }
+                ranges.add(new ByteRange(start, end));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange l, ByteRange r) {
+                return l.start < r.start ? -1 : (l.start == r.start ? 0 : 1);
+            }
+        });
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int index = 1; index < ranges.size(); ++index) {
+            ByteRange next = ranges.get(index);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.kisstools.server.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * passes bytes through and keeps a copy until the limit is exceeded.
+ */
+class CaptureOutputStream extends FilterOutputStream {
+
+    private final long limit;
+
+    private ByteArrayOutputStream captured;
+
+    public CaptureOutputStream(OutputStream out, long limit) {
+        super(out);
+        this.limit = limit;
+        this.captured = limit > 0 ? new ByteArrayOutputStream() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        capture(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        capture(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return the bytes written, null if they exceeded the limit.
+     */
+    public byte[] getCaptured() {
+        return captured == null ? null : captured.toByteArray();
+    }
+
+    private void capture(byte[] bytes, int offset, int length) {
+        if (captured == null) {
+            return;
+        }
+        if (captured.size() + length > limit) {
+            captured = null;
+            return;
+        }
+        captured.write(bytes, offset, length);
+    }
+
+}
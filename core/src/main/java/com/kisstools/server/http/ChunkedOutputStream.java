@@ -0,0 +1,98 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * writes the chunked transfer encoding, data is collected into chunks of a
+ * fixed size. closing writes the last chunk but keeps the connection open.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final OutputStream out;
+
+    private final byte[] buffer;
+
+    private int count;
+
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+        this.buffer = new byte[CHUNK_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length >= buffer.length) {
+            // large writes skip the buffer and go out as one chunk
+            flushChunk();
+            writeChunk(bytes, offset, length);
+            return;
+        }
+        if (length > buffer.length - count) {
+            flushChunk();
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    /**
+     * send the buffered data and the terminating chunk.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        flushChunk();
+        finished = true;
+        out.write(LAST_CHUNK);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void flushChunk() throws IOException {
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        if (finished) {
+            throw new IOException("chunked body already finished");
+        }
+        if (length == 0) {
+            return;
+        }
+        out.write(Integer.toHexString(length).getBytes("US-ASCII"));
+        out.write(CRLF);
+        out.write(bytes, offset, length);
+        out.write(CRLF);
+    }
+
+}
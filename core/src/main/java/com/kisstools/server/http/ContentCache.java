@@ -0,0 +1,96 @@
+package com.kisstools.server.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * generated content of files and directories, e.g. rendered listings or
+ * compressed variants, keyed by path. an entry is valid as long as the mtime
+ * it was created from is unchanged. least recently used entries are dropped
+ * once the byte budget is exceeded.
+ */
+class ContentCache {
+
+    // coarse file systems report the same mtime for changes within a second
+    private static final long SETTLE_TIME = 2000;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long maxBytes;
+
+    private long totalBytes;
+
+    public ContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * content larger than this is never cached.
+     */
+    public synchronized long getMaxEntrySize() {
+        return maxBytes / 2;
+    }
+
+    public synchronized byte[] get(String path, long mtime) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mtime != mtime) {
+            remove(path);
+            return null;
+        }
+        return entry.content;
+    }
+
+    public synchronized void put(String path, long mtime, byte[] content) {
+        if (content.length > maxBytes / 2
+                || System.currentTimeMillis() - mtime < SETTLE_TIME) {
+            return;
+        }
+        remove(path);
+        entries.put(path, new Entry(mtime, content));
+        totalBytes += content.length;
+        trim();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    private void remove(String path) {
+        Entry old = entries.remove(path);
+        if (old != null) {
+            totalBytes -= old.content.length;
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().content.length;
+            iterator.remove();
+        }
+    }
+
+    static class Entry {
+
+        final long mtime;
+
+        final byte[] content;
+
+        Entry(long mtime, byte[] content) {
+            this.mtime = mtime;
+            this.content = content;
+        }
+    }
+
+}
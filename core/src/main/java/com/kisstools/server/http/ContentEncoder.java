@@ -0,0 +1,287 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.util.IOUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * negotiates gzip or deflate content encoding for compressible responses.
+ * bodies are compressed while streaming, compressed variants of small whole
+ * files are cached by path and mtime so hot files are compressed once.
+ */
+public class ContentEncoder {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final int MIN_SIZE = 256;
+
+    private static final long MAX_CACHED_FILE_SIZE = 1024 * 1024;
+
+    private static final long CACHE_SIZE = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final String[] DEFAULT_TYPES = {"text/", "application/json",
+            "application/javascript", "application/x-javascript", "application/xml",
+            "image/svg+xml"};
+
+    private final Set<String> compressibleTypes;
+
+    private final ContentCache cache;
+
+    private volatile boolean enabled = true;
+
+    public ContentEncoder() {
+        compressibleTypes = new CopyOnWriteArraySet<>();
+        for (String type : DEFAULT_TYPES) {
+            compressibleTypes.add(type);
+        }
+        cache = new ContentCache(CACHE_SIZE);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * allow a mime type, or a prefix ending with '/' for a whole family.
+     */
+    public void addCompressibleType(String type) {
+        compressibleTypes.add(type.toLowerCase(Locale.US));
+    }
+
+    public void removeCompressibleType(String type) {
+        compressibleTypes.remove(type.toLowerCase(Locale.US));
+    }
+
+    /**
+     * byte budget of cached compressed file variants, 0 disables the cache.
+     */
+    public void setCacheSize(long maxBytes) {
+        cache.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * replace the response body by its encoded form if the client accepts it.
+     */
+    public void encode(HttpRequest request, HttpResponse response) throws IOException {
+        if (!enabled || response.status != HttpStatus.OK
+                || response.header.containsKey("Content-Encoding")
+                || !isCompressible(response.header.get("Content-Type"))) {
+            return;
+        }
+        addVary(response);
+        boolean hasBody = response.body != null || response.region != null
+                || response.writer != null;
+        String encoding = negotiate(request.header.get("accept-encoding"));
+        if (!hasBody || encoding == null) {
+            return;
+        }
+        String length = response.header.get("Content-Length");
+        if (length != null && Long.parseLong(length) < MIN_SIZE) {
+            return;
+        }
+
+        FileRegion region = response.region;
+        if (region != null && region.length <= MAX_CACHED_FILE_SIZE && region.isWholeFile()) {
+            byte[] compressed = getCompressedFile(region, encoding);
+            response.setBody(compressed);
+        } else {
+            response.setBody(new EncodingWriter(encoding, response.body, region, response.writer));
+        }
+        response.header.put("Content-Encoding", encoding);
+        String etag = response.header.get("ETag");
+        if (etag != null && etag.endsWith("\"")) {
+            response.header.put("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+        }
+    }
+
+    /**
+     * an ETag of an encoded variant with the encoding suffix removed.
+     */
+    public static String stripETagSuffix(String etag) {
+        for (String encoding : new String[]{GZIP, DEFLATE}) {
+            String suffix = "-" + encoding + "\"";
+            if (etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length()) + "\"";
+            }
+        }
+        return etag;
+    }
+
+    private void addVary(HttpResponse response) {
+        String vary = response.header.get("Vary");
+        if (vary == null) {
+            response.header.put("Vary", "Accept-Encoding");
+        } else if (!vary.toLowerCase(Locale.US).contains("accept-encoding")) {
+            response.header.put("Vary", vary + ", Accept-Encoding");
+        }
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+                .trim().toLowerCase(Locale.US);
+        for (String allowed : compressibleTypes) {
+            if (allowed.endsWith("/") ? type.startsWith(allowed) : type.equals(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * pick gzip over deflate, codings with q=0 are refused.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Set<String> accepted = new HashSet<>();
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.US);
+            float quality = 1;
+            for (int index = 1; index < params.length; ++index) {
+                String param = params[index].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (quality > 0) {
+                accepted.add(coding);
+            }
+        }
+        if (accepted.contains(GZIP) || accepted.contains("*")) {
+            return GZIP;
+        }
+        if (accepted.contains(DEFLATE)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    private byte[] getCompressedFile(FileRegion region, String encoding) throws IOException {
+        String key = encoding + ":" + region.file.getPath();
+        long lastModified = region.file.lastModified();
+        byte[] compressed = cache.get(key, lastModified);
+        if (compressed != null) {
+            return compressed;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) (region.length / 4));
+        InputStream is = region.openStream();
+        try {
+            compress(encoding, is, null, baos);
+        } finally {
+            IOUtil.close(is);
+        }
+        compressed = baos.toByteArray();
+        cache.put(key, lastModified, compressed);
+        return compressed;
+    }
+
+    private static void compress(String encoding, InputStream body, BodyWriter writer,
+                                 OutputStream outputStream) throws IOException {
+        Deflater deflater;
+        DeflaterOutputStream dos;
+        if (GZIP.equals(encoding)) {
+            GzipStream gzip = new GzipStream(outputStream);
+            deflater = gzip.getDeflater();
+            dos = gzip;
+        } else {
+            deflater = new Deflater();
+            dos = new DeflaterOutputStream(outputStream, deflater, BUFFER_SIZE);
+        }
+        try {
+            if (writer != null) {
+                writer.writeBody(new FilterOutputStream(dos) {
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        out.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                });
+            } else {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = body.read(buffer)) > 0) {
+                    dos.write(buffer, 0, read);
+                }
+            }
+            dos.finish();
+        } finally {
+            // finish keeps the connection open, native memory is freed here
+            deflater.end();
+        }
+    }
+
+    /**
+     * exposes the deflater so it can be ended without closing the connection.
+     */
+    static class GzipStream extends GZIPOutputStream {
+
+        GzipStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+        }
+
+        Deflater getDeflater() {
+            return def;
+        }
+    }
+
+    static class EncodingWriter implements BodyWriter {
+
+        private final String encoding;
+
+        private final InputStream body;
+
+        private final FileRegion region;
+
+        private final BodyWriter writer;
+
+        EncodingWriter(String encoding, InputStream body, FileRegion region, BodyWriter writer) {
+            this.encoding = encoding;
+            this.body = body;
+            this.region = region;
+            this.writer = writer;
+        }
+
+        @Override
+        public void writeBody(OutputStream outputStream) throws IOException {
+            InputStream is = body;
+            if (region != null) {
+                is = region.openStream();
+            }
+            try {
+                compress(encoding, is, writer, outputStream);
+            } finally {
+                IOUtil.close(is);
+            }
+        }
+    }
+
+}
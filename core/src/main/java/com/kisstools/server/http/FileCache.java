@@ -0,0 +1,449 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.metrics.StripedCounter;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * small whole files kept in memory with their validators, hot static files
+ * are served without opening or even looking at the file on each request.
+ * a hit is a map lookup and a few field writes, only filling the cache
+ * takes the lock.
+ * <p>
+ * admission is frequency aware like TinyLFU: every lookup is counted in a
+ * count-min sketch that halves as it ages, a file only replaces entries
+ * that were asked for less often. victims come from a clock over the
+ * entries, a hit lets an entry pass the hand once more. entries are checked
+ * against the mtime and length of their file at most once per interval.
+ */
+class FileCache {
+
+    private static final long REVALIDATE_INTERVAL = 1000;
+
+    // coarse file systems report the same mtime for changes within a second
+    private static final long SETTLE_TIME = 2000;
+
+    /**
+     * assumed mean entry size, sizes the sketch for the budget.
+     */
+    private static final long SKETCH_ENTRY_SIZE = 4 * 1024;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // clock of the entries in insertion order, guarded by this
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+
+    private long totalBytes;
+
+    private volatile long maxBytes;
+
+    private volatile long maxFileSize;
+
+    private volatile FrequencySketch sketch;
+
+    private StripedCounter hits = new StripedCounter();
+
+    private StripedCounter misses = new StripedCounter();
+
+    private StripedCounter evictions = new StripedCounter();
+
+    FileCache(long maxBytes, long maxFileSize) {
+        setMaxFileSize(maxFileSize);
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * count into counters of a metrics registry, before the cache is used.
+     */
+    void setCounters(StripedCounter hits, StripedCounter misses, StripedCounter evictions) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * 0 disables the cache and drops the entries.
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        sketch = new FrequencySketch((int) Math.min(1 << 16,
+                Math.max(64, this.maxBytes / SKETCH_ENTRY_SIZE)));
+        trim();
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * larger files are always read from disk.
+     */
+    void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE - 8);
+    }
+
+    long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entry of the file if it is cached and unchanged.
+     */
+    Entry get(String path) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        sketch.increment(path.hashCode());
+        Entry entry = entries.get(path);
+        if (entry == null || !isValid(entry)) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * read the file into the cache if it is small and asked for more often
+     * than what it would evict.
+     *
+     * @return the new entry, null if the file is not cached.
+     */
+    Entry load(File file, String mimeType) {
+        long length = file.length();
+        long mtime = file.lastModified();
+        long budget = maxBytes;
+        if (budget <= 0 || length > maxFileSize || length > budget / 2
+                || System.currentTimeMillis() - mtime < SETTLE_TIME) {
+            return null;
+        }
+        int hash = file.getPath().hashCode();
+        synchronized (this) {
+            // cheap early refusal before the file is read
+            if (!canAdmit(hash, length)) {
+                return null;
+            }
+        }
+        byte[] content = read(file, (int) length);
+        if (content == null || file.lastModified() != mtime) {
+            return null;
+        }
+        Entry entry = new Entry(file, mtime, content, mimeType);
+        synchronized (this) {
+            if (!makeRoom(hash, length)) {
+                return null;
+            }
+            Entry old = entries.put(entry.path, entry);
+            if (old != null) {
+                unlink(old);
+            }
+            clock.addLast(entry);
+            totalBytes += length;
+        }
+        return entry;
+    }
+
+    /**
+     * drop the entry of a path, e.g. after it was written.
+     */
+    void invalidate(String path) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        clock.clear();
+        totalBytes = 0;
+    }
+
+    private boolean isValid(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (now - entry.checked < REVALIDATE_INTERVAL) {
+            return true;
+        }
+        File file = entry.file;
+        if (file.lastModified() != entry.mtime || file.length() != entry.content.length) {
+            remove(entry);
+            return false;
+        }
+        entry.checked = now;
+        return true;
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.remove(entry.path, entry)) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * the entry left the map, the clock skips it once the hand gets there.
+     */
+    private void unlink(Entry entry) {
+        entry.removed = true;
+        totalBytes -= entry.content.length;
+    }
+
+    private boolean canAdmit(int hash, long length) {
+        if (totalBytes + length <= maxBytes) {
+            return true;
+        }
+        return makeRoom(hash, length, false);
+    }
+
+    private boolean makeRoom(int hash, long length) {
+        return makeRoom(hash, length, true);
+    }
+
+    /**
+     * pick victims until the length fits, the candidate only wins if it is
+     * more frequent than each of them. losing victims keep their place.
+     */
+    private boolean makeRoom(int hash, long length, boolean evict) {
+        long budget = maxBytes;
+        if (length > budget) {
+            return false;
+        }
+        int frequency = sketch.frequency(hash);
+        List<Entry> victims = new ArrayList<>();
+        long freed = 0;
+        boolean admit = true;
+        while (totalBytes - freed + length > budget) {
+            Entry victim = nextVictim();
+            if (victim == null) {
+                break;
+            }
+            victims.add(victim);
+            freed += victim.content.length;
+            if (sketch.frequency(victim.path.hashCode()) >= frequency) {
+                admit = false;
+                break;
+            }
+        }
+        if (!admit || !evict) {
+            for (int index = victims.size() - 1; index >= 0; index--) {
+                clock.addFirst(victims.get(index));
+            }
+            return admit;
+        }
+        for (Entry victim : victims) {
+            if (entries.remove(victim.path, victim)) {
+                unlink(victim);
+                evictions.increment();
+            }
+        }
+        return totalBytes + length <= budget;
+    }
+
+    /**
+     * shrink to the budget without admission, after the budget changed.
+     */
+    private void trim() {
+        while (totalBytes > maxBytes) {
+            Entry victim = nextVictim();
+            if (victim == null) {
+                break;
+            }
+            if (entries.remove(victim.path, victim)) {
+                unlink(victim);
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return the next entry the hand finds without a hit, taken off the clock.
+     */
+    private Entry nextVictim() {
+        // each entry is passed at most once
+        int passes = clock.size();
+        Entry entry;
+        while ((entry = clock.pollFirst()) != null) {
+            if (entry.removed) {
+                continue;
+            }
+            if (entry.referenced && passes-- > 0) {
+                entry.referenced = false;
+                clock.addLast(entry);
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    private static byte[] read(File file, int length) {
+        byte[] content = new byte[length];
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            int offset = 0;
+            while (offset < length) {
+                int read = is.read(content, offset, length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            // grown while reading
+            if (is.read() >= 0) {
+                return null;
+            }
+            return content;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    static class Entry {
+
+        final File file;
+
+        final String path;
+
+        final long mtime;
+
+        /**
+         * the whole file, never modified once cached.
+         */
+        final byte[] content;
+
+        final String mimeType;
+
+        final String etag;
+
+        final String lastModified;
+
+        volatile long checked;
+
+        volatile boolean referenced;
+
+        // set once the entry left the map, guarded by the cache
+        boolean removed;
+
+        Entry(File file, long mtime, byte[] content, String mimeType) {
+            this.file = file;
+            this.path = file.getPath();
+            this.mtime = mtime;
+            this.content = content;
+            this.mimeType = mimeType;
+            this.etag = FileHandler.createETag(content.length, mtime);
+            this.lastModified = HttpDate.format(mtime);
+            this.checked = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 4 bit counters in 4 rows of a count-min sketch, packed 16 to a long.
+     * updates race without a lock, a lost increment only blurs the estimate.
+     * counters halve once enough increments were counted, so old
+     * popularity fades.
+     */
+    static class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final AtomicLongArray table;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int capacity) {
+            int length = 16;
+            while (length < capacity) {
+                length <<= 1;
+            }
+            table = new AtomicLongArray(length);
+            mask = length - 1;
+            sampleSize = 10 * length;
+        }
+
+        int frequency(int hash) {
+            hash = spread(hash);
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                int offset = (start + row) << 2;
+                int count = (int) ((table.get(index) >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            hash = spread(hash);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                added |= incrementAt(indexOf(hash, row), (start + row) << 2);
+            }
+            if (added && additions.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int offset) {
+            long step = 1L << offset;
+            while (true) {
+                long value = table.get(index);
+                if (((value >>> offset) & 0xfL) == 0xfL) {
+                    return false;
+                }
+                if (table.compareAndSet(index, value, value + step)) {
+                    return true;
+                }
+            }
+        }
+
+        private void reset() {
+            additions.set(sampleSize / 2);
+            for (int index = 0; index < table.length(); index++) {
+                table.set(index, (table.get(index) >>> 1) & RESET_MASK);
+            }
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+
+}
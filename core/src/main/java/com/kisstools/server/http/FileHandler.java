@@ -0,0 +1,576 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.util.IOUtil;
+import com.kisstools.server.util.PathUtil;
+import com.kisstools.server.util.TextUtil;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by dawson on 10/11/15.
+ */
+public class FileHandler implements RequestHandler {
+
+    public static final String TAG = "FileHandler";
+
+    private static final String FILE_LINE = "<li><a class='file' href=\"HREF_PATH\">FILE_NAME</a></li>";
+
+    private static final String FOLDER_LINE = "<li><a href=\"HREF_PATH\">FILE_NAME</a></li>";
+
+    private static final String[] LINE_PLACEHOLDERS = {"HREF_PATH", "FILE_NAME"};
+
+    private static final String[] PAGE_PLACEHOLDERS = {"FILE_PATH", "DATA_PATH", "CONTENT"};
+
+    private static final ListingTemplate FILE_TEMPLATE = ListingTemplate.compile(FILE_LINE, LINE_PLACEHOLDERS);
+
+    private static final ListingTemplate FOLDER_TEMPLATE = ListingTemplate.compile(FOLDER_LINE, LINE_PLACEHOLDERS);
+
+    private static final int SLOT_FILE_PATH = 0;
+
+    private static final int SLOT_DATA_PATH = 1;
+
+    private static final long LISTING_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static final long MAX_CACHED_FILE_SIZE = 64 * 1024;
+
+    private static final int UPLOAD_BUFFER_SIZE = 16 * 1024;
+
+    private static final String TEMPLATE_RESOURCE = "content.html";
+
+    private static final String BOUNDARY_CHARS = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private final Map<String, String> cacheControls = new ConcurrentHashMap<>();
+
+    private final ContentCache listingCache = new ContentCache(LISTING_CACHE_SIZE);
+
+    private final FileCache fileCache = new FileCache(0, MAX_CACHED_FILE_SIZE);
+
+    private volatile boolean uploadEnabled;
+
+    private volatile ListingTemplate template;
+
+    private volatile String dataPath = TextUtil.urlEncode(System.getProperty("user.dir", "/"));
+
+    @Override
+    public boolean handleRequest(HttpRequest request, HttpResponse response) {
+        String filePath = request.query.get("path");
+        if (TextUtil.isEmpty(filePath)) {
+            filePath = "/";
+        }
+        File file = new File(filePath);
+        if ("PUT".equals(request.method) || "POST".equals(request.method)) {
+            handleUpload(file, request, response);
+            return true;
+        }
+        // a cached file is served without touching the disk
+        FileCache.Entry cached = fileCache.get(file.getPath());
+        if (cached != null) {
+            return handleCached(cached, filePath, request, response);
+        }
+        if (!file.isDirectory() && !(file.isFile() && file.canRead())) {
+            return false;
+        }
+        response.status = HttpStatus.OK;
+        String etag = createETag(file);
+        long lastModified = file.lastModified();
+        addCacheHeaders(etag, HttpDate.format(lastModified), filePath, response);
+        if (isNotModified(etag, lastModified, request)) {
+            response.status = HttpStatus.NOT_MODIFIED;
+            return true;
+        }
+        try {
+            if (file.isDirectory()) {
+                response.header.put("Content-Type", "text/html");
+                createFolderContent(filePath, response);
+            } else {
+                createFileContent(filePath, request, response);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean handleCached(FileCache.Entry cached, String filePath, HttpRequest request,
+                                 HttpResponse response) {
+        response.status = HttpStatus.OK;
+        addCacheHeaders(cached.etag, cached.lastModified, filePath, response);
+        if (isNotModified(cached.etag, cached.mtime, request)) {
+            response.status = HttpStatus.NOT_MODIFIED;
+            return true;
+        }
+        try {
+            createFileContent(cached.file, cached.mimeType, cached.content, request, response);
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * byte budget of small files kept in memory, 0 disables it. hot files
+     * are served from memory, a file takes the place of others only if it
+     * is asked for more often.
+     */
+    public void setFileCacheSize(long maxBytes) {
+        fileCache.setMaxBytes(maxBytes);
+    }
+
+    public long getFileCacheSize() {
+        return fileCache.getMaxBytes();
+    }
+
+    /**
+     * files larger than this are never kept in memory.
+     */
+    public void setFileCacheMaxFileSize(long maxBytes) {
+        fileCache.setMaxFileSize(maxBytes);
+    }
+
+    FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * byte budget of rendered directory listings kept in memory, 0 disables caching.
+     */
+    public void setListingCacheSize(long maxBytes) {
+        listingCache.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * set the Cache-Control value for files under the path prefix, the longest
+     * matching prefix wins, a null value removes the rule.
+     */
+    public void setCacheControl(String pathPrefix, String cacheControl) {
+        if (TextUtil.isEmpty(pathPrefix)) {
+            return;
+        }
+        if (cacheControl == null) {
+            cacheControls.remove(pathPrefix);
+        } else {
+            cacheControls.put(pathPrefix, cacheControl);
+        }
+    }
+
+    /**
+     * accept PUT of a file body and POST of multipart/form-data files into a
+     * folder, disabled by default.
+     */
+    public void setUploadEnabled(boolean enabled) {
+        this.uploadEnabled = enabled;
+    }
+
+    private void handleUpload(File file, HttpRequest request, HttpResponse response) {
+        if (!uploadEnabled) {
+            setStatus(response, HttpStatus.FORBIDDEN);
+            return;
+        }
+        try {
+            if ("PUT".equals(request.method)) {
+                putFile(file, request, response);
+            } else {
+                postFiles(file, request, response);
+            }
+        } catch (IOException e) {
+            ServerLog.e(TAG, "upload exception " + file, e);
+            response.status = HttpStatus.INTERNAL_ERROR;
+            response.setBody(String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void putFile(File file, HttpRequest request, HttpResponse response) throws IOException {
+        File folder = file.getParentFile();
+        if (file.isDirectory() || folder == null || !folder.isDirectory()) {
+            setStatus(response, HttpStatus.CONFLICT);
+            return;
+        }
+        boolean existed = file.exists();
+        writeFile(file, request.body);
+        setStatus(response, existed ? HttpStatus.NO_CONTENT : HttpStatus.CREATED);
+    }
+
+    private void postFiles(File folder, HttpRequest request, HttpResponse response) throws IOException {
+        if (!folder.isDirectory()) {
+            setStatus(response, HttpStatus.CONFLICT);
+            return;
+        }
+        String boundary = MultipartParser.getBoundary(request.header.get("content-type"));
+        if (boundary == null || request.body == null) {
+            setStatus(response, HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        MultipartParser parser = new MultipartParser(request.body, boundary);
+        StringBuilder saved = new StringBuilder();
+        MultipartParser.Part part;
+        while ((part = parser.next()) != null) {
+            String name = getUploadName(part.fileName);
+            if (name == null) {
+                // plain form fields are skipped
+                continue;
+            }
+            writeFile(new File(folder, name), part.body);
+            saved.append(name).append('\n');
+        }
+        if (saved.length() == 0) {
+            setStatus(response, HttpStatus.BAD_REQUEST);
+            return;
+        }
+        response.status = HttpStatus.CREATED;
+        response.header.put("Content-Type", "text/plain; charset=utf-8");
+        response.setBody(saved.toString());
+    }
+
+    /**
+     * @return the last segment of a client file name, null if it is unusable.
+     */
+    private String getUploadName(String fileName) {
+        if (fileName == null) {
+            return null;
+        }
+        int slash = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+        String name = fileName.substring(slash + 1).trim();
+        if (name.length() == 0 || ".".equals(name) || "..".equals(name)) {
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * stream the content into a temporary file next to the target and rename
+     * it, a failed upload never leaves a partial file behind.
+     */
+    private void writeFile(File file, InputStream content) throws IOException {
+        File temp = File.createTempFile(".upload", ".tmp", file.getParentFile());
+        FileOutputStream fos = new FileOutputStream(temp);
+        boolean success = false;
+        try {
+            if (content instanceof RequestBody) {
+                // transferFrom straight from the socket when possible
+                ((RequestBody) content).transferTo(fos.getChannel(), 0);
+            } else if (content != null) {
+                byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+                int read;
+                while ((read = content.read(buffer)) >= 0) {
+                    fos.write(buffer, 0, read);
+                }
+            }
+            fos.close();
+            if (!temp.renameTo(file)) {
+                throw new IOException("rename failed " + file);
+            }
+            fileCache.invalidate(file.getPath());
+            success = true;
+        } finally {
+            IOUtil.close(fos);
+            if (!success) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void setStatus(HttpResponse response, HttpStatus status) {
+        response.status = status;
+        response.setBody(status.getDescription());
+    }
+
+    private void addCacheHeaders(String etag, String lastModified, String filePath,
+                                 HttpResponse response) {
+        response.header.put("ETag", etag);
+        response.header.put("Last-Modified", lastModified);
+        String matched = null;
+        for (String prefix : cacheControls.keySet()) {
+            if (filePath.startsWith(prefix)
+                    && (matched == null || prefix.length() > matched.length())) {
+                matched = prefix;
+            }
+        }
+        if (matched != null) {
+            response.header.put("Cache-Control", cacheControls.get(matched));
+        }
+    }
+
+    /**
+     * If-None-Match takes precedence, If-Modified-Since is only checked without it.
+     */
+    private boolean isNotModified(String etag, long lastModified, HttpRequest request) {
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            return false;
+        }
+        String ifNoneMatch = request.header.get("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                candidate = ContentEncoder.stripETagSuffix(candidate);
+                if ("*".equals(candidate) || etag.equals(candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = HttpDate.parse(request.header.get("if-modified-since"));
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    private void createFileContent(String filePath, HttpRequest request,
+                                   HttpResponse response) throws IOException {
+        File file = new File(filePath);
+        if (!file.isFile() || !file.canRead()) {
+            throw new FileNotFoundException(filePath);
+        }
+        String mimeType = PathUtil.getMimeType(filePath);
+        FileCache.Entry entry = fileCache.load(file, mimeType);
+        createFileContent(file, mimeType, entry == null ? null : entry.content, request, response);
+    }
+
+    /**
+     * @param content the file if it is cached, read from disk if null.
+     */
+    private void createFileContent(File file, String mimeType, byte[] content,
+                                   HttpRequest request, HttpResponse response) throws IOException {
+        if (TextUtil.isEmpty(mimeType) || "*/*".equals(mimeType)) {
+            mimeType = "application/octet-stream";
+            String fileName = "attachment; filename=\"" + file.getName() + "\"";
+            response.header.put("Content-Disposition", fileName);
+        }
+        response.header.put("Content-Type", mimeType);
+        response.header.put("Accept-Ranges", "bytes");
+
+        long size = content != null ? content.length : file.length();
+        List<ByteRange> ranges = null;
+        if (isRangeValid(response.header.get("ETag"), response.header.get("Last-Modified"),
+                request.header.get("if-range"))) {
+            ranges = ByteRange.parse(request.header.get("range"), size);
+        }
+        if (ranges == null) {
+            response.setBody(new FileRegion(file, 0, size, content));
+        } else if (ranges.isEmpty()) {
+            response.status = HttpStatus.RANGE_NOT_SATISFIABLE;
+            response.header.remove("Content-Disposition");
+            response.header.put("Content-Range", "bytes */" + size);
+            response.header.put("Content-Type", "text/plain");
+            response.setBody(HttpStatus.RANGE_NOT_SATISFIABLE.getDescription());
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.status = HttpStatus.PARTIAL_CONTENT;
+            response.header.put("Content-Range", range.toContentRange(size));
+            response.setBody(new FileRegion(file, range.start, range.length(), content));
+        } else {
+            response.status = HttpStatus.PARTIAL_CONTENT;
+            createMultipartContent(file, size, content, mimeType, ranges, response);
+        }
+    }
+
+    /**
+     * a range request only applies if the If-Range validator still matches
+     * the ETag or Last-Modified of the response.
+     */
+    private boolean isRangeValid(String etag, String lastModified, String ifRange) {
+        if (TextUtil.isEmpty(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // weak validators never match
+            return ifRange.equals(etag);
+        }
+        long date = HttpDate.parse(ifRange);
+        return date >= 0 && date / 1000 == HttpDate.parse(lastModified) / 1000;
+    }
+
+    static String createETag(File file) {
+        return createETag(file.length(), file.lastModified());
+    }
+
+    static String createETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * multipart/byteranges body, parts are streamed from the file one after another.
+     */
+    private void createMultipartContent(File file, long size, byte[] content, String mimeType,
+                                        List<ByteRange> ranges, HttpResponse response) throws IOException {
+        String boundary = createBoundary();
+        long contentLength = 0;
+        Vector<InputStream> parts = new Vector<>();
+        for (ByteRange range : ranges) {
+            String partHead = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + mimeType + "\r\n"
+                    + "Content-Range: " + range.toContentRange(size) + "\r\n\r\n";
+            byte[] headBytes = partHead.getBytes("UTF-8");
+            parts.add(new ByteArrayInputStream(headBytes));
+            parts.add(new FileRegion(file, range.start, range.length(), content).openStream());
+            contentLength += headBytes.length + range.length();
+        }
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes("UTF-8");
+        parts.add(new ByteArrayInputStream(tail));
+        contentLength += tail.length;
+
+        response.header.remove("Content-Disposition");
+        response.header.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        response.header.put("Content-Length", "" + contentLength);
+        response.body = new SequenceInputStream(parts.elements());
+    }
+
+    private String createBoundary() {
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder(24);
+        for (int index = 0; index < 24; ++index) {
+            sb.append(BOUNDARY_CHARS.charAt(random.nextInt(BOUNDARY_CHARS.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * cached listings are sent as they are, others are streamed with chunked
+     * encoding while rendering and captured for the cache when small enough.
+     */
+    private void createFolderContent(final String filePath, HttpResponse response) {
+        final File folder = new File(filePath);
+        final long lastModified = folder.lastModified();
+        byte[] content = listingCache.get(filePath, lastModified);
+        if (content != null) {
+            response.setBody(content);
+            return;
+        }
+        response.setBody(new BodyWriter() {
+            @Override
+            public void writeBody(OutputStream outputStream) throws IOException {
+                CaptureOutputStream capture = new CaptureOutputStream(outputStream,
+                        listingCache.getMaxEntrySize());
+                Writer writer = new BufferedWriter(new OutputStreamWriter(capture, "UTF-8"));
+                renderFolderContent(filePath, folder, writer);
+                writer.flush();
+                byte[] captured = capture.getCaptured();
+                if (captured != null) {
+                    listingCache.put(filePath, lastModified, captured);
+                }
+            }
+        });
+    }
+
+    private void renderFolderContent(final String filePath, File folder,
+                                     Writer writer) throws IOException {
+        final File[] children = folder.listFiles();
+        ListingTemplate.SlotWriter slotWriter = new ListingTemplate.SlotWriter() {
+            @Override
+            public void writeSlot(Appendable out, int slot) throws IOException {
+                if (slot == SLOT_FILE_PATH) {
+                    out.append(filePath);
+                } else if (slot == SLOT_DATA_PATH) {
+                    out.append(dataPath);
+                } else {
+                    renderFolderEntries(filePath, children, out);
+                }
+            }
+        };
+        getTemplate().render(writer, slotWriter);
+    }
+
+    private void renderFolderEntries(String filePath, File[] children,
+                                     Appendable out) throws IOException {
+        String[] lineValues = new String[2];
+        String parentPath = PathUtil.getParent(filePath);
+        if (parentPath != null && filePath.length() > 1) {
+            lineValues[0] = "/file?path=" + TextUtil.urlEncode(parentPath);
+            lineValues[1] = "..";
+            FOLDER_TEMPLATE.render(out, lineValues);
+        }
+        if (children == null || children.length == 0) {
+            return;
+        }
+        String prefix = filePath.equals("/") ? "" : filePath;
+        for (FolderEntry entry : sortFolderContent(children)) {
+            String childPath = prefix + "/" + entry.name;
+            lineValues[0] = "/file?path=" + TextUtil.urlEncode(childPath);
+            lineValues[1] = entry.directory ? " " + entry.name : entry.name;
+            out.append('\n');
+            (entry.directory ? FOLDER_TEMPLATE : FILE_TEMPLATE).render(out, lineValues);
+        }
+    }
+
+    /**
+     * folder linked as "data" from listings, the working directory by default.
+     */
+    public void setDataPath(String path) {
+        this.dataPath = TextUtil.urlEncode(path);
+        listingCache.clear();
+    }
+
+    /**
+     * replace the listing page, the html may contain FILE_PATH, DATA_PATH and
+     * CONTENT placeholders.
+     */
+    public void setTemplate(String html) {
+        this.template = ListingTemplate.compile(html, PAGE_PLACEHOLDERS);
+        listingCache.clear();
+    }
+
+    private ListingTemplate getTemplate() {
+        ListingTemplate template = this.template;
+        if (template == null) {
+            InputStream is = FileHandler.class.getResourceAsStream(TEMPLATE_RESOURCE);
+            template = ListingTemplate.compile(IOUtil.read(is), PAGE_PLACEHOLDERS);
+            this.template = template;
+        }
+        return template;
+    }
+
+    private List<FolderEntry> sortFolderContent(File[] list) {
+        // collation keys are computed once per name instead of per comparison
+        Collator collator = Collator.getInstance();
+        List<FolderEntry> entries = new ArrayList<>(list.length);
+        for (File file : list) {
+            String name = file.getName();
+            entries.add(new FolderEntry(name, file.isDirectory(), collator.getCollationKey(name)));
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    static class FolderEntry implements Comparable<FolderEntry> {
+
+        final String name;
+
+        final boolean directory;
+
+        final CollationKey key;
+
+        FolderEntry(String name, boolean directory, CollationKey key) {
+            this.name = name;
+            this.directory = directory;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(FolderEntry other) {
+            if (directory != other.directory) {
+                return directory ? -1 : 1;
+            }
+            return key.compareTo(other.key);
+        }
+    }
+}
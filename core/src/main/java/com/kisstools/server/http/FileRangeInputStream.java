@@ -0,0 +1,58 @@
+package com.kisstools.server.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * reads one byte range of a file, the file is opened on first read so many
+ * ranges can be queued without holding descriptors.
+ */
+class FileRangeInputStream extends InputStream {
+
+    private final File file;
+
+    private final long start;
+
+    private long remaining;
+
+    private RandomAccessFile raf;
+
+    public FileRangeInputStream(File file, long start, long length) {
+        this.file = file;
+        this.start = start;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read <= 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "r");
+            raf.seek(start);
+        }
+        int read = raf.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+        }
+    }
+
+}
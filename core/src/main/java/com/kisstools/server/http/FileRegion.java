@@ -0,0 +1,56 @@
+package com.kisstools.server.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * a part of a file sent as response body, served with zero-copy transfer when
+ * the connection supports it, or from memory for files of the file cache.
+ */
+public class FileRegion {
+
+    public final File file;
+
+    public final long offset;
+
+    public final long length;
+
+    /**
+     * the whole file if it is cached, null to read the file.
+     */
+    final byte[] content;
+
+    public FileRegion(File file, long offset, long length) {
+        this(file, offset, length, null);
+    }
+
+    public FileRegion(File file) {
+        this(file, 0, file.length());
+    }
+
+    FileRegion(File file, long offset, long length, byte[] content) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.content = content;
+    }
+
+    /**
+     * @return whether the region covers all of the file.
+     */
+    boolean isWholeFile() {
+        if (content != null) {
+            return offset == 0 && length == content.length;
+        }
+        return offset == 0 && length == file.length();
+    }
+
+    InputStream openStream() {
+        if (content != null) {
+            return new ByteArrayInputStream(content, (int) offset, (int) length);
+        }
+        return new FileRangeInputStream(file, offset, length);
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.kisstools.server.http;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * request headers backed by the raw head bytes. lookups scan the header
+ * lines case-insensitively and decode only the value asked for, iteration
+ * decodes everything with lower case names.
+ */
+class HeaderMap extends LazyMap {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final byte[] bytes;
+
+    // start of name, colon, end of line for each header line
+    private final int[] lines;
+
+    private final int count;
+
+    HeaderMap(byte[] bytes, int[] lines, int count) {
+        this.bytes = bytes;
+        this.lines = lines;
+        this.count = count;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (isDecoded() || !(key instanceof String)) {
+            return super.get(key);
+        }
+        int line = find((String) key);
+        return line < 0 ? null : value(line);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (isDecoded() || !(key instanceof String)) {
+            return super.containsKey(key);
+        }
+        return find((String) key) >= 0;
+    }
+
+    @Override
+    protected void decode(Map<String, String> target) {
+        for (int line = 0; line < count; ++line) {
+            int start = lines[line * 3];
+            int colon = lines[line * 3 + 1];
+            String name = new String(bytes, start, colon - start, ISO_8859_1);
+            target.put(name.toLowerCase(Locale.US), value(line));
+        }
+    }
+
+    /**
+     * the last line with the name wins, as with repeated puts.
+     */
+    private int find(String name) {
+        int length = name.length();
+        for (int line = count - 1; line >= 0; --line) {
+            int start = lines[line * 3];
+            int colon = lines[line * 3 + 1];
+            if (colon - start != length) {
+                continue;
+            }
+            int index = 0;
+            while (index < length && lower(bytes[start + index]) == lower(name.charAt(index))) {
+                index++;
+            }
+            if (index == length) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    private String value(int line) {
+        int start = lines[line * 3 + 1] + 1;
+        int end = lines[line * 3 + 2];
+        while (start < end && isSpace(bytes[start])) {
+            start++;
+        }
+        while (end > start && isSpace(bytes[end - 1])) {
+            end--;
+        }
+        return new String(bytes, start, end - start, ISO_8859_1);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+}
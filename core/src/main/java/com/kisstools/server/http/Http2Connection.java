@@ -0,0 +1,1294 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.http2.Http2Codec;
+import com.kisstools.server.http2.Http2Exception;
+import com.kisstools.server.http2.HpackDecoder;
+import com.kisstools.server.http2.HpackEncoder;
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.nio.WorkerPool;
+import com.kisstools.server.util.TextUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * an http/2 connection entered with the client preface or an h2c upgrade.
+ * frames are read on the connection thread, each stream is served on the
+ * worker pool like an http/1.1 request. response bodies are buffered per
+ * stream and sent as DATA frames, the stream to send next is picked through
+ * the priority tree within the flow control windows.
+ * <p>
+ * locks are taken in the order connection, write lock, stream.
+ */
+class Http2Connection implements ProtocolUpgrade {
+
+    static final String TAG = "Http2Connection";
+
+    static final String PROTOCOL = "HTTP/2.0";
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+
+    private static final int MAX_HEADER_LIST_SIZE = 32 * 1024;
+
+    /**
+     * compressed header blocks beyond this end the connection.
+     */
+    private static final int MAX_HEADER_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * the connection window given to the client, the stream windows bound
+     * what is buffered so it is refilled as DATA arrives.
+     */
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+
+    /**
+     * nodes kept for PRIORITY frames of streams that are not open.
+     */
+    private static final int MAX_IDLE_NODES = 100;
+
+    private static final int MAX_WEIGHT = 256;
+
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+    private final HttpServer server;
+
+    private final HttpRequest upgradeRequest;
+
+    private final BufferPool bufferPool;
+
+    private UpgradedConnection connection;
+
+    // frame reading, only touched by the connection thread
+    private int prefaceMatched;
+
+    private boolean settingsReceived;
+
+    private final byte[] payload = new byte[Http2Codec.DEFAULT_MAX_FRAME_SIZE];
+
+    private int frameLength = -1;
+
+    private int frameType;
+
+    private int frameFlags;
+
+    private int frameStreamId;
+
+    private int payloadReceived;
+
+    private final HpackDecoder decoder = new HpackDecoder(Http2Codec.DEFAULT_HEADER_TABLE_SIZE,
+            MAX_HEADER_LIST_SIZE);
+
+    private ByteArrayOutputStream headerBlock;
+
+    private int headerStreamId;
+
+    private boolean headerEndStream;
+
+    private boolean headerPriority;
+
+    private int headerDependency;
+
+    private int headerWeight;
+
+    private boolean headerExclusive;
+
+    private int recvWindow = CONNECTION_WINDOW;
+
+    private int recvUnacked;
+
+    private volatile int lastStreamId;
+
+    // streams and send windows, guarded by this
+    private final Map<Integer, Http2Stream> streams = new HashMap<Integer, Http2Stream>();
+
+    private final Http2Stream root = new Http2Stream(0, this);
+
+    private int activeStreams;
+
+    private int idleNodes;
+
+    private long sendWindow = Http2Codec.DEFAULT_WINDOW_SIZE;
+
+    private int initialWindowSize = Http2Codec.DEFAULT_WINDOW_SIZE;
+
+    private boolean goAwayReceived;
+
+    private boolean goAwaySent;
+
+    private boolean closed;
+
+    private volatile int maxFrameSize = Http2Codec.DEFAULT_MAX_FRAME_SIZE;
+
+    // frames waiting for the socket, guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final HpackEncoder encoder = new HpackEncoder();
+
+    private byte[] out;
+
+    private int outLength;
+
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeData();
+        }
+    };
+
+    /**
+     * @param upgradeRequest the request of an h2c upgrade, served as stream 1,
+     *                       null for a connection starting with the preface.
+     */
+    Http2Connection(HttpServer server, HttpRequest upgradeRequest) {
+        this.server = server;
+        this.upgradeRequest = upgradeRequest;
+        this.bufferPool = server.getBufferPool();
+        if (upgradeRequest == null) {
+            // the request parser consumed the part reading like a request head
+            prefaceMatched = Http2Codec.PREFACE_HEAD_LENGTH;
+        }
+    }
+
+    /**
+     * the start of the client preface as parsed by {@link HttpRequestParser}.
+     */
+    static boolean isPreface(HttpRequest request) {
+        return "PRI".equals(request.method) && "*".equals(request.path)
+                && PROTOCOL.equals(request.protocol) && request.header.isEmpty();
+    }
+
+    /**
+     * an http/1.1 request asking for h2c. requests with a body stay on
+     * http/1.1, the body would have to be read before switching.
+     */
+    static boolean isUpgrade(HttpRequest request) {
+        String settings = request.header.get("http2-settings");
+        return "HTTP/1.1".equals(request.protocol) && request.body == null
+                && TextUtil.hasToken(request.header.get("upgrade"), Http2Codec.H2C)
+                && TextUtil.hasToken(request.header.get("connection"), "http2-settings")
+                && settings != null && Http2Codec.decodeSettingsHeader(settings) != null;
+    }
+
+    /**
+     * headers of http/1.1 connections, not allowed in http/2.
+     */
+    static boolean isConnectionHeader(String name) {
+        return CONNECTION_HEADERS.contains(name);
+    }
+
+    @Override
+    public void onUpgraded(UpgradedConnection connection) {
+        this.connection = connection;
+        connection.setWritableListener(new Runnable() {
+            @Override
+            public void run() {
+                scheduleData();
+            }
+        });
+        server.getHttpMetrics().http2Connections.increment();
+        byte[] settings = Http2Codec.encodeSettings(
+                Http2Codec.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS,
+                Http2Codec.SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        byte[] windowUpdate = Http2Codec.encodeWindowUpdate(0,
+                CONNECTION_WINDOW - Http2Codec.DEFAULT_WINDOW_SIZE);
+        writeControl(settings, windowUpdate);
+        if (upgradeRequest == null) {
+            return;
+        }
+        try {
+            byte[] upgradeSettings = Http2Codec.decodeSettingsHeader(
+                    upgradeRequest.header.get("http2-settings"));
+            applySettings(upgradeSettings, 0, upgradeSettings.length);
+        } catch (Http2Exception e) {
+            goAway(e.getErrorCode(), e.getMessage());
+            return;
+        }
+        // the request of the upgrade is stream 1, already half closed
+        HttpRequest request = new HttpRequest();
+        request.method = upgradeRequest.method;
+        request.path = upgradeRequest.path;
+        request.query = upgradeRequest.query;
+        request.protocol = PROTOCOL;
+        request.remoteAddress = upgradeRequest.remoteAddress;
+        for (Map.Entry<String, String> entry : upgradeRequest.header.entrySet()) {
+            String name = entry.getKey();
+            if (!isConnectionHeader(name) && !"http2-settings".equals(name)) {
+                request.header.put(name, entry.getValue());
+            }
+        }
+        lastStreamId = 1;
+        Http2Stream stream;
+        synchronized (this) {
+            stream = openStream(1, request, true);
+            attach(stream, root);
+        }
+        dispatch(stream);
+    }
+
+    @Override
+    public void onReadable(UpgradedConnection connection, ByteBuffer buffer) throws IOException {
+        try {
+            if (goAwaySent || !readPreface(buffer)) {
+                buffer.position(buffer.limit());
+                return;
+            }
+            while (readFrame(buffer)) {
+                try {
+                    handleFrame();
+                } catch (Http2Exception e) {
+                    if (e.isConnectionError()) {
+                        throw e;
+                    }
+                    if (DebugLog.isEnabled()) {
+                        ServerLog.d(TAG, "stream " + e.getStreamId() + " error " + e.getMessage());
+                    }
+                    resetStream(e.getStreamId(), e.getErrorCode());
+                }
+            }
+        } catch (Http2Exception e) {
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "connection error " + e.getMessage() + " " + connection.getRemoteAddress());
+            }
+            buffer.position(buffer.limit());
+            goAway(e.getErrorCode(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void onClosed(UpgradedConnection connection) {
+        List<Http2Stream> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<Http2Stream>(streams.values());
+            streams.clear();
+            root.children.clear();
+            activeStreams = 0;
+        }
+        IOException cause = new EOFException("connection closed");
+        for (Http2Stream stream : open) {
+            stream.onReset(cause);
+        }
+        writeLock.lock();
+        try {
+            if (out != null) {
+                bufferPool.release(out);
+                out = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return false while the preface is incomplete.
+     */
+    private boolean readPreface(ByteBuffer buffer) throws Http2Exception {
+        byte[] preface = Http2Codec.PREFACE;
+        while (prefaceMatched < preface.length) {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            if (buffer.get() != preface[prefaceMatched++]) {
+                throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "bad client preface");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true once a whole frame is in the payload.
+     */
+    private boolean readFrame(ByteBuffer buffer) throws Http2Exception {
+        if (frameLength < 0) {
+            if (buffer.remaining() < Http2Codec.FRAME_HEADER_SIZE) {
+                return false;
+            }
+            frameLength = (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | buffer.get() & 0xff;
+            frameType = buffer.get() & 0xff;
+            frameFlags = buffer.get() & 0xff;
+            frameStreamId = buffer.getInt() & Integer.MAX_VALUE;
+            payloadReceived = 0;
+            if (frameLength > payload.length) {
+                throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "frame of " + frameLength + " bytes");
+            }
+            if (!settingsReceived && frameType != Http2Codec.TYPE_SETTINGS) {
+                throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "preface without SETTINGS");
+            }
+        }
+        int count = Math.min(buffer.remaining(), frameLength - payloadReceived);
+        buffer.get(payload, payloadReceived, count);
+        payloadReceived += count;
+        return payloadReceived == frameLength;
+    }
+
+    private void handleFrame() throws Http2Exception {
+        int length = frameLength;
+        int flags = frameFlags;
+        int streamId = frameStreamId;
+        frameLength = -1;
+        if (headerBlock != null && frameType != Http2Codec.TYPE_CONTINUATION) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "header block interrupted");
+        }
+        switch (frameType) {
+            case Http2Codec.TYPE_DATA:
+                onData(flags, streamId, length);
+                break;
+            case Http2Codec.TYPE_HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case Http2Codec.TYPE_PRIORITY:
+                onPriority(streamId, length);
+                break;
+            case Http2Codec.TYPE_RST_STREAM:
+                onRstStream(streamId, length);
+                break;
+            case Http2Codec.TYPE_SETTINGS:
+                onSettings(flags, streamId, length);
+                break;
+            case Http2Codec.TYPE_PUSH_PROMISE:
+                throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "PUSH_PROMISE from a client");
+            case Http2Codec.TYPE_PING:
+                onPing(flags, streamId, length);
+                break;
+            case Http2Codec.TYPE_GOAWAY:
+                onGoAway(streamId);
+                break;
+            case Http2Codec.TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case Http2Codec.TYPE_CONTINUATION:
+                onContinuation(flags, streamId, length);
+                break;
+            default:
+                // unknown frame types are ignored
+                break;
+        }
+    }
+
+    /**
+     * @return the padding length of a PADDED frame, 0 otherwise.
+     */
+    private int padding(int flags, int length) throws Http2Exception {
+        if ((flags & Http2Codec.FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (length < 1 || (payload[0] & 0xff) >= length) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "bad padding");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private void onData(int flags, int streamId, int length) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "DATA on stream 0");
+        }
+        int pad = padding(flags, length);
+        int offset = (flags & Http2Codec.FLAG_PADDED) == 0 ? 0 : 1;
+        int dataLength = length - offset - pad;
+        recvWindow -= length;
+        if (recvWindow < 0) {
+            throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, 0, "connection window exceeded");
+        }
+        creditConnection(length);
+        boolean endStream = (flags & Http2Codec.FLAG_END_STREAM) != 0;
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            if (stream == null || !stream.opened) {
+                if (streamId > lastStreamId) {
+                    throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "DATA on idle stream " + streamId);
+                }
+                // sent before our reset reached the client
+                return;
+            }
+            if (stream.remoteClosed) {
+                throw new Http2Exception(Http2Codec.STREAM_CLOSED, streamId, "DATA after END_STREAM");
+            }
+            stream.recvWindow -= length;
+            if (stream.recvWindow < 0) {
+                throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, streamId, "stream window exceeded");
+            }
+            // padding is never read by the handler
+            stream.recvUnacked += length - dataLength;
+            if (endStream) {
+                stream.remoteClosed = true;
+            }
+        }
+        if (dataLength > 0) {
+            stream.body.receive(payload, offset, dataLength);
+        }
+        if (endStream) {
+            stream.body.finish();
+            onRemoteEnd(stream);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "HEADERS on stream 0");
+        }
+        int pad = padding(flags, length);
+        int offset = (flags & Http2Codec.FLAG_PADDED) == 0 ? 0 : 1;
+        headerPriority = (flags & Http2Codec.FLAG_PRIORITY) != 0;
+        if (headerPriority) {
+            if (length - offset - pad < 5) {
+                throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "short HEADERS");
+            }
+            int dependency = getInt(offset);
+            headerExclusive = dependency < 0;
+            headerDependency = dependency & Integer.MAX_VALUE;
+            headerWeight = (payload[offset + 4] & 0xff) + 1;
+            offset += 5;
+        }
+        headerBlock = new ByteArrayOutputStream(Math.max(length - offset - pad, 16));
+        headerBlock.write(payload, offset, length - offset - pad);
+        headerStreamId = streamId;
+        headerEndStream = (flags & Http2Codec.FLAG_END_STREAM) != 0;
+        if ((flags & Http2Codec.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, int length) throws Http2Exception {
+        if (headerBlock == null || streamId != headerStreamId) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "unexpected CONTINUATION");
+        }
+        if (headerBlock.size() + length > MAX_HEADER_BLOCK_SIZE) {
+            throw new Http2Exception(Http2Codec.ENHANCE_YOUR_CALM, 0, "header block too large");
+        }
+        headerBlock.write(payload, 0, length);
+        if ((flags & Http2Codec.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws Http2Exception {
+        byte[] block = headerBlock.toByteArray();
+        headerBlock = null;
+        int streamId = headerStreamId;
+        boolean endStream = headerEndStream;
+        // decoded for every stream, the table has to follow all of them
+        List<String> fields = decoder.decode(block, block.length);
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+        if (stream != null && stream.opened) {
+            onTrailers(stream, endStream);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            // trailers sent before our reset reached the client
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "even stream id " + streamId);
+        }
+        lastStreamId = streamId;
+        if (headerPriority && headerDependency == streamId) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, streamId, "stream depends on itself");
+        }
+        if (fields == null) {
+            rejectHeaders(streamId, endStream);
+            return;
+        }
+        HttpRequest request = createRequest(streamId, fields);
+        synchronized (this) {
+            if (activeStreams >= MAX_CONCURRENT_STREAMS) {
+                throw new Http2Exception(Http2Codec.REFUSED_STREAM, streamId, "too many streams");
+            }
+            stream = openStream(streamId, request, endStream);
+            if (headerPriority) {
+                setPriority(stream, headerDependency, headerWeight, headerExclusive);
+            } else if (stream.parent == null) {
+                attach(stream, root);
+            }
+        }
+        dispatch(stream);
+    }
+
+    /**
+     * answer a header list beyond the advertised limit with 431.
+     */
+    private void rejectHeaders(int streamId, boolean endStream) {
+        List<String> fields = new ArrayList<String>(2);
+        fields.add(":status");
+        fields.add(String.valueOf(HttpStatus.HEADER_TOO_LARGE.getStatusCode()));
+        server.getHttpMetrics().recordResponse(HttpStatus.HEADER_TOO_LARGE);
+        try {
+            writeLock.lock();
+            try {
+                writeHeaderBlock(streamId, fields, true);
+                flushFrames();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (!endStream) {
+            writeControl(Http2Codec.encodeRstStream(streamId, Http2Codec.NO_ERROR));
+        }
+    }
+
+    private void onTrailers(Http2Stream stream, boolean endStream) throws Http2Exception {
+        if (!endStream) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, stream.id, "trailers without END_STREAM");
+        }
+        synchronized (this) {
+            if (stream.remoteClosed) {
+                throw new Http2Exception(Http2Codec.STREAM_CLOSED, stream.id, "HEADERS after END_STREAM");
+            }
+            stream.remoteClosed = true;
+        }
+        stream.body.finish();
+        onRemoteEnd(stream);
+    }
+
+    private HttpRequest createRequest(int streamId, List<String> fields) throws Http2Exception {
+        HttpRequest request = new HttpRequest();
+        request.protocol = PROTOCOL;
+        request.remoteAddress = connection.getRemoteAddress();
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        boolean regular = false;
+        for (int index = 0; index + 1 < fields.size(); index += 2) {
+            String name = fields.get(index);
+            String value = fields.get(index + 1);
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw malformed(streamId, "pseudo header after regular ones");
+                }
+                if (":method".equals(name) && request.method == null) {
+                    request.method = value;
+                } else if (":path".equals(name) && path == null) {
+                    path = value;
+                } else if (":scheme".equals(name) && scheme == null) {
+                    scheme = value;
+                } else if (":authority".equals(name) && authority == null) {
+                    authority = value;
+                } else {
+                    throw malformed(streamId, "bad pseudo header " + name);
+                }
+                continue;
+            }
+            regular = true;
+            if (!isLowerCase(name) || isConnectionHeader(name)
+                    || "te".equals(name) && !"trailers".equals(value)) {
+                throw malformed(streamId, "bad header " + name);
+            }
+            String previous = request.header.get(name);
+            if (previous != null) {
+                value = previous + ("cookie".equals(name) ? "; " : ", ") + value;
+            }
+            request.header.put(name, value);
+        }
+        if (request.method == null || scheme == null || TextUtil.isEmpty(path)) {
+            throw malformed(streamId, "missing pseudo header");
+        }
+        if (authority != null && !request.header.containsKey("host")) {
+            request.header.put("host", authority);
+        }
+        int question = path.indexOf('?');
+        if (question < 0) {
+            request.path = path;
+        } else {
+            request.path = path.substring(0, question);
+            request.query = new QueryMap(path.substring(question + 1));
+        }
+        return request;
+    }
+
+    private static Http2Exception malformed(int streamId, String message) {
+        return new Http2Exception(Http2Codec.PROTOCOL_ERROR, streamId, message);
+    }
+
+    private static boolean isLowerCase(String name) {
+        for (int index = 0; index < name.length(); index++) {
+            char c = name.charAt(index);
+            if (c >= 'A' && c <= 'Z') {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    /**
+     * holding this.
+     */
+    private Http2Stream openStream(int streamId, HttpRequest request, boolean endStream) {
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            stream = new Http2Stream(streamId, this);
+            streams.put(streamId, stream);
+        } else {
+            // known from a PRIORITY frame
+            idleNodes--;
+        }
+        stream.opened = true;
+        stream.request = request;
+        stream.remoteClosed = endStream;
+        stream.sendWindow = initialWindowSize;
+        stream.recvWindow = Http2Codec.DEFAULT_WINDOW_SIZE;
+        if (!endStream) {
+            String length = request.header.get("content-length");
+            long contentLength = -1;
+            if (length != null) {
+                try {
+                    contentLength = Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+            }
+            stream.body = stream.new RequestPipe(contentLength);
+            request.body = stream.body;
+        }
+        activeStreams++;
+        return stream;
+    }
+
+    private void dispatch(Http2Stream stream) {
+        server.getHttpMetrics().http2Streams.increment();
+        final HttpExchange exchange = new Http2Exchange(server, stream);
+        WorkerPool pool = server.getWorkerPool();
+        boolean accepted = pool != null && pool.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                server.serveRequest(exchange);
+            }
+        });
+        if (!accepted) {
+            server.getHttpMetrics().rejected.increment();
+            resetStream(stream, Http2Codec.REFUSED_STREAM);
+        }
+    }
+
+    private void onPriority(int streamId, int length) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "PRIORITY on stream 0");
+        }
+        if (length != 5) {
+            throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes");
+        }
+        int dependency = getInt(0);
+        boolean exclusive = dependency < 0;
+        dependency &= Integer.MAX_VALUE;
+        int weight = (payload[4] & 0xff) + 1;
+        if (dependency == streamId) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, streamId, "stream depends on itself");
+        }
+        synchronized (this) {
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                if (idleNodes >= MAX_IDLE_NODES) {
+                    return;
+                }
+                stream = new Http2Stream(streamId, this);
+                streams.put(streamId, stream);
+                idleNodes++;
+            }
+            setPriority(stream, dependency, weight, exclusive);
+        }
+    }
+
+    private void onRstStream(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "RST_STREAM of " + length + " bytes");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            if (stream == null || !stream.opened) {
+                return;
+            }
+            closeStream(stream);
+        }
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "stream " + streamId + " reset by client, error " + getInt(0));
+        }
+        stream.onReset(new IOException("stream reset by client"));
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & Http2Codec.FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (length % Http2Codec.SETTING_SIZE != 0) {
+            throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "SETTINGS of " + length + " bytes");
+        }
+        settingsReceived = true;
+        applySettings(payload, 0, length);
+        ByteBuffer ack = ByteBuffer.allocate(Http2Codec.FRAME_HEADER_SIZE);
+        Http2Codec.putFrameHeader(ack, 0, Http2Codec.TYPE_SETTINGS, Http2Codec.FLAG_ACK, 0);
+        writeControl(ack.array());
+        scheduleData();
+    }
+
+    private void applySettings(byte[] settings, int offset, int length) throws Http2Exception {
+        for (int index = offset; index < offset + length; index += Http2Codec.SETTING_SIZE) {
+            int id = (settings[index] & 0xff) << 8 | settings[index + 1] & 0xff;
+            int value = ByteBuffer.wrap(settings, index + 2, 4).getInt();
+            switch (id) {
+                case Http2Codec.SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case Http2Codec.SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "ENABLE_PUSH " + value);
+                    }
+                    break;
+                case Http2Codec.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, 0, "INITIAL_WINDOW_SIZE " + value);
+                    }
+                    updateInitialWindow(value);
+                    break;
+                case Http2Codec.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Codec.DEFAULT_MAX_FRAME_SIZE || value > Http2Codec.MAX_FRAME_SIZE) {
+                        throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "MAX_FRAME_SIZE " + value);
+                    }
+                    maxFrameSize = value;
+                    break;
+                default:
+                    // no server push, no limits on what we send
+                    break;
+            }
+        }
+    }
+
+    private synchronized void updateInitialWindow(int value) throws Http2Exception {
+        int delta = value - initialWindowSize;
+        initialWindowSize = value;
+        for (Http2Stream stream : streams.values()) {
+            if (!stream.opened) {
+                continue;
+            }
+            stream.sendWindow += delta;
+            if (stream.sendWindow > Http2Codec.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, 0, "window overflow");
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, int length) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "PING on stream " + streamId);
+        }
+        if (length != 8) {
+            throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "PING of " + length + " bytes");
+        }
+        if ((flags & Http2Codec.FLAG_ACK) != 0) {
+            return;
+        }
+        ByteBuffer ack = ByteBuffer.allocate(Http2Codec.FRAME_HEADER_SIZE + 8);
+        Http2Codec.putFrameHeader(ack, 8, Http2Codec.TYPE_PING, Http2Codec.FLAG_ACK, 0);
+        ack.put(payload, 0, 8);
+        writeControl(ack.array());
+    }
+
+    private void onGoAway(int streamId) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "GOAWAY on stream " + streamId);
+        }
+        synchronized (this) {
+            goAwayReceived = true;
+            if (activeStreams > 0) {
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(Http2Codec.FRAME_SIZE_ERROR, 0, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, 0, "WINDOW_UPDATE on idle stream " + streamId);
+        }
+        int increment = getInt(0) & Integer.MAX_VALUE;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, streamId, "window increment 0");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Http2Codec.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, 0, "window overflow");
+                }
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null || !stream.opened) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Http2Codec.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, streamId, "window overflow");
+                }
+            }
+        }
+        scheduleData();
+    }
+
+    private int getInt(int offset) {
+        return (payload[offset] & 0xff) << 24 | (payload[offset + 1] & 0xff) << 16
+                | (payload[offset + 2] & 0xff) << 8 | payload[offset + 3] & 0xff;
+    }
+
+    /**
+     * refill the connection window of the client once half of it is used.
+     */
+    private void creditConnection(int length) {
+        recvUnacked += length;
+        if (recvUnacked >= CONNECTION_WINDOW / 2) {
+            writeControl(Http2Codec.encodeWindowUpdate(0, recvUnacked));
+            recvWindow += recvUnacked;
+            recvUnacked = 0;
+        }
+    }
+
+    /**
+     * the handler read body bytes, open the stream window again once half
+     * of it is read.
+     */
+    void onBodyRead(Http2Stream stream, int count) {
+        int increment = 0;
+        synchronized (this) {
+            if (stream.remoteClosed || streams.get(stream.id) != stream) {
+                return;
+            }
+            stream.recvUnacked += count;
+            if (stream.recvUnacked >= Http2Codec.DEFAULT_WINDOW_SIZE / 2) {
+                increment = stream.recvUnacked;
+                stream.recvWindow += increment;
+                stream.recvUnacked = 0;
+            }
+        }
+        if (increment > 0) {
+            writeControl(Http2Codec.encodeWindowUpdate(stream.id, increment));
+        }
+    }
+
+    private void onRemoteEnd(Http2Stream stream) {
+        synchronized (this) {
+            if (stream.endSent && streams.get(stream.id) == stream) {
+                closeStream(stream);
+            }
+        }
+    }
+
+    /**
+     * the last frame of the response is queued.
+     */
+    private void onLocalEnd(Http2Stream stream) {
+        synchronized (this) {
+            if (streams.get(stream.id) != stream) {
+                return;
+            }
+            if (stream.remoteClosed) {
+                closeStream(stream);
+                return;
+            }
+            // the rest of the body fits the window, let it in unread
+            long remaining = stream.body.remaining();
+            if (remaining >= 0 && remaining <= stream.recvWindow) {
+                return;
+            }
+        }
+        // answered before the body arrived, the client can stop sending it
+        resetStream(stream, Http2Codec.NO_ERROR);
+    }
+
+    /**
+     * end a stream from our side and tell the client.
+     */
+    void resetStream(Http2Stream stream, int errorCode) {
+        synchronized (this) {
+            if (streams.get(stream.id) != stream) {
+                return;
+            }
+            closeStream(stream);
+        }
+        stream.onReset(new IOException("stream reset, error " + errorCode));
+        writeControl(Http2Codec.encodeRstStream(stream.id, errorCode));
+    }
+
+    /**
+     * a stream error found while reading, the stream may not be open yet.
+     */
+    private void resetStream(int streamId, int errorCode) {
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+        if (stream != null && stream.opened) {
+            resetStream(stream, errorCode);
+        } else {
+            writeControl(Http2Codec.encodeRstStream(streamId, errorCode));
+        }
+    }
+
+    /**
+     * holding this, remove the stream and move its children to its parent.
+     */
+    private void closeStream(Http2Stream stream) {
+        streams.remove(stream.id);
+        if (stream.opened) {
+            activeStreams--;
+        } else {
+            idleNodes--;
+        }
+        Http2Stream parent = stream.parent;
+        detach(stream);
+        for (Http2Stream child : new ArrayList<Http2Stream>(stream.children)) {
+            detach(child);
+            attach(child, parent == null ? root : parent);
+        }
+        if (goAwayReceived && activeStreams == 0) {
+            connection.close();
+        }
+    }
+
+    /**
+     * holding this, apply the dependency and weight of rfc 7540 section 5.3.
+     */
+    private void setPriority(Http2Stream stream, int dependency, int weight, boolean exclusive) {
+        Http2Stream parent = dependency == 0 ? null : streams.get(dependency);
+        if (parent == null) {
+            parent = root;
+            if (dependency != 0) {
+                // the stream it depends on is gone, use the defaults
+                weight = Http2Stream.DEFAULT_WEIGHT;
+                exclusive = false;
+            }
+        }
+        if (isAncestor(stream, parent)) {
+            // the new parent moves up to where the stream was
+            Http2Stream former = stream.parent == null ? root : stream.parent;
+            detach(parent);
+            attach(parent, former);
+        }
+        if (stream.parent != null) {
+            detach(stream);
+        }
+        if (exclusive) {
+            for (Http2Stream child : new ArrayList<Http2Stream>(parent.children)) {
+                detach(child);
+                attach(child, stream);
+            }
+        }
+        stream.weight = weight;
+        attach(stream, parent);
+    }
+
+    private static boolean isAncestor(Http2Stream stream, Http2Stream node) {
+        for (Http2Stream current = node.parent; current != null; current = current.parent) {
+            if (current == stream) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void attach(Http2Stream stream, Http2Stream parent) {
+        stream.parent = parent;
+        stream.pass = parent.childPass;
+        parent.children.add(stream);
+    }
+
+    private static void detach(Http2Stream stream) {
+        if (stream.parent != null) {
+            stream.parent.children.remove(stream);
+            stream.parent = null;
+        }
+    }
+
+    /**
+     * send the header block of a stream as HEADERS and CONTINUATION frames.
+     *
+     * @return the bytes of the frames.
+     */
+    int writeHeaders(Http2Stream stream, List<String> fields, boolean endStream, boolean flush)
+            throws IOException {
+        if (endStream) {
+            synchronized (this) {
+                stream.endSent = true;
+            }
+        }
+        int length;
+        writeLock.lock();
+        try {
+            if (stream.reset) {
+                throw new IOException("stream reset");
+            }
+            length = writeHeaderBlock(stream.id, fields, endStream);
+            stream.headersSent = true;
+            if (flush) {
+                flushFrames();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (endStream) {
+            onLocalEnd(stream);
+        }
+        return length;
+    }
+
+    /**
+     * holding writeLock, the frames of one block are never split by others.
+     */
+    private int writeHeaderBlock(int streamId, List<String> fields, boolean endStream) throws IOException {
+        byte[] block = encoder.encode(fields);
+        int maxLength = maxPayloadLength();
+        int offset = 0;
+        int total = 0;
+        do {
+            int length = Math.min(block.length - offset, maxLength);
+            int type = offset == 0 ? Http2Codec.TYPE_HEADERS : Http2Codec.TYPE_CONTINUATION;
+            int flags = offset + length == block.length ? Http2Codec.FLAG_END_HEADERS : 0;
+            if (offset == 0 && endStream) {
+                flags |= Http2Codec.FLAG_END_STREAM;
+            }
+            ByteBuffer frame = reserve(Http2Codec.FRAME_HEADER_SIZE + length);
+            Http2Codec.putFrameHeader(frame, length, type, flags, streamId);
+            frame.put(block, offset, length);
+            offset += length;
+            total += Http2Codec.FRAME_HEADER_SIZE + length;
+        } while (offset < block.length);
+        return total;
+    }
+
+    private int maxPayloadLength() {
+        return Math.min(maxFrameSize, bufferPool.getBufferSize() - Http2Codec.FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * holding writeLock, room for a frame in the out buffer.
+     */
+    private ByteBuffer reserve(int size) throws IOException {
+        if (out != null && outLength + size > out.length) {
+            flushFrames();
+        }
+        if (out == null) {
+            out = bufferPool.acquire();
+            outLength = 0;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(out, outLength, size);
+        outLength += size;
+        return frame;
+    }
+
+    /**
+     * holding writeLock.
+     */
+    private void flushFrames() throws IOException {
+        if (out == null) {
+            return;
+        }
+        byte[] frames = out;
+        int length = outLength;
+        out = null;
+        outLength = 0;
+        try {
+            connection.write(ByteBuffer.wrap(frames, 0, length), bufferPool);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * frames written right away, ahead of the queued DATA.
+     */
+    private void writeControl(byte[]... frames) {
+        try {
+            writeLock.lock();
+            try {
+                for (byte[] frame : frames) {
+                    reserve(frame.length).put(frame);
+                }
+                flushFrames();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "write failed " + e.getMessage());
+            }
+        }
+    }
+
+    private void goAway(int errorCode, String message) {
+        synchronized (this) {
+            if (goAwaySent) {
+                return;
+            }
+            goAwaySent = true;
+        }
+        writeControl(Http2Codec.encodeGoAway(lastStreamId, errorCode, message));
+        connection.close();
+    }
+
+    /**
+     * run the writer off the connection thread, inline if the pool is full.
+     */
+    private void scheduleData() {
+        WorkerPool pool = server.getWorkerPool();
+        if (pool == null || !pool.tryExecute(writeTask)) {
+            writeData();
+        }
+    }
+
+    /**
+     * send buffered response bytes as DATA frames while the socket takes
+     * them. the thread finding no other writer does the work, others leave
+     * their data to it.
+     */
+    void writeData() {
+        while (writing.compareAndSet(false, true)) {
+            try {
+                while (connection.isWritable() && writeNextFrame()) {
+                    // keep going
+                }
+                writeLock.lock();
+                try {
+                    flushFrames();
+                } finally {
+                    writeLock.unlock();
+                }
+            } catch (IOException e) {
+                if (DebugLog.isEnabled()) {
+                    ServerLog.d(TAG, "write failed " + e.getMessage());
+                }
+                return;
+            } finally {
+                writing.set(false);
+            }
+            // data may have come while the flag was still set
+            if (!connection.isWritable() || !hasData()) {
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean hasData() {
+        return !closed && select(root) != null;
+    }
+
+    private boolean writeNextFrame() throws IOException {
+        Http2Stream stream;
+        int length;
+        boolean end;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            stream = select(root);
+            if (stream == null) {
+                return false;
+            }
+            // read first, no bytes are added once it is set
+            boolean endOfData = stream.isEndOfData();
+            int available = stream.available();
+            long window = Math.min(sendWindow, stream.sendWindow);
+            length = (int) Math.max(0, Math.min(Math.min(available, maxPayloadLength()), window));
+            end = length == available && endOfData;
+            sendWindow -= length;
+            stream.sendWindow -= length;
+            if (end) {
+                stream.endSent = true;
+            }
+            charge(stream, length);
+        }
+        writeLock.lock();
+        try {
+            ByteBuffer frame = reserve(Http2Codec.FRAME_HEADER_SIZE + length);
+            Http2Codec.putFrameHeader(frame, length, Http2Codec.TYPE_DATA,
+                    end ? Http2Codec.FLAG_END_STREAM : 0, stream.id);
+            stream.takeData(frame.array(), frame.arrayOffset() + frame.position(), length);
+        } finally {
+            writeLock.unlock();
+        }
+        if (end) {
+            onLocalEnd(stream);
+        }
+        return true;
+    }
+
+    /**
+     * holding this, the next stream to send by priority. among siblings the
+     * one with the least virtual time goes first, a stream goes before the
+     * streams depending on it.
+     */
+    private Http2Stream select(Http2Stream node) {
+        Http2Stream best = null;
+        Http2Stream target = null;
+        for (Http2Stream child : node.children) {
+            if (best != null && child.pass >= best.pass) {
+                continue;
+            }
+            Http2Stream candidate = canSend(child) ? child : select(child);
+            if (candidate != null) {
+                best = child;
+                target = candidate;
+            }
+        }
+        return target;
+    }
+
+    private boolean canSend(Http2Stream stream) {
+        if (!stream.opened || !stream.headersSent || stream.endSent || stream.reset) {
+            return false;
+        }
+        boolean endOfData = stream.isEndOfData();
+        if (stream.available() == 0) {
+            return endOfData;
+        }
+        return sendWindow > 0 && stream.sendWindow > 0;
+    }
+
+    /**
+     * holding this, advance the virtual time of the stream and its ancestors
+     * by the bytes sent over their weight.
+     */
+    private void charge(Http2Stream stream, int length) {
+        long bytes = Http2Codec.FRAME_HEADER_SIZE + length;
+        for (Http2Stream node = stream; node.parent != null; node = node.parent) {
+            node.pass += bytes * MAX_WEIGHT / node.weight;
+            node.parent.childPass = node.pass;
+        }
+    }
+
+}
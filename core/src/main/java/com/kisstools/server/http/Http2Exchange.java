@@ -0,0 +1,38 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * a request received on an http/2 stream, the response goes out as the
+ * HEADERS and DATA frames of the stream.
+ */
+class Http2Exchange extends HttpExchange {
+
+    private final HttpServer server;
+
+    private final Http2Stream stream;
+
+    Http2Exchange(HttpServer server, Http2Stream stream) {
+        super(server, stream.request, stream.getOutputStream(), 1, server.completionExecutor, stream);
+        this.server = server;
+        this.stream = stream;
+    }
+
+    @Override
+    boolean writeResponse() throws Exception {
+        server.sendHttp2Response(request, getResponse(), stream);
+        return true;
+    }
+
+    @Override
+    OutputStream openStream() throws IOException {
+        HttpResponse response = getResponse();
+        boolean head = HttpServer.isHead(request);
+        int length = stream.writeHeaders(response, head, true);
+        response.sentBytes = length;
+        server.getHttpMetrics().bytesSent.add(length);
+        return new ResponseStream(head ? null : stream.getOutputStream(), true);
+    }
+
+}
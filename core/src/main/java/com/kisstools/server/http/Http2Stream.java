@@ -0,0 +1,359 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.http2.Http2Codec;
+import com.kisstools.server.http2.Http2Exception;
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * one stream of an {@link Http2Connection} and a node of its priority tree.
+ * the request body arrives in a pipe bounded by the stream window, the
+ * response body waits in a send buffer until the connection picks the
+ * stream for the next DATA frame.
+ */
+class Http2Stream implements HttpExchange.Listener {
+
+    static final int DEFAULT_WEIGHT = 16;
+
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+
+    final int id;
+
+    private final Http2Connection connection;
+
+    // priority tree and stream state, guarded by the connection
+    Http2Stream parent;
+
+    final List<Http2Stream> children = new ArrayList<Http2Stream>(2);
+
+    int weight = DEFAULT_WEIGHT;
+
+    /**
+     * virtual time spent sending among the siblings, the lowest goes next.
+     */
+    long pass;
+
+    /**
+     * pass of the child sent last, new children start from it.
+     */
+    long childPass;
+
+    /**
+     * false for a node only known from a PRIORITY frame.
+     */
+    boolean opened;
+
+    boolean remoteClosed;
+
+    boolean endSent;
+
+    long sendWindow;
+
+    int recvWindow;
+
+    int recvUnacked;
+
+    volatile boolean reset;
+
+    volatile boolean headersSent;
+
+    HttpRequest request;
+
+    RequestPipe body;
+
+    // response bytes not sent yet, guarded by this
+    private byte[] sendBuffer;
+
+    private int sendStart;
+
+    private int sendEnd;
+
+    private boolean endOfData;
+
+    private final OutputStream output = new StreamOutput();
+
+    Http2Stream(int id, Http2Connection connection) {
+        this.id = id;
+        this.connection = connection;
+    }
+
+    OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * send the status and headers of the response.
+     *
+     * @param endStream no body follows.
+     * @param flush     write them now instead of with the first DATA frame.
+     * @return the bytes of the header block.
+     */
+    int writeHeaders(HttpResponse response, boolean endStream, boolean flush) throws IOException {
+        List<String> fields = new ArrayList<String>(2 + 2 * response.header.size());
+        fields.add(":status");
+        fields.add(String.valueOf(response.status.getStatusCode()));
+        for (Map.Entry<String, String> entry : response.header.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.US);
+            if (!Http2Connection.isConnectionHeader(name)) {
+                fields.add(name);
+                fields.add(entry.getValue());
+            }
+        }
+        return connection.writeHeaders(this, fields, endStream, flush);
+    }
+
+    /**
+     * bytes the connection may take, and whether the response ends with them.
+     */
+    synchronized int available() {
+        return sendEnd - sendStart;
+    }
+
+    synchronized boolean isEndOfData() {
+        return endOfData;
+    }
+
+    /**
+     * move buffered bytes into a frame, called by the connection writer only.
+     */
+    synchronized void takeData(byte[] target, int offset, int length) {
+        System.arraycopy(sendBuffer, sendStart, target, offset, length);
+        sendStart += length;
+        if (sendStart == sendEnd) {
+            sendStart = 0;
+            sendEnd = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * the stream ended early, wake up the reader and the writer of the handler.
+     */
+    void onReset(IOException cause) {
+        reset = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        RequestPipe pipe = body;
+        if (pipe != null) {
+            pipe.fail(cause);
+        }
+    }
+
+    @Override
+    public void onComplete(boolean keepAlive) {
+        synchronized (this) {
+            endOfData = true;
+        }
+        connection.writeData();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (!reset) {
+            ServerLog.e(Http2Connection.TAG, "stream exception!", t);
+        } else if (DebugLog.isEnabled()) {
+            ServerLog.d(Http2Connection.TAG, "stream " + id + " reset " + t.getMessage());
+        }
+        connection.resetStream(this, Http2Codec.INTERNAL_ERROR);
+    }
+
+    @Override
+    public void onUpgrade(ProtocolUpgrade upgrade) {
+        // there is no 101 over http/2
+        connection.resetStream(this, Http2Codec.PROTOCOL_ERROR);
+    }
+
+    /**
+     * response body of the handler, writes block while the send buffer is full.
+     */
+    class StreamOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if ("HEAD".equals(request.method)) {
+                return;
+            }
+            while (length > 0) {
+                int count = append(bytes, offset, length);
+                offset += count;
+                length -= count;
+                if (length > 0) {
+                    connection.writeData();
+                    awaitRoom();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            connection.writeData();
+        }
+
+        private int append(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (Http2Stream.this) {
+                if (reset) {
+                    throw new IOException("stream reset");
+                }
+                if (sendBuffer == null) {
+                    sendBuffer = new byte[SEND_BUFFER_SIZE];
+                }
+                if (sendEnd == sendBuffer.length && sendStart > 0) {
+                    System.arraycopy(sendBuffer, sendStart, sendBuffer, 0, sendEnd - sendStart);
+                    sendEnd -= sendStart;
+                    sendStart = 0;
+                }
+                int count = Math.min(length, sendBuffer.length - sendEnd);
+                System.arraycopy(bytes, offset, sendBuffer, sendEnd, count);
+                sendEnd += count;
+                return count;
+            }
+        }
+
+        private void awaitRoom() throws IOException {
+            synchronized (Http2Stream.this) {
+                while (sendEnd - sendStart == sendBuffer.length && !reset) {
+                    try {
+                        Http2Stream.this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("stream write interrupted");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * request body received in DATA frames, the window given to the client
+     * is credited back as the handler reads.
+     */
+    class RequestPipe extends RequestBody {
+
+        private final long contentLength;
+
+        private byte[] pipe;
+
+        private int start;
+
+        private int end;
+
+        private long received;
+
+        private boolean finished;
+
+        private IOException error;
+
+        RequestPipe(long contentLength) {
+            super(null);
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * called by the connection thread, the stream window keeps the data
+         * within the pipe.
+         */
+        synchronized void receive(byte[] data, int offset, int length) throws Http2Exception {
+            if (pipe == null) {
+                pipe = new byte[Http2Codec.DEFAULT_WINDOW_SIZE];
+            }
+            if (end + length > pipe.length) {
+                System.arraycopy(pipe, start, pipe, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end + length > pipe.length) {
+                throw new Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, id, "body beyond the window");
+            }
+            received += length;
+            if (contentLength >= 0 && received > contentLength) {
+                throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, id, "body beyond content-length");
+            }
+            System.arraycopy(data, offset, pipe, end, length);
+            end += length;
+            notifyAll();
+        }
+
+        synchronized void finish() throws Http2Exception {
+            finished = true;
+            notifyAll();
+            if (contentLength >= 0 && received != contentLength) {
+                throw new Http2Exception(Http2Codec.PROTOCOL_ERROR, id, "body shorter than content-length");
+            }
+        }
+
+        /**
+         * @return the declared bytes not received yet, -1 if not declared.
+         */
+        synchronized long remaining() {
+            return contentLength < 0 ? -1 : contentLength - received;
+        }
+
+        synchronized void fail(IOException e) {
+            if (!finished && error == null) {
+                error = e;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized boolean isFinished() {
+            return finished && start == end;
+        }
+
+        /**
+         * a reset stream takes care of unread bodies.
+         */
+        @Override
+        boolean canDrain(long maxSize) {
+            return true;
+        }
+
+        @Override
+        int readBody(byte[] buffer, int offset, int length) throws IOException {
+            int count;
+            synchronized (this) {
+                while (start == end) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    if (finished) {
+                        return -1;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("request body interrupted");
+                    }
+                }
+                count = Math.min(length, end - start);
+                System.arraycopy(pipe, start, buffer, offset, count);
+                start += count;
+                if (start == end) {
+                    start = 0;
+                    end = 0;
+                }
+            }
+            connection.onBodyRead(Http2Stream.this, count);
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.kisstools.server.http;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * formats and parses http dates, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+ */
+public class HttpDate {
+
+    private static final String RFC_1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static final String RFC_1036 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
+
+    private static final String ASCTIME = "EEE MMM d HH:mm:ss yyyy";
+
+    private static final ThreadLocal<SimpleDateFormat[]> FORMATS = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            String[] patterns = {RFC_1123, RFC_1036, ASCTIME};
+            SimpleDateFormat[] formats = new SimpleDateFormat[patterns.length];
+            for (int index = 0; index < patterns.length; ++index) {
+                formats[index] = new SimpleDateFormat(patterns[index], Locale.US);
+                formats[index].setTimeZone(TimeZone.getTimeZone("GMT"));
+            }
+            return formats;
+        }
+    };
+
+    public static String format(long time) {
+        return FORMATS.get()[0].format(new Date(time));
+    }
+
+    /**
+     * @return milliseconds since epoch, -1 if the text is no valid http date.
+     */
+    public static long parse(String text) {
+        if (text == null) {
+            return -1;
+        }
+        for (SimpleDateFormat format : FORMATS.get()) {
+            try {
+                return format.parse(text.trim()).getTime();
+            } catch (ParseException ignored) {
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,304 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.util.TextUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * one request and its response on a connection. a response completed while
+ * the handler is still running is sent by the dispatching thread, one
+ * completed later is resumed on the exchange executor.
+ */
+class HttpExchange implements ResponseCallback {
+
+    interface Listener {
+
+        /**
+         * the response is fully written.
+         */
+        void onComplete(boolean keepAlive);
+
+        void onError(Throwable t);
+
+        /**
+         * a 101 response is written, the connection belongs to the upgrade.
+         */
+        void onUpgrade(ProtocolUpgrade upgrade);
+    }
+
+    final HttpRequest request;
+
+    private final HttpServer server;
+
+    private final OutputStream outputStream;
+
+    private final int served;
+
+    private final long startNanos;
+
+    private String route;
+
+    private final Executor executor;
+
+    private final Listener listener;
+
+    private final AtomicBoolean completed;
+
+    private HttpResponse response;
+
+    private boolean dispatching;
+
+    private Runnable pending;
+
+    HttpExchange(HttpServer server, HttpRequest request, OutputStream outputStream, int served,
+                 Executor executor, Listener listener) {
+        this.server = server;
+        this.request = request;
+        this.outputStream = outputStream;
+        this.served = served;
+        this.executor = executor;
+        this.listener = listener;
+        this.completed = new AtomicBoolean();
+        this.response = new HttpResponse();
+        this.startNanos = System.nanoTime();
+    }
+
+    HttpResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * the pattern of the matched route, latencies are recorded under it.
+     */
+    void setRoute(String route) {
+        this.route = route;
+    }
+
+    void dispatch(AsyncRequestHandler handler) {
+        synchronized (this) {
+            dispatching = true;
+        }
+        try {
+            handler.handleRequest(request, response, this);
+        } catch (Throwable t) {
+            fail(t);
+        }
+        Runnable task;
+        synchronized (this) {
+            dispatching = false;
+            task = pending;
+            pending = null;
+        }
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void complete(final boolean handled) {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        resume(new Runnable() {
+            @Override
+            public void run() {
+                if (!handled) {
+                    response = new HttpResponse();
+                    response.status = HttpStatus.NOT_FOUND;
+                    response.setBody(HttpStatus.NOT_FOUND.getDescription());
+                }
+                send();
+            }
+        });
+    }
+
+    @Override
+    public void fail(final Throwable t) {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        resume(new Runnable() {
+            @Override
+            public void run() {
+                response = new HttpResponse();
+                response.status = HttpStatus.INTERNAL_ERROR;
+                response.setBody(TextUtil.stringify(t));
+                send();
+            }
+        });
+    }
+
+    @Override
+    public OutputStream stream() throws IOException {
+        if (!completed.compareAndSet(false, true)) {
+            throw new IllegalStateException("response already completed");
+        }
+        if (response.status == null) {
+            response.status = HttpStatus.OK;
+        }
+        try {
+            return openStream();
+        } catch (IOException e) {
+            listener.onError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * write the head of a streamed response.
+     *
+     * @return the stream for the body.
+     */
+    OutputStream openStream() throws IOException {
+        boolean head = HttpServer.isHead(request);
+        boolean sized = response.header.containsKey("Content-Length");
+        boolean chunked = !head && !sized && !"HTTP/1.0".equals(request.protocol);
+        boolean keepAlive = (head || sized || chunked)
+                && server.isKeepAlive(request, response, served, chunked);
+        int length = server.writeHead(response, outputStream, keepAlive, chunked);
+        response.sentBytes = length;
+        server.getHttpMetrics().bytesSent.add(length);
+        outputStream.flush();
+        OutputStream out = chunked ? new ChunkedOutputStream(outputStream) : outputStream;
+        return new ResponseStream(head ? null : out, keepAlive);
+    }
+
+    private void resume(Runnable task) {
+        synchronized (this) {
+            if (dispatching) {
+                pending = task;
+                return;
+            }
+        }
+        executor.execute(task);
+    }
+
+    private void send() {
+        try {
+            boolean keepAlive = writeResponse();
+            server.recordExchange(route, request, response, startNanos);
+            if (response.status == HttpStatus.SWITCH_PROTOCOL && response.upgrade != null) {
+                listener.onUpgrade(response.upgrade);
+            } else {
+                listener.onComplete(keepAlive);
+            }
+        } catch (Throwable t) {
+            listener.onError(t);
+        }
+    }
+
+    /**
+     * write a completed response.
+     *
+     * @return whether the connection stays open for the next request.
+     */
+    boolean writeResponse() throws Exception {
+        return server.sendExchangeResponse(request, response, outputStream, served);
+    }
+
+    /**
+     * body stream handed to a streaming handler.
+     */
+    class ResponseStream extends OutputStream {
+
+        // null drops the body of a HEAD response
+        private final OutputStream out;
+
+        private final boolean keepAlive;
+
+        // not a monitor, writes may block a virtual thread
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private boolean closed;
+
+        ResponseStream(OutputStream out, boolean keepAlive) {
+            this.out = out;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            lock.lock();
+            try {
+                if (out == null) {
+                    return;
+                }
+                out.write(b);
+                sent(1);
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            lock.lock();
+            try {
+                if (out == null) {
+                    return;
+                }
+                out.write(bytes, offset, length);
+                sent(length);
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void sent(int count) {
+            response.sentBytes += count;
+            server.getHttpMetrics().bytesSent.add(count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            lock.lock();
+            try {
+                if (out != null) {
+                    out.flush();
+                }
+                outputStream.flush();
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (out instanceof ChunkedOutputStream) {
+                    ((ChunkedOutputStream) out).finish();
+                }
+                closed = true;
+                server.recordExchange(route, request, response, startNanos);
+                listener.onComplete(keepAlive);
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void abort(IOException e) throws IOException {
+            if (!closed) {
+                closed = true;
+                listener.onError(e);
+            }
+            throw e;
+        }
+    }
+
+}
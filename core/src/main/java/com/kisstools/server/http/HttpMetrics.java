@@ -0,0 +1,95 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.metrics.LatencyHistogram;
+import com.kisstools.server.metrics.MetricsRegistry;
+import com.kisstools.server.metrics.StripedCounter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * instruments of the http server, looked up once so recording is a plain
+ * counter update.
+ */
+class HttpMetrics {
+
+    private static final String UNMATCHED = "unmatched";
+
+    final MetricsRegistry registry;
+
+    final StripedCounter connections;
+
+    final StripedCounter rejected;
+
+    final StripedCounter requests;
+
+    final StripedCounter bytesSent;
+
+    final StripedCounter http2Connections;
+
+    final StripedCounter http2Streams;
+
+    private final StripedCounter[] responses;
+
+    private final ConcurrentMap<String, LatencyHistogram> routes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, StripedCounter> timeouts = new ConcurrentHashMap<>();
+
+    HttpMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        connections = registry.counter("http_connections_total", "accepted connections");
+        rejected = registry.counter("http_rejected_total", "connections and requests refused with 503");
+        requests = registry.counter("http_requests_total", "completed requests");
+        bytesSent = registry.counter("http_sent_bytes_total", "response bytes written");
+        http2Connections = registry.counter("http2_connections_total", "connections switched to http/2");
+        http2Streams = registry.counter("http2_streams_total", "http/2 streams served");
+        responses = new StripedCounter[6];
+        for (int index = 1; index < responses.length; index++) {
+            responses[index] = registry.counter("http_responses_total",
+                    "code=\"" + index + "xx\"", "responses by status class");
+        }
+    }
+
+    void recordResponse(HttpStatus status) {
+        int index = status.getStatusCode() / 100;
+        if (index > 0 && index < responses.length) {
+            responses[index].increment();
+        }
+    }
+
+    /**
+     * count a completed request and its latency under the matched route.
+     */
+    void recordExchange(String route, HttpStatus status, long micros) {
+        requests.increment();
+        recordResponse(status);
+        if (route == null) {
+            route = UNMATCHED;
+        }
+        LatencyHistogram histogram = routes.get(route);
+        if (histogram == null) {
+            histogram = registry.histogram("http_request_duration_seconds",
+                    "route=\"" + escape(route) + "\"", "request latency by route");
+            routes.put(route, histogram);
+        }
+        histogram.record(micros);
+    }
+
+    /**
+     * count a connection closed by one of its timeouts.
+     */
+    void recordTimeout(String reason) {
+        StripedCounter counter = timeouts.get(reason);
+        if (counter == null) {
+            counter = registry.counter("http_timeouts_total",
+                    "reason=\"" + escape(reason) + "\"", "connections closed by a timeout");
+            timeouts.put(reason, counter);
+        }
+        counter.increment();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
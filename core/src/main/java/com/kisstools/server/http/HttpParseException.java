@@ -0,0 +1,23 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+
+/**
+ * a malformed or oversized request, answered with the status before closing.
+ */
+public class HttpParseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final HttpStatus status;
+
+    public HttpParseException(HttpStatus status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+}
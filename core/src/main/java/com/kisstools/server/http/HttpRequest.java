@@ -0,0 +1,44 @@
+package com.kisstools.server.http;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by dawson on 10/11/15.
+ */
+public class HttpRequest {
+
+    public String method;
+
+    public String path;
+
+    public String protocol;
+
+    public Map<String, String> query;
+
+    public Map<String, String> header;
+
+    /**
+     * path parameters of the matched route, the wildcard remainder is under "*".
+     */
+    public Map<String, String> params;
+
+    /**
+     * null if the request has no body, otherwise read it before completing
+     * the response, unread bodies are skipped or close the connection.
+     */
+    public RequestBody body;
+
+    /**
+     * the client of the connection.
+     */
+    public SocketAddress remoteAddress;
+
+    public HttpRequest() {
+        header = new HashMap<>();
+        query = new HashMap<>();
+        params = new HashMap<>();
+    }
+
+}
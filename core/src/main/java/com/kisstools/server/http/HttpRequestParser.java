@@ -0,0 +1,196 @@
+package com.kisstools.server.http;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * incremental parser of request heads working on raw bytes. bytes can be fed
+ * in any slices, e.g. partial reads of a non-blocking socket, parsing resumes
+ * where the last call stopped. one parser serves the requests of one
+ * connection one after another.
+ */
+public class HttpRequestParser {
+
+    private static final int MAX_REQUEST_LINE = 8 * 1024;
+
+    private static final int MAX_HEADER_SIZE = 32 * 1024;
+
+    private static final int MAX_HEADER_COUNT = 100;
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private byte[] head;
+
+    private int length;
+
+    private int lineStart;
+
+    private int requestLineEnd;
+
+    private int[] lines;
+
+    private int count;
+
+    public HttpRequestParser() {
+        head = new byte[INITIAL_SIZE];
+        lines = new int[16 * 3];
+        reset();
+    }
+
+    /**
+     * consume bytes up to the end of the next request head.
+     *
+     * @return the request once its head is complete, null if more bytes are needed.
+     */
+    public HttpRequest parse(ByteBuffer buffer) throws HttpParseException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (length == 0 && (b == '\r' || b == '\n')) {
+                // empty lines before a request are ignored
+                continue;
+            }
+            // every byte counts, a line end too
+            if (length == MAX_HEADER_SIZE) {
+                throw new HttpParseException(HttpStatus.HEADER_TOO_LARGE, "header too large");
+            }
+            if (length == head.length) {
+                head = Arrays.copyOf(head, Math.min(head.length * 2, MAX_HEADER_SIZE));
+            }
+            head[length++] = b;
+            if (b != '\n') {
+                if (requestLineEnd < 0 && length > MAX_REQUEST_LINE) {
+                    throw new HttpParseException(HttpStatus.URI_TOO_LONG, "request line too long");
+                }
+                continue;
+            }
+
+            int lineEnd = length - 1;
+            if (lineEnd > lineStart && head[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (requestLineEnd < 0) {
+                requestLineEnd = lineEnd;
+            } else if (lineEnd == lineStart) {
+                HttpRequest request = createRequest();
+                reset();
+                return request;
+            } else {
+                addHeaderLine(lineStart, lineEnd);
+            }
+            lineStart = length;
+        }
+        return null;
+    }
+
+    /**
+     * true if part of a request head has been received.
+     */
+    public boolean hasPartialRequest() {
+        return length > 0;
+    }
+
+    private void reset() {
+        length = 0;
+        lineStart = 0;
+        requestLineEnd = -1;
+        count = 0;
+    }
+
+    private void addHeaderLine(int start, int end) throws HttpParseException {
+        if (head[start] == ' ' || head[start] == '\t') {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "obsolete line folding");
+        }
+        int colon = start;
+        while (colon < end && head[colon] != ':') {
+            if (!isTokenChar(head[colon])) {
+                throw new HttpParseException(HttpStatus.BAD_REQUEST, "invalid header name");
+            }
+            colon++;
+        }
+        if (colon == start || colon == end) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "invalid header line");
+        }
+        if (count == MAX_HEADER_COUNT) {
+            throw new HttpParseException(HttpStatus.HEADER_TOO_LARGE, "too many headers");
+        }
+        if ((count + 1) * 3 > lines.length) {
+            lines = Arrays.copyOf(lines, lines.length * 2);
+        }
+        lines[count * 3] = start;
+        lines[count * 3 + 1] = colon;
+        lines[count * 3 + 2] = end;
+        count++;
+    }
+
+    private HttpRequest createRequest() throws HttpParseException {
+        int methodEnd = indexOf(' ', 0, requestLineEnd);
+        int targetEnd = indexOf(' ', methodEnd + 1, requestLineEnd);
+        if (methodEnd <= 0 || targetEnd <= methodEnd + 1 || targetEnd == requestLineEnd - 1) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "malformed request line");
+        }
+        for (int index = 0; index < methodEnd; ++index) {
+            if (!isTokenChar(head[index])) {
+                throw new HttpParseException(HttpStatus.BAD_REQUEST, "invalid method");
+            }
+        }
+        HttpRequest request = new HttpRequest();
+        request.method = ascii(0, methodEnd);
+        request.protocol = ascii(targetEnd + 1, requestLineEnd);
+        if (!request.protocol.startsWith("HTTP/")) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "invalid protocol");
+        }
+        String target = ascii(methodEnd + 1, targetEnd);
+        // the http/2 preface starts like a request without headers
+        boolean preface = request.protocol.equals("HTTP/2.0") && request.method.equals("PRI")
+                && target.equals("*") && count == 0;
+        if (!preface && !request.protocol.equals("HTTP/1.1") && !request.protocol.equals("HTTP/1.0")) {
+            throw new HttpParseException(HttpStatus.UNSUPPORTED_HTTP_VERSION, request.protocol);
+        }
+
+        int question = target.indexOf('?');
+        if (question < 0) {
+            request.path = target;
+        } else {
+            request.path = target.substring(0, question);
+            request.query = new QueryMap(target.substring(question + 1));
+        }
+
+        // header values keep pointing into a private copy of the head
+        int base = requestLineEnd;
+        byte[] bytes = Arrays.copyOfRange(head, base, lineStart);
+        int[] offsets = new int[count * 3];
+        for (int index = 0; index < offsets.length; ++index) {
+            offsets[index] = lines[index] - base;
+        }
+        request.header = new HeaderMap(bytes, offsets, count);
+        return request;
+    }
+
+    private int indexOf(int c, int from, int to) {
+        for (int index = from; index < to; ++index) {
+            if (head[index] == c) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private String ascii(int start, int end) {
+        return new String(head, start, end - start, HeaderMap.ISO_8859_1);
+    }
+
+    private static boolean isTokenChar(byte b) {
+        if (b <= ' ' || b >= 127) {
+            return false;
+        }
+        switch (b) {
+            case '(': case ')': case '<': case '>': case '@': case ',': case ';': case ':':
+            case '\\': case '"': case '/': case '[': case ']': case '?': case '=': case '{':
+            case '}':
+                return false;
+            default:
+                return true;
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.kisstools.server.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by dawson on 10/11/15.
+ */
+
+public class HttpResponse {
+
+    public HttpStatus status;
+
+    public Map<String, String> header;
+
+    public InputStream body;
+
+    /**
+     * file content sent instead of body, without copying through the heap.
+     */
+    public FileRegion region;
+
+    /**
+     * body produced while sending, chunked unless a Content-Length is set.
+     */
+    public BodyWriter writer;
+
+    /**
+     * takes over the connection once a {@link HttpStatus#SWITCH_PROTOCOL}
+     * response is sent.
+     */
+    public ProtocolUpgrade upgrade;
+
+    /**
+     * head and body bytes written, set once the response is sent.
+     */
+    long sentBytes;
+
+    public HttpResponse() {
+        header = new HashMap<String, String>();
+    }
+
+    public void setBody(String bodyText) {
+        byte[] bytes;
+        try {
+            bytes = bodyText.getBytes("UTF-8");
+        } catch (Throwable t) {
+            bytes = new byte[0];
+        }
+        setBody(bytes);
+    }
+
+    public void setBody(byte[] bytes) {
+        this.header.put("Content-Length", "" + bytes.length);
+        this.body = new ByteArrayInputStream(bytes);
+        this.region = null;
+        this.writer = null;
+    }
+
+    public void setBody(FileRegion region) {
+        this.header.put("Content-Length", "" + region.length);
+        this.region = region;
+        this.body = null;
+        this.writer = null;
+    }
+
+    public void setBody(BodyWriter writer) {
+        this.header.remove("Content-Length");
+        this.writer = writer;
+        this.body = null;
+        this.region = null;
+    }
+}
\ No newline at end of file
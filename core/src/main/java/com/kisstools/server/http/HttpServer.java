@@ -0,0 +1,1408 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.http2.Http2Codec;
+import com.kisstools.server.log.AccessLog;
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.metrics.MetricsRegistry;
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.nio.ConnectionHandler;
+import com.kisstools.server.nio.ConnectionTimeout;
+import com.kisstools.server.nio.FileRegionWriter;
+import com.kisstools.server.nio.NioConnection;
+import com.kisstools.server.nio.NioServer;
+import com.kisstools.server.nio.ServerEngine;
+import com.kisstools.server.nio.ThreadMode;
+import com.kisstools.server.nio.TimerWheel;
+import com.kisstools.server.nio.WorkerPool;
+import com.kisstools.server.util.IOUtil;
+import com.kisstools.server.util.TextUtil;
+import com.kisstools.server.websocket.WebSocketHandler;
+import com.kisstools.server.websocket.WebSocketUpgrade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by dawson on 10/9/15.
+ */
+public class HttpServer {
+
+    public static final String TAG = "HttpServer";
+
+    private static final int HTTP_PORT = 7777;
+
+    private static final int HEADER_TIMEOUT = 10000;
+
+    private static final int KEEP_ALIVE_TIMEOUT = 15000;
+
+    private static final int BODY_TIMEOUT = 30000;
+
+    private static final int MIN_DATA_RATE = 240;
+
+    /**
+     * reason of an expired {@link #setHeaderTimeout(int)}.
+     */
+    static final String HEADER = "header";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final int MAX_KEEP_ALIVE_REQUESTS = 100;
+
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;
+
+    private static final int MAX_CONNECTIONS = 256;
+
+    private static final int WORKER_THREADS = 64;
+
+    private static final int WORKER_QUEUE_SIZE = 128;
+
+    private static final int RETRY_AFTER = 5;
+
+    private int httpPort = HTTP_PORT;
+
+    private ServerSocket serverSocket;
+
+    private int headerTimeout = HEADER_TIMEOUT;
+
+    private int keepAliveTimeout = KEEP_ALIVE_TIMEOUT;
+
+    private int bodyTimeout = BODY_TIMEOUT;
+
+    private int minDataRate = MIN_DATA_RATE;
+
+    private int maxKeepAliveRequests = MAX_KEEP_ALIVE_REQUESTS;
+
+    private Thread serverThread;
+
+    private final ServerEngine engine;
+
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    private NioServer nioServer;
+
+    private int maxConnections = MAX_CONNECTIONS;
+
+    private int workerThreads = WORKER_THREADS;
+
+    private int workerQueueSize = WORKER_QUEUE_SIZE;
+
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    private int retryAfter = RETRY_AFTER;
+
+    private volatile WorkerPool workerPool;
+
+    private TimerWheel timers;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private final Set<Socket> connections;
+
+    private final Router<AsyncRequestHandler> router;
+
+    private final ContentEncoder contentEncoder = new ContentEncoder();
+
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    private final HttpMetrics metrics = new HttpMetrics(new MetricsRegistry());
+
+    private final FileHandler fileHandler = new FileHandler();
+
+    private volatile AccessLog accessLog;
+
+    private volatile boolean http2Enabled = true;
+
+    public HttpServer() {
+        this(HTTP_PORT);
+    }
+
+    public HttpServer(int port) {
+        this(port, ServerEngine.BLOCKING);
+    }
+
+    public HttpServer(int port, ServerEngine engine) {
+        this.httpPort = port;
+        this.engine = engine;
+        router = new Router<AsyncRequestHandler>();
+        connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+        registerGauges(metrics.registry);
+        addHandler("/file", fileHandler);
+    }
+
+    public void setHttpPort(int port) {
+        this.httpPort = port;
+    }
+
+    public int getHttpPort() {
+        return this.httpPort;
+    }
+
+    /**
+     * idle time in milliseconds a persistent connection waits for the next request.
+     */
+    public void setKeepAliveTimeout(int timeout) {
+        this.keepAliveTimeout = timeout;
+    }
+
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    /**
+     * milliseconds a client has to send a complete request head, counted
+     * from the connection or the first byte of a keep-alive request.
+     */
+    public void setHeaderTimeout(int timeout) {
+        this.headerTimeout = timeout;
+    }
+
+    public int getHeaderTimeout() {
+        return this.headerTimeout;
+    }
+
+    /**
+     * milliseconds a read of the request body or a write of the response
+     * may wait for the client.
+     */
+    public void setBodyTimeout(int timeout) {
+        this.bodyTimeout = timeout;
+    }
+
+    public int getBodyTimeout() {
+        return this.bodyTimeout;
+    }
+
+    /**
+     * bytes per second a body transfer has to average over the time spent
+     * waiting for the client, after a few seconds of grace. 0 disables it.
+     */
+    public void setMinDataRate(int bytesPerSecond) {
+        this.minDataRate = bytesPerSecond;
+    }
+
+    public int getMinDataRate() {
+        return this.minDataRate;
+    }
+
+    /**
+     * max requests served on one connection, 1 or less disables keep-alive.
+     */
+    public void setMaxKeepAliveRequests(int count) {
+        this.maxKeepAliveRequests = count;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return this.maxKeepAliveRequests;
+    }
+
+    /**
+     * number of selector threads, only used by {@link ServerEngine#NIO}.
+     */
+    public void setEventLoopCount(int count) {
+        this.eventLoopCount = count;
+    }
+
+    public ServerEngine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * the handler registered at /file, configure uploads, caching and the listing here.
+     */
+    public FileHandler getFileHandler() {
+        return this.fileHandler;
+    }
+
+    /**
+     * gzip/deflate negotiation of responses, configure types or disable it here.
+     */
+    public ContentEncoder getContentEncoder() {
+        return this.contentEncoder;
+    }
+
+    /**
+     * open connections above the limit are answered with 503 and closed.
+     */
+    public void setMaxConnections(int count) {
+        this.maxConnections = count;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * threads serving requests, with the blocking engine each one holds a
+     * connection. takes effect on the next {@link #start()}.
+     */
+    public void setWorkerThreads(int count) {
+        this.workerThreads = count;
+    }
+
+    /**
+     * work waiting for a free thread before new work is refused with 503,
+     * takes effect on the next {@link #start()}.
+     */
+    public void setWorkerQueueSize(int size) {
+        this.workerQueueSize = size;
+    }
+
+    /**
+     * threads of the worker pool, takes effect on the next {@link #start()}.
+     * virtual threads let the blocking engine hold a thread per connection
+     * up to the connection limit, the worker limit grows to match it.
+     */
+    public void setThreadMode(ThreadMode mode) {
+        this.threadMode = mode;
+    }
+
+    public ThreadMode getThreadMode() {
+        return this.threadMode;
+    }
+
+    /**
+     * seconds sent in the Retry-After header of 503 responses.
+     */
+    public void setRetryAfter(int seconds) {
+        this.retryAfter = seconds;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * request, connection and latency metrics, expose them with a {@link MetricsHandler}.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics.registry;
+    }
+
+    HttpMetrics getHttpMetrics() {
+        return metrics;
+    }
+
+    /**
+     * whether clients may switch to cleartext http/2, with the preface or an
+     * "Upgrade: h2c" request.
+     */
+    public void setHttp2Enabled(boolean enabled) {
+        this.http2Enabled = enabled;
+    }
+
+    public boolean isHttp2Enabled() {
+        return this.http2Enabled;
+    }
+
+    WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * sends the responses of nio and http/2 exchanges completed on other
+     * threads. a saturated pool leaves it to the completing thread, which is
+     * a worker or a thread of the handler, never an event loop.
+     */
+    final Executor completionExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            workerPool.executeOrRun(task);
+        }
+    };
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * write one line per completed request, null disables it.
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public AccessLog getAccessLog() {
+        return this.accessLog;
+    }
+
+    void recordExchange(String route, HttpRequest request, HttpResponse response, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        metrics.recordExchange(route, response.status, micros);
+        AccessLog log = accessLog;
+        if (log != null) {
+            log.log(request.remoteAddress, request.method, request.path, request.protocol,
+                    response.status.getStatusCode(), response.sentBytes, micros);
+        }
+    }
+
+    private void registerGauges(MetricsRegistry registry) {
+        registry.gauge("http_connections_active", "open connections", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return connectionCount.get();
+            }
+        });
+        registry.gauge("http_worker_queue_depth", "work waiting for a worker thread", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                WorkerPool pool = workerPool;
+                return pool == null ? 0 : pool.getQueuedCount();
+            }
+        });
+        registry.gauge("http_worker_active", "busy worker threads", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                WorkerPool pool = workerPool;
+                return pool == null ? 0 : pool.getActiveCount();
+            }
+        });
+        final FileCache cache = fileHandler.getFileCache();
+        cache.setCounters(
+                registry.counter("http_file_cache_hits_total", "requests served from the file cache"),
+                registry.counter("http_file_cache_misses_total", "file cache lookups that went to disk"),
+                registry.counter("http_file_cache_evictions_total", "files evicted for more frequent ones"));
+        registry.gauge("http_file_cache_bytes", "bytes of cached files", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return cache.getTotalBytes();
+            }
+        });
+    }
+
+    private boolean acquireConnection() {
+        while (true) {
+            int count = connectionCount.get();
+            if (count >= maxConnections) {
+                return false;
+            }
+            if (connectionCount.compareAndSet(count, count + 1)) {
+                metrics.connections.increment();
+                return true;
+            }
+        }
+    }
+
+    private void removeConnection(Socket socket) {
+        if (connections.remove(socket)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * the complete 503 response sent to refused clients.
+     */
+    private byte[] createBusyResponse() {
+        HttpResponse response = new HttpResponse();
+        response.status = HttpStatus.SERVICE_UNAVAILABLE;
+        response.header.put("Retry-After", String.valueOf(retryAfter));
+        response.setBody(HttpStatus.SERVICE_UNAVAILABLE.getDescription());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try {
+            sendResponse(response, bos, false, false);
+        } catch (Exception e) {
+            ServerLog.e(TAG, "busy response exception", e);
+        }
+        return bos.toByteArray();
+    }
+
+    private void rejectConnection(Socket socket) {
+        metrics.rejected.increment();
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "server busy, reject " + socket.getInetAddress() + ":" + socket.getPort());
+        }
+        try {
+            // fits the socket send buffer, the accept thread does not block
+            socket.getOutputStream().write(createBusyResponse());
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            ServerLog.d(TAG, "reject exception " + e.getMessage());
+        } finally {
+            IOUtil.close(socket);
+        }
+    }
+
+    private void rejectConnection(NioConnection connection) {
+        metrics.rejected.increment();
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "server busy, reject " + connection.getRemoteAddress());
+        }
+        try {
+            connection.write(ByteBuffer.wrap(createBusyResponse()));
+            closeAfterFlush(connection);
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * close once the response is out, a client that stops reading it is
+     * dropped after the body timeout.
+     */
+    private void closeAfterFlush(NioConnection connection) {
+        ConnectionTimeout timeout = connection.getTimeout();
+        timeout.stopWatching();
+        timeout.clearDeadline();
+        timeout.setIdleTimeout(bodyTimeout);
+        connection.closeAfterFlush();
+    }
+
+    class SocketHandler implements Runnable {
+
+        private Socket socket;
+
+        private InetAddress address;
+
+        private int port;
+
+        private final ConnectionTimeout timeout;
+
+        private volatile String expired;
+
+        public SocketHandler(final Socket socket) {
+            this.socket = socket;
+            this.address = socket.getInetAddress();
+            this.port = socket.getPort();
+            // closing the socket ends the reads and writes of the thread
+            this.timeout = new ConnectionTimeout(timers) {
+                @Override
+                protected void onExpired(String reason) {
+                    expired = reason;
+                    metrics.recordTimeout(reason);
+                    IOUtil.close(socket);
+                }
+            };
+        }
+
+        public void run() {
+            OutputStream outputStream = null;
+            InputStream inputStream = null;
+
+            byte[] array = bufferPool.acquire();
+            timeout.expireAfter(headerTimeout, HEADER);
+            try {
+                inputStream = socket.getInputStream();
+                outputStream = new SocketOutputStream(socket, BUFFER_SIZE, timeout);
+                // one buffer per connection, pipelined requests stay in it
+                ByteBuffer buffer = ByteBuffer.wrap(array);
+                buffer.limit(0);
+                HttpRequestParser parser = new HttpRequestParser();
+
+                int served = 0;
+                while (true) {
+                    HttpRequest request;
+                    BodyDecoder decoder;
+                    try {
+                        request = readRequest(inputStream, buffer, parser, served > 0 ? timeout : null);
+                        decoder = request == null ? null : BodyDecoder.create(request);
+                    } catch (HttpParseException e) {
+                        sendError(e.getStatus(), outputStream);
+                        break;
+                    }
+                    if (request == null) {
+                        break;
+                    }
+                    request.remoteAddress = socket.getRemoteSocketAddress();
+                    timeout.setIdleTimeout(0);
+                    timeout.clearDeadline();
+                    timeout.watchIo(bodyTimeout, minDataRate);
+                    if (Http2Connection.isPreface(request)) {
+                        if (!http2Enabled || served > 0) {
+                            sendError(HttpStatus.UNSUPPORTED_HTTP_VERSION, outputStream);
+                            break;
+                        }
+                        timeout.cancel();
+                        new SocketUpgradedConnection(socket, outputStream).serve(
+                                new Http2Connection(HttpServer.this, null), inputStream, buffer);
+                        break;
+                    }
+                    if (decoder != null) {
+                        attachBody(request, new SocketRequestBody(decoder, buffer, inputStream,
+                                socket.getChannel(), timeout), outputStream);
+                    }
+                    served++;
+                    ExchangeWaiter waiter = new ExchangeWaiter();
+                    serveRequest(new HttpExchange(HttpServer.this, request, outputStream, served,
+                            waiter, waiter));
+                    boolean keepAlive = waiter.await();
+                    if (waiter.upgrade != null) {
+                        // the thread stays with the connection until it closes
+                        outputStream.flush();
+                        timeout.cancel();
+                        new SocketUpgradedConnection(socket, outputStream).serve(waiter.upgrade,
+                                inputStream, buffer);
+                        break;
+                    }
+                    if (keepAlive && request.body != null && !request.body.isFinished()) {
+                        // answer before waiting for the rest of an unread body
+                        outputStream.flush();
+                        keepAlive = drainBody(request);
+                    }
+                    // batch responses of pipelined requests into one flush
+                    if (!keepAlive || (!buffer.hasRemaining() && inputStream.available() == 0)) {
+                        outputStream.flush();
+                    }
+                    if (!keepAlive) {
+                        break;
+                    }
+                    timeout.stopWatching();
+                    timeout.setIdleTimeout(keepAliveTimeout);
+                }
+            } catch (Throwable t) {
+                if (expired == null) {
+                    ServerLog.e(TAG, "connection exception!", t);
+                } else if (DebugLog.isEnabled()) {
+                    ServerLog.d(TAG, expired + " timeout " + address + ":" + port);
+                }
+            } finally {
+                timeout.cancel();
+                IOUtil.close(inputStream);
+                IOUtil.close(outputStream);
+                IOUtil.close(socket);
+                removeConnection(socket);
+                bufferPool.release(array);
+            }
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "disconnect " + address + ":" + port);
+            }
+        }
+    }
+
+    /**
+     * keeps the connection thread of the blocking engine waiting for an
+     * exchange, responses completed later on other threads are sent by it.
+     */
+    static class ExchangeWaiter implements Executor, HttpExchange.Listener {
+
+        private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+
+        private volatile boolean done;
+
+        private volatile boolean keepAlive;
+
+        private volatile Throwable error;
+
+        private volatile ProtocolUpgrade upgrade;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void onUpgrade(ProtocolUpgrade upgrade) {
+            this.upgrade = upgrade;
+            finish();
+        }
+
+        @Override
+        public void onComplete(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            finish();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.error = t;
+            finish();
+        }
+
+        private void finish() {
+            done = true;
+            // wake up the waiting thread
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+
+        public boolean await() throws Exception {
+            while (!done) {
+                tasks.take().run();
+            }
+            if (error instanceof Exception) {
+                throw (Exception) error;
+            }
+            if (error != null) {
+                throw new IOException(error);
+            }
+            return keepAlive;
+        }
+    }
+
+    /**
+     * per connection state of the nio engine, requests of one connection are
+     * served one after another on worker threads.
+     */
+    class HttpConnectionHandler implements ConnectionHandler {
+
+        @Override
+        public void onConnected(NioConnection connection) {
+            if (!acquireConnection()) {
+                rejectConnection(connection);
+                return;
+            }
+            connection.setAttachment(new ExchangeState());
+            connection.getTimeout().expireAfter(headerTimeout, HEADER);
+        }
+
+        @Override
+        public void onReadable(NioConnection connection, ByteBuffer buffer) {
+            ExchangeState state = (ExchangeState) connection.getAttachment();
+            if (state == null) {
+                // refused, waiting for the 503 to flush
+                return;
+            }
+            ProtocolUpgrade upgrade = state.upgrade;
+            if (upgrade != null) {
+                try {
+                    upgrade.onReadable(state.upgraded, buffer);
+                } catch (IOException e) {
+                    if (DebugLog.isEnabled()) {
+                        ServerLog.d(TAG, "upgraded connection " + e.getMessage() + " "
+                                + connection.getRemoteAddress());
+                    }
+                    connection.close();
+                }
+                return;
+            }
+            if (state.body != null) {
+                feedBody(connection, state, buffer);
+                return;
+            }
+            if (state.processing) {
+                connection.pauseReading();
+                return;
+            }
+            HttpRequest request;
+            HttpStatus error = null;
+            PipedRequestBody body = null;
+            ConnectionTimeout timeout = connection.getTimeout();
+            if (state.served > 0 && !state.parser.hasPartialRequest()) {
+                // the next request started, the rest of its head has to follow in time
+                timeout.setIdleTimeout(0);
+                timeout.expireAfter(headerTimeout, HEADER);
+            }
+            try {
+                request = state.parser.parse(buffer);
+                if (request == null) {
+                    return;
+                }
+                request.remoteAddress = connection.getRemoteAddress();
+                if (Http2Connection.isPreface(request)) {
+                    if (!http2Enabled || state.served > 0) {
+                        throw new HttpParseException(HttpStatus.UNSUPPORTED_HTTP_VERSION, request.protocol);
+                    }
+                    upgrade(connection, state, new Http2Connection(HttpServer.this, null));
+                    // the rest of the preface and the first frames
+                    onReadable(connection, buffer);
+                    return;
+                }
+                BodyDecoder decoder = BodyDecoder.create(request);
+                if (decoder != null) {
+                    body = new PipedRequestBody(decoder, connection);
+                    attachBody(request, body, connection.getOutputStream());
+                }
+            } catch (HttpParseException e) {
+                if (DebugLog.isEnabled()) {
+                    ServerLog.d(TAG, "bad request " + e.getMessage() + " " + connection.getRemoteAddress());
+                }
+                request = null;
+                error = e.getStatus();
+            }
+            state.processing = true;
+            state.body = body;
+            timeout.setIdleTimeout(0);
+            timeout.clearDeadline();
+            timeout.watchIo(bodyTimeout, minDataRate);
+            if (!workerPool.tryExecute(new ExchangeTask(connection, state, request, error))) {
+                connection.pauseReading();
+                rejectConnection(connection);
+                return;
+            }
+            if (body != null) {
+                // the body keeps arriving while the request is handled
+                feedBody(connection, state, buffer);
+            } else {
+                connection.pauseReading();
+            }
+        }
+
+        private void feedBody(NioConnection connection, ExchangeState state, ByteBuffer buffer) {
+            PipedRequestBody body = state.body;
+            boolean more;
+            try {
+                more = body.feed(buffer);
+            } catch (IOException e) {
+                if (DebugLog.isEnabled()) {
+                    ServerLog.d(TAG, "bad request body " + e.getMessage() + " " + connection.getRemoteAddress());
+                }
+                connection.close();
+                return;
+            }
+            if (body.isReceived()) {
+                state.body = null;
+                connection.pauseReading();
+            } else if (!more) {
+                connection.pauseReading();
+            }
+        }
+
+        @Override
+        public void onTimeout(NioConnection connection, String reason) {
+            ExchangeState state = (ExchangeState) connection.getAttachment();
+            if (state != null) {
+                state.expired = reason;
+            }
+            metrics.recordTimeout(reason);
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, reason + " timeout " + connection.getRemoteAddress());
+            }
+        }
+
+        @Override
+        public void onClosed(NioConnection connection) {
+            ExchangeState state = (ExchangeState) connection.getAttachment();
+            if (state == null) {
+                return;
+            }
+            connectionCount.decrementAndGet();
+            if (state.upgrade != null) {
+                state.upgrade.onClosed(state.upgraded);
+            }
+            PipedRequestBody body = state.body;
+            if (body != null) {
+                body.fail(new EOFException("connection closed before the request body ended"));
+            }
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "disconnect " + connection.getRemoteAddress());
+            }
+        }
+    }
+
+    static class ExchangeState {
+
+        final HttpRequestParser parser = new HttpRequestParser();
+
+        volatile boolean processing;
+
+        /**
+         * body of the current request while it is still arriving.
+         */
+        volatile PipedRequestBody body;
+
+        /**
+         * set once a 101 response hands the connection to another protocol.
+         */
+        volatile ProtocolUpgrade upgrade;
+
+        volatile UpgradedConnection upgraded;
+
+        /**
+         * reason of the timeout that closed the connection.
+         */
+        volatile String expired;
+
+        int served;
+    }
+
+    class ExchangeTask implements Runnable, HttpExchange.Listener {
+
+        private NioConnection connection;
+
+        private ExchangeState state;
+
+        private HttpRequest request;
+
+        private HttpStatus error;
+
+        public ExchangeTask(NioConnection connection, ExchangeState state,
+                            HttpRequest request, HttpStatus error) {
+            this.connection = connection;
+            this.state = state;
+            this.request = request;
+            this.error = error;
+        }
+
+        public void run() {
+            try {
+                OutputStream outputStream = connection.getOutputStream();
+                if (error != null) {
+                    sendError(error, outputStream);
+                    closeAfterFlush(connection);
+                    return;
+                }
+                state.served++;
+                serveRequest(new HttpExchange(HttpServer.this, request, outputStream,
+                        state.served, completionExecutor, this));
+            } catch (Throwable t) {
+                onError(t);
+            }
+        }
+
+        @Override
+        public void onComplete(boolean keepAlive) {
+            try {
+                connection.getOutputStream().flush();
+                keepAlive = keepAlive && drainBody(request);
+                if (keepAlive) {
+                    // a queued file region is still part of the exchange
+                    connection.runAfterFlush(new Runnable() {
+                        @Override
+                        public void run() {
+                            state.processing = false;
+                            ConnectionTimeout timeout = connection.getTimeout();
+                            timeout.stopWatching();
+                            timeout.setIdleTimeout(keepAliveTimeout);
+                            connection.resumeReading();
+                        }
+                    });
+                } else {
+                    closeAfterFlush(connection);
+                }
+            } catch (Throwable t) {
+                onError(t);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (state.expired == null) {
+                ServerLog.e(TAG, "connection exception!", t);
+            } else if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "exchange ended by " + state.expired + " timeout");
+            }
+            connection.close();
+        }
+
+        @Override
+        public void onUpgrade(ProtocolUpgrade upgrade) {
+            try {
+                connection.getOutputStream().flush();
+            } catch (Throwable t) {
+                onError(t);
+                return;
+            }
+            upgrade(connection, state, upgrade);
+            // bytes sent after the request are handed to the upgrade
+            connection.resumeReading();
+        }
+    }
+
+    /**
+     * hand a connection of the nio engine to another protocol.
+     */
+    private void upgrade(NioConnection connection, ExchangeState state, ProtocolUpgrade upgrade) {
+        UpgradedConnection upgraded = new NioUpgradedConnection(connection, workerPool);
+        connection.getTimeout().cancel();
+        upgrade.onUpgraded(upgraded);
+        state.upgraded = upgraded;
+        state.upgrade = upgrade;
+    }
+
+    public void removeHandler(String path) {
+        if (TextUtil.isEmpty(path)) {
+            return;
+        }
+        router.remove(null, path);
+    }
+
+    public void removeHandler(String method, String path) {
+        if (TextUtil.isEmpty(method) || TextUtil.isEmpty(path)) {
+            return;
+        }
+        router.remove(method, path);
+    }
+
+    /**
+     * handle all methods of the path, see {@link #addHandler(String, String, RequestHandler)}.
+     */
+    public void addHandler(String path, RequestHandler handler) {
+        addHandler(Router.ANY_METHOD, path, handler);
+    }
+
+    /**
+     * @param path a pattern like /file, /api/{id} or /static/*, parameters
+     *             and the wildcard remainder are found in {@link HttpRequest#params}.
+     */
+    public void addHandler(String method, String path, RequestHandler handler) {
+        if (handler == null) {
+            return;
+        }
+        addAsyncHandler(method, path, new SyncHandlerAdapter(handler));
+    }
+
+    /**
+     * handle all methods of the path, see {@link #addAsyncHandler(String, String, AsyncRequestHandler)}.
+     */
+    public void addAsyncHandler(String path, AsyncRequestHandler handler) {
+        addAsyncHandler(Router.ANY_METHOD, path, handler);
+    }
+
+    /**
+     * like {@link #addHandler(String, String, RequestHandler)}, the handler
+     * completes its response through a {@link ResponseCallback} whenever it is
+     * ready, or streams the body over time.
+     */
+    public void addAsyncHandler(String method, String path, AsyncRequestHandler handler) {
+        if (TextUtil.isEmpty(method) || TextUtil.isEmpty(path) || handler == null) {
+            return;
+        }
+        router.add(method, path, handler);
+    }
+
+    /**
+     * accept websocket connections at the path, see {@link WebSocketUpgrade}.
+     */
+    public void addWebSocketHandler(String path, WebSocketHandler handler) {
+        if (handler == null) {
+            return;
+        }
+        addHandler("GET", path, new WebSocketUpgrade(handler));
+    }
+
+    void serveRequest(HttpExchange exchange) {
+        HttpRequest request = exchange.request;
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "serveRequest " + request.path);
+        }
+        if (http2Enabled && Http2Connection.isUpgrade(request)) {
+            // answered on stream 1 after switching
+            exchange.dispatch(http2Upgrade);
+            return;
+        }
+        Router.Match<AsyncRequestHandler> match = router.match(request.method, request.path);
+        if (match == null) {
+            // default handler
+            exchange.complete(false);
+            return;
+        }
+        if (match.handler == null) {
+            exchange.setRoute(match.pattern);
+            HttpResponse response = exchange.getResponse();
+            response.status = HttpStatus.METHOD_NOT_ALLOWED;
+            response.header.put("Allow", TextUtil.join(", ", match.allowedMethods));
+            response.setBody(HttpStatus.METHOD_NOT_ALLOWED.getDescription());
+            exchange.complete(true);
+            return;
+        }
+        exchange.setRoute(match.pattern);
+        request.params = match.params;
+        exchange.dispatch(match.handler);
+    }
+
+    /**
+     * switches an "Upgrade: h2c" request to http/2.
+     */
+    private final AsyncRequestHandler http2Upgrade = new AsyncRequestHandler() {
+        @Override
+        public void handleRequest(HttpRequest request, HttpResponse response, ResponseCallback callback) {
+            response.status = HttpStatus.SWITCH_PROTOCOL;
+            response.header.put("Upgrade", Http2Codec.H2C);
+            response.upgrade = new Http2Connection(HttpServer.this, request);
+            callback.complete(true);
+        }
+    };
+
+    /**
+     * encode and write a completed response.
+     *
+     * @return whether the connection stays open for the next request.
+     */
+    boolean sendExchangeResponse(HttpRequest request, HttpResponse response,
+                                 OutputStream outputStream, int served) throws Exception {
+        contentEncoder.encode(request, response);
+        boolean chunked = isChunked(request, response);
+        boolean keepAlive = isKeepAlive(request, response, served, chunked);
+        if (isHead(request)) {
+            // the head tells the length of the body a GET would get
+            IOUtil.close(response.body);
+            long sent = writeHead(response, outputStream, keepAlive, false);
+            response.sentBytes = sent;
+            metrics.bytesSent.add(sent);
+            return keepAlive;
+        }
+        sendResponse(response, outputStream, keepAlive, chunked);
+        return keepAlive;
+    }
+
+    static boolean isHead(HttpRequest request) {
+        return "HEAD".equals(request.method);
+    }
+
+    /**
+     * bodies of unknown length are chunked for http/1.1 clients.
+     */
+    private boolean isChunked(HttpRequest request, HttpResponse response) {
+        boolean streamed = !isHead(request)
+                && (response.body != null || response.writer != null);
+        return streamed && !response.header.containsKey("Content-Length")
+                && !"HTTP/1.0".equals(request.protocol);
+    }
+
+    boolean isKeepAlive(HttpRequest request, HttpResponse response, int served,
+                                boolean chunked) {
+        if (served >= maxKeepAliveRequests) {
+            return false;
+        }
+        // blocking connections hold a thread, give it to the queued ones
+        WorkerPool pool = workerPool;
+        if (engine == ServerEngine.BLOCKING && pool != null && pool.isSaturated()) {
+            return false;
+        }
+        // unread request bodies are skipped unless they are large or never sent
+        if (request.body != null && !request.body.canDrain(MAX_DRAIN_SIZE)) {
+            return false;
+        }
+        // without a length the body is delimited by closing the connection
+        boolean hasBody = !isHead(request) && (response.body != null
+                || response.region != null || response.writer != null);
+        if (hasBody && !chunked && !response.header.containsKey("Content-Length")) {
+            return false;
+        }
+        if ("close".equalsIgnoreCase(response.header.get("Connection"))) {
+            return false;
+        }
+        String connection = request.header.get("connection");
+        if ("HTTP/1.0".equals(request.protocol)) {
+            return "keep-alive".equalsIgnoreCase(connection);
+        }
+        return !"close".equalsIgnoreCase(connection);
+    }
+
+    private void sendResponse(HttpResponse response, OutputStream outputStream,
+                              boolean keepAlive, boolean chunked) throws Exception {
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "sendResponse " + response.status.getStatusCode());
+        }
+        long sent = writeHead(response, outputStream, keepAlive, chunked);
+        writeBody(response, outputStream, chunked, sent);
+    }
+
+    /**
+     * encode and write a completed response on an http/2 stream, the body
+     * goes out as the flow control windows allow.
+     */
+    void sendHttp2Response(HttpRequest request, HttpResponse response, Http2Stream stream) throws Exception {
+        contentEncoder.encode(request, response);
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "sendHttp2Response " + response.status.getStatusCode());
+        }
+        boolean hasBody = !isHead(request) && (response.body != null
+                || response.region != null || response.writer != null);
+        if (!hasBody) {
+            IOUtil.close(response.body);
+        }
+        long sent = stream.writeHeaders(response, !hasBody, false);
+        if (!hasBody) {
+            response.sentBytes = sent;
+            metrics.bytesSent.add(sent);
+            return;
+        }
+        writeBody(response, stream.getOutputStream(), false, sent);
+    }
+
+    /**
+     * @param sent the bytes of the head, counted with the body.
+     */
+    private void writeBody(HttpResponse response, OutputStream outputStream,
+                           boolean chunked, long sent) throws Exception {
+        try {
+            if (response.region != null) {
+                sent += sendRegion(outputStream, response.region);
+                return;
+            }
+            ChunkedOutputStream chunkedStream = null;
+            if (chunked) {
+                chunkedStream = new ChunkedOutputStream(outputStream);
+                outputStream = chunkedStream;
+            }
+            if (response.writer != null) {
+                CountingOutputStream counting = new CountingOutputStream(outputStream);
+                try {
+                    response.writer.writeBody(counting);
+                } finally {
+                    sent += counting.getCount();
+                }
+            } else {
+                try {
+                    sent += sendBody(outputStream, response.body);
+                } finally {
+                    IOUtil.close(response.body);
+                }
+            }
+            if (chunkedStream != null) {
+                chunkedStream.finish();
+            }
+        } finally {
+            response.sentBytes = sent;
+            metrics.bytesSent.add(sent);
+        }
+    }
+
+    /**
+     * @return the length of the head.
+     */
+    int writeHead(HttpResponse response, OutputStream outputStream,
+                  boolean keepAlive, boolean chunked) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        HttpStatus ss = response.status;
+        sb.append("HTTP/1.1 ").append(ss.getStatusCode()).append(' ');
+        sb.append(ss.getDescription()).append(" \r\n");
+        if (response.header != null) {
+            for (Map.Entry<String, String> entry : response.header.entrySet()) {
+                String key = entry.getKey();
+                if ("Connection".equalsIgnoreCase(key)
+                        || "Transfer-Encoding".equalsIgnoreCase(key)) {
+                    continue;
+                }
+                sb.append(key).append(": ").append(entry.getValue()).append("\r\n");
+            }
+        }
+        if (chunked) {
+            sb.append("Transfer-Encoding: chunked\r\n");
+        }
+        if (ss == HttpStatus.SWITCH_PROTOCOL) {
+            sb.append("Connection: Upgrade\r\n");
+        } else if (keepAlive) {
+            sb.append("Connection: keep-alive\r\n");
+            sb.append("Keep-Alive: timeout=").append(keepAliveTimeout / 1000);
+            sb.append("\r\n");
+        } else {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("\r\n");
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "response head " + sb);
+        }
+        byte[] head = sb.toString().getBytes("UTF-8");
+        outputStream.write(head);
+        return head.length;
+    }
+
+    private long sendRegion(OutputStream outputStream, FileRegion region) throws IOException {
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "sendRegion " + region.file + " " + region.offset + "+" + region.length);
+        }
+        if (region.content != null) {
+            outputStream.write(region.content, (int) region.offset, (int) region.length);
+            return region.length;
+        }
+        FileInputStream fis = new FileInputStream(region.file);
+        FileChannel channel = fis.getChannel();
+        if (outputStream instanceof FileRegionWriter) {
+            // the writer owns the channel from now on
+            ((FileRegionWriter) outputStream).writeFileRegion(channel, region.offset, region.length);
+            return region.length;
+        }
+        try {
+            channel.position(region.offset);
+            InputStream body = new LimitedInputStream(fis, region.length);
+            return sendBody(outputStream, body);
+        } finally {
+            IOUtil.close(fis);
+        }
+    }
+
+    /**
+     * @return the number of bytes copied.
+     */
+    private long sendBody(OutputStream outputStream, InputStream body) throws IOException {
+        if (body == null) {
+            return 0;
+        }
+
+        long sent = 0;
+        byte[] buff = new byte[BUFFER_SIZE];
+        while (true) {
+            int read = body.read(buff, 0, BUFFER_SIZE);
+            if (read <= 0) {
+                break;
+            }
+            outputStream.write(buff, 0, read);
+            sent += read;
+        }
+        return sent;
+    }
+
+    /**
+     * read until the parser completes the next request head.
+     *
+     * @param idle timeout of a keep-alive connection, switched from idle to
+     *             the header timeout by the first byte. null on the first
+     *             request.
+     * @return null if the client closed the connection between requests.
+     */
+    private HttpRequest readRequest(InputStream inputStream, ByteBuffer buffer,
+                                    HttpRequestParser parser, ConnectionTimeout idle) throws IOException {
+        while (true) {
+            HttpRequest request = parser.parse(buffer);
+            if (request != null) {
+                if (DebugLog.isEnabled()) {
+                    ServerLog.d(TAG, "request " + request.method + " " + request.path);
+                }
+                return request;
+            }
+            int read = inputStream.read(buffer.array(), 0, buffer.capacity());
+            if (read < 0) {
+                if (parser.hasPartialRequest()) {
+                    throw new HttpParseException(HttpStatus.BAD_REQUEST, "incomplete request");
+                }
+                return null;
+            }
+            buffer.position(0);
+            buffer.limit(read);
+            if (idle != null && read > 0) {
+                idle.setIdleTimeout(0);
+                idle.expireAfter(headerTimeout, HEADER);
+                idle = null;
+            }
+        }
+    }
+
+    private void attachBody(HttpRequest request, RequestBody body, OutputStream outputStream) {
+        request.body = body;
+        if ("HTTP/1.1".equals(request.protocol)
+                && "100-continue".equalsIgnoreCase(request.header.get("expect"))) {
+            body.expectContinue(outputStream);
+        }
+    }
+
+    /**
+     * skip what the handler left of the request body before the next request.
+     *
+     * @return false if the connection has to be closed instead.
+     */
+    private boolean drainBody(HttpRequest request) throws IOException {
+        return request.body == null || request.body.drain(MAX_DRAIN_SIZE);
+    }
+
+    private void sendError(HttpStatus status, OutputStream outputStream) throws Exception {
+        HttpResponse response = new HttpResponse();
+        response.status = status;
+        response.setBody(status.getDescription());
+        metrics.recordResponse(status);
+        sendResponse(response, outputStream, false, false);
+        outputStream.flush();
+    }
+
+    protected static String decodeParam(String param) {
+        String decoded = null;
+        try {
+            decoded = URLDecoder.decode(param, "UTF8");
+        } catch (Throwable ignored) {
+            ServerLog.e(TAG, "decode exception", ignored);
+        }
+        return decoded;
+    }
+
+
+    class ServerThread extends Thread {
+
+        public void run() {
+            try {
+                boolean running = true;
+                while (running) {
+                    Socket socket = serverSocket.accept();
+                    InetAddress address = socket.getInetAddress();
+                    int port = socket.getPort();
+                    if (DebugLog.isEnabled()) {
+                        ServerLog.d(TAG, "connection from " + address + ":" + port + " established");
+                    }
+                    if (!acquireConnection()) {
+                        rejectConnection(socket);
+                        continue;
+                    }
+                    connections.add(socket);
+                    if (!workerPool.tryExecute(new SocketHandler(socket))) {
+                        removeConnection(socket);
+                        rejectConnection(socket);
+                    }
+                }
+            } catch (Exception e) {
+                // closing the listener in stop() ends the accept loop
+                if (!serverSocket.isClosed()) {
+                    ServerLog.e(TAG, "accept exception", e);
+                }
+            }
+        }
+    }
+
+    public boolean start() {
+        ServerLog.d(TAG, "start http server");
+        int threads = workerThreads;
+        if (threadMode == ThreadMode.VIRTUAL) {
+            threads = Math.max(workerThreads, maxConnections);
+        }
+        workerPool = new WorkerPool(TAG, threads, workerQueueSize, threadMode);
+        try {
+            if (engine == ServerEngine.NIO) {
+                nioServer = new NioServer(TAG, httpPort, eventLoopCount, new HttpConnectionHandler());
+                nioServer.start();
+                return true;
+            }
+            // a channel backed socket lets file regions use transferTo
+            this.serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(httpPort));
+            timers = new TimerWheel(TAG);
+            timers.start();
+            serverThread = new ServerThread();
+            serverThread.setName("HttpServer");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            ServerLog.d(TAG, "http server serve port " + httpPort);
+        } catch (Throwable t) {
+            ServerLog.e(TAG, "start server exception.", t);
+            return false;
+        }
+        return true;
+    }
+
+    public void stop() {
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        IOUtil.close(serverSocket);
+        closeAllConnections();
+        if (timers != null) {
+            timers.stop();
+            timers = null;
+        }
+        WorkerPool pool = workerPool;
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    public void closeAllConnections() {
+        for (Socket socket : connections) {
+            IOUtil.close(socket);
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package com.kisstools.server.http;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * a map decoded from raw request bytes on first use.
+ */
+abstract class LazyMap extends AbstractMap<String, String> {
+
+    private Map<String, String> decoded;
+
+    /**
+     * fill the map with all decoded entries.
+     */
+    protected abstract void decode(Map<String, String> target);
+
+    protected boolean isDecoded() {
+        return decoded != null;
+    }
+
+    protected Map<String, String> decoded() {
+        if (decoded == null) {
+            Map<String, String> target = new HashMap<>();
+            decode(target);
+            decoded = target;
+        }
+        return decoded;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return decoded().entrySet();
+    }
+
+    @Override
+    public String get(Object key) {
+        return decoded().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return decoded().containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return decoded().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return decoded().remove(key);
+    }
+
+    @Override
+    public int size() {
+        return decoded().size();
+    }
+
+}
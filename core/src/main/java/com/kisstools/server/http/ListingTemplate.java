@@ -0,0 +1,91 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a text template split once into literals and placeholder slots, rendering
+ * appends the parts to a builder instead of repeated String.replace calls.
+ */
+class ListingTemplate {
+
+    private final String[] literals;
+
+    private final int[] slots;
+
+    private final int literalLength;
+
+    private ListingTemplate(String[] literals, int[] slots) {
+        this.literals = literals;
+        this.slots = slots;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @param placeholders the names to cut out, rendered values are passed in
+     *                     the same order.
+     */
+    public static ListingTemplate compile(String text, String[] placeholders) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int found = -1;
+            int slot = -1;
+            for (int index = 0; index < placeholders.length; ++index) {
+                int position = text.indexOf(placeholders[index], start);
+                if (position >= 0 && (found < 0 || position < found)) {
+                    found = position;
+                    slot = index;
+                }
+            }
+            if (found < 0) {
+                break;
+            }
+            literals.add(text.substring(start, found));
+            slots.add(slot);
+            start = found + placeholders[slot].length();
+        }
+        literals.add(text.substring(start));
+
+        int[] slotArray = new int[slots.size()];
+        for (int index = 0; index < slotArray.length; ++index) {
+            slotArray[index] = slots.get(index);
+        }
+        return new ListingTemplate(literals.toArray(new String[literals.size()]), slotArray);
+    }
+
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    public void render(Appendable out, CharSequence[] values) throws IOException {
+        for (int index = 0; index < slots.length; ++index) {
+            out.append(literals[index]);
+            out.append(values[slots[index]]);
+        }
+        out.append(literals[slots.length]);
+    }
+
+    /**
+     * render with slot content produced by the writer, e.g. streamed entries.
+     */
+    public void render(Appendable out, SlotWriter writer) throws IOException {
+        for (int index = 0; index < slots.length; ++index) {
+            out.append(literals[index]);
+            writer.writeSlot(out, slots[index]);
+        }
+        out.append(literals[slots.length]);
+    }
+
+    interface SlotWriter {
+
+        void writeSlot(Appendable out, int slot) throws IOException;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.metrics.HistogramSnapshot;
+import com.kisstools.server.metrics.MetricsRegistry;
+import com.kisstools.server.metrics.MetricsSnapshot;
+
+/**
+ * renders registries in the prometheus text format, register it with
+ * server.addHandler("GET", "/metrics", new MetricsHandler(server.getMetrics())).
+ */
+public class MetricsHandler implements RequestHandler {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final MetricsRegistry[] registries;
+
+    public MetricsHandler(MetricsRegistry... registries) {
+        this.registries = registries;
+    }
+
+    @Override
+    public boolean handleRequest(HttpRequest request, HttpResponse response) {
+        StringBuilder sb = new StringBuilder(4096);
+        for (MetricsRegistry registry : registries) {
+            render(registry.snapshot(), sb);
+        }
+        response.status = HttpStatus.OK;
+        response.header.put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.header.put("Cache-Control", "no-cache");
+        response.setBody(sb.toString());
+        return true;
+    }
+
+    static void render(MetricsSnapshot snapshot, StringBuilder sb) {
+        String previous = null;
+        for (MetricsSnapshot.Sample sample : snapshot.getSamples()) {
+            if (!sample.name.equals(previous)) {
+                previous = sample.name;
+                if (sample.help != null) {
+                    sb.append("# HELP ").append(sample.name).append(' ').append(sample.help).append('\n');
+                }
+                String type = sample.isCounter() ? "counter" : sample.isGauge() ? "gauge" : "summary";
+                sb.append("# TYPE ").append(sample.name).append(' ').append(type).append('\n');
+            }
+            if (sample.histogram == null) {
+                appendSeries(sb, sample.name, sample.labels, null);
+                sb.append(' ').append(sample.value).append('\n');
+                continue;
+            }
+            // latencies are recorded in microseconds, exposed in seconds
+            HistogramSnapshot histogram = sample.histogram;
+            for (double quantile : QUANTILES) {
+                appendSeries(sb, sample.name, sample.labels, "quantile=\"" + quantile + "\"");
+                sb.append(' ').append(toSeconds(histogram.getValueAtPercentile(quantile * 100)));
+                sb.append('\n');
+            }
+            appendSeries(sb, sample.name + "_sum", sample.labels, null);
+            sb.append(' ').append(toSeconds(histogram.getSum())).append('\n');
+            appendSeries(sb, sample.name + "_count", sample.labels, null);
+            sb.append(' ').append(histogram.getCount()).append('\n');
+        }
+    }
+
+    private static void appendSeries(StringBuilder sb, String name, String labels, String extra) {
+        sb.append(name);
+        if (labels == null && extra == null) {
+            return;
+        }
+        sb.append('{');
+        if (labels != null) {
+            sb.append(labels);
+        }
+        if (extra != null) {
+            if (labels != null) {
+                sb.append(',');
+            }
+            sb.append(extra);
+        }
+        sb.append('}');
+    }
+
+    private static double toSeconds(long micros) {
+        return micros / 1000000.0;
+    }
+
+}
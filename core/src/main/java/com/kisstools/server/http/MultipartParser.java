@@ -0,0 +1,259 @@
+package com.kisstools.server.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * streaming multipart/form-data parser, each part is read from the body as
+ * it arrives and only a small window of it is held in memory.
+ */
+public class MultipartParser {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_LINE_SIZE = 8 * 1024;
+
+    private static final int MAX_HEADERS = 32;
+
+    private final InputStream in;
+
+    private final byte[] delimiter;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int pos;
+
+    private int end;
+
+    private boolean eof;
+
+    private boolean finished;
+
+    private PartStream current;
+
+    public MultipartParser(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(HeaderMap.ISO_8859_1);
+        // the first boundary line has no line break before it
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        end = 2;
+    }
+
+    /**
+     * @return the boundary of a multipart/form-data content type, or null.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null
+                || !contentType.toLowerCase(Locale.US).startsWith("multipart/form-data")) {
+            return null;
+        }
+        String boundary = getParameter(contentType, "boundary");
+        if (boundary == null || boundary.length() == 0 || boundary.length() > 70) {
+            return null;
+        }
+        return boundary;
+    }
+
+    /**
+     * @return a parameter of a header value like form-data; name="file", or null.
+     */
+    public static String getParameter(String value, String name) {
+        for (String param : value.split(";")) {
+            int equal = param.indexOf('=');
+            if (equal < 0 || !name.equalsIgnoreCase(param.substring(0, equal).trim())) {
+                continue;
+            }
+            String result = param.substring(equal + 1).trim();
+            if (result.length() >= 2 && result.startsWith("\"") && result.endsWith("\"")) {
+                result = result.substring(1, result.length() - 1);
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * skip the rest of the current part and read the headers of the next.
+     *
+     * @return null after the last part.
+     */
+    public Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        PartStream skipped = current != null ? current : new PartStream();
+        byte[] scratch = new byte[1024];
+        while (skipped.read(scratch, 0, scratch.length) >= 0) {
+            // preamble or unread content
+        }
+        if (!ensure(2)) {
+            throw new EOFException("unexpected end of multipart body");
+        }
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        if (readLine().trim().length() != 0) {
+            throw new IOException("malformed multipart boundary");
+        }
+        Map<String, String> header = new HashMap<>();
+        while (true) {
+            String line = readLine();
+            if (line.length() == 0) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0 || header.size() >= MAX_HEADERS) {
+                throw new IOException("malformed multipart header");
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            header.put(name, line.substring(colon + 1).trim());
+        }
+        current = new PartStream();
+        return new Part(header, current);
+    }
+
+    private String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            while (pos + scanned < end) {
+                if (buffer[pos + scanned] == '\n') {
+                    int length = scanned;
+                    if (length > 0 && buffer[pos + length - 1] == '\r') {
+                        length--;
+                    }
+                    // browsers send file names as raw utf-8
+                    String line = new String(buffer, pos, length, "UTF-8");
+                    pos += scanned + 1;
+                    return line;
+                }
+                if (++scanned > MAX_LINE_SIZE) {
+                    throw new IOException("multipart header line too long");
+                }
+            }
+            if (!ensure(scanned + 1)) {
+                throw new EOFException("unexpected end of multipart body");
+            }
+        }
+    }
+
+    /**
+     * @return false if the body ended before the bytes are buffered.
+     */
+    private boolean ensure(int count) throws IOException {
+        while (end - pos < count) {
+            if (eof) {
+                return false;
+            }
+            fill();
+        }
+        return true;
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, end - pos);
+            end -= pos;
+            pos = 0;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            eof = true;
+        } else {
+            end += read;
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = end - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * content of one part, ends at the next boundary.
+     */
+    class PartStream extends InputStream {
+
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] array, int offset, int length) throws IOException {
+            if (done) {
+                return -1;
+            }
+            while (true) {
+                int index = indexOfDelimiter();
+                if (index == pos) {
+                    pos += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                // bytes before a possible partial delimiter at the end are content
+                int available = index >= 0 ? index - pos : end - pos - (delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(length, available);
+                    System.arraycopy(buffer, pos, array, offset, count);
+                    pos += count;
+                    return count;
+                }
+                if (eof) {
+                    throw new EOFException("unexpected end of multipart body");
+                }
+                fill();
+            }
+        }
+    }
+
+    public static class Part {
+
+        /**
+         * headers of the part, names in lower case.
+         */
+        public final Map<String, String> header;
+
+        public final String name;
+
+        /**
+         * null for plain form fields.
+         */
+        public final String fileName;
+
+        public final String contentType;
+
+        /**
+         * the content, valid until {@link MultipartParser#next()} is called again.
+         */
+        public final InputStream body;
+
+        Part(Map<String, String> header, InputStream body) {
+            this.header = header;
+            this.body = body;
+            String disposition = header.get("content-disposition");
+            this.name = disposition == null ? null : getParameter(disposition, "name");
+            this.fileName = disposition == null ? null : getParameter(disposition, "filename");
+            this.contentType = header.get("content-type");
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.nio.NioConnection;
+import com.kisstools.server.nio.WorkerPool;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * an upgraded connection of the nio engine.
+ */
+class NioUpgradedConnection implements UpgradedConnection {
+
+    private final NioConnection connection;
+
+    private final WorkerPool pool;
+
+    NioUpgradedConnection(NioConnection connection, WorkerPool pool) {
+        this.connection = connection;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, BufferPool pool) throws IOException {
+        connection.write(buffer, pool);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return connection.isWritable();
+    }
+
+    @Override
+    public void setWritableListener(Runnable listener) {
+        connection.setWritableListener(listener);
+    }
+
+    @Override
+    public void pauseReading() {
+        connection.pauseReading();
+    }
+
+    @Override
+    public void resumeReading() {
+        connection.resumeReading();
+    }
+
+    @Override
+    public void close() {
+        connection.closeAfterFlush();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public boolean tryExecute(Runnable task) {
+        return pool.tryExecute(task);
+    }
+
+    @Override
+    public void retryLater(Runnable task) {
+        connection.retryLater(task);
+    }
+
+}
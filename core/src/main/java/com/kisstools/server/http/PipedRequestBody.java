@@ -0,0 +1,124 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.nio.NioConnection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * request body of the nio engine. the event loop decodes received bytes into
+ * a bounded pipe and pauses reading while it is full, a worker reads from it.
+ */
+class PipedRequestBody extends RequestBody {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final NioConnection connection;
+
+    private final byte[] pipe = new byte[PIPE_SIZE];
+
+    private int start;
+
+    private int end;
+
+    private boolean received;
+
+    private boolean paused;
+
+    private IOException error;
+
+    PipedRequestBody(BodyDecoder decoder, NioConnection connection) {
+        super(decoder);
+        this.connection = connection;
+    }
+
+    /**
+     * decode received bytes on the event loop.
+     *
+     * @return false if the pipe is full and reading should pause.
+     */
+    synchronized boolean feed(ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining() && !decoder.isFinished()) {
+                if (end == pipe.length) {
+                    if (start == 0) {
+                        break;
+                    }
+                    System.arraycopy(pipe, start, pipe, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                end += decoder.decode(buffer, pipe, end, pipe.length - end);
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+        received = decoder.isFinished();
+        notifyAll();
+        if (received || end < pipe.length || start > 0) {
+            return true;
+        }
+        paused = true;
+        return false;
+    }
+
+    /**
+     * @return whether the whole body was received from the connection.
+     */
+    synchronized boolean isReceived() {
+        return received;
+    }
+
+    synchronized void fail(IOException e) {
+        if (!received && error == null) {
+            error = e;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return received && start == end;
+    }
+
+    @Override
+    synchronized int readBody(byte[] buffer, int offset, int length) throws IOException {
+        boolean waited = false;
+        while (start == end) {
+            if (received) {
+                return -1;
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (!waited) {
+                // a client that stops sending is closed by the timeout, which fails the pipe
+                connection.getTimeout().beginIo();
+                waited = true;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("request body interrupted");
+            }
+        }
+        int count = Math.min(length, end - start);
+        if (waited) {
+            connection.getTimeout().endIo(count);
+        }
+        System.arraycopy(pipe, start, buffer, offset, count);
+        start += count;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        if (paused && end - start <= pipe.length / 2) {
+            paused = false;
+            connection.resumeReading();
+        }
+        return count;
+    }
+
+}
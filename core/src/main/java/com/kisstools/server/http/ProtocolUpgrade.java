@@ -0,0 +1,28 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * takes over a connection once a 101 response carrying it in
+ * {@link HttpResponse#upgrade} is sent. callbacks of one connection never run
+ * concurrently, with the nio engine they run on the event loop and must not
+ * block, hand blocking work to {@link UpgradedConnection#tryExecute(Runnable)}.
+ */
+public interface ProtocolUpgrade {
+
+    /**
+     * the response is sent, called once before any bytes arrive.
+     */
+    void onUpgraded(UpgradedConnection connection);
+
+    /**
+     * @param buffer received bytes in read mode, bytes left unconsumed are
+     *               kept and presented again on the next call.
+     * @throws IOException to close the connection.
+     */
+    void onReadable(UpgradedConnection connection, ByteBuffer buffer) throws IOException;
+
+    void onClosed(UpgradedConnection connection);
+
+}
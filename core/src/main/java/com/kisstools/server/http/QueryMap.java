@@ -0,0 +1,44 @@
+package com.kisstools.server.http;
+
+import java.util.Map;
+
+/**
+ * query parameters of the request target, url decoded on first access.
+ */
+class QueryMap extends LazyMap {
+
+    private final String query;
+
+    QueryMap(String query) {
+        this.query = query;
+    }
+
+    @Override
+    protected void decode(Map<String, String> target) {
+        int start = 0;
+        int length = query.length();
+        while (start < length) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                String pair = query.substring(start, end);
+                int sep = pair.indexOf('=');
+                String key;
+                String value = "";
+                if (sep >= 0) {
+                    key = HttpServer.decodeParam(pair.substring(0, sep));
+                    value = HttpServer.decodeParam(pair.substring(sep + 1));
+                } else {
+                    key = HttpServer.decodeParam(pair);
+                }
+                if (key != null) {
+                    target.put(key.trim(), value);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * the body of a request, read as it arrives from the connection. a client
+ * waiting for "100 Continue" is answered on the first read.
+ */
+public abstract class RequestBody extends InputStream {
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(HeaderMap.ISO_8859_1);
+
+    private static final int TRANSFER_SIZE = 16 * 1024;
+
+    final BodyDecoder decoder;
+
+    private volatile OutputStream continueOutput;
+
+    RequestBody(BodyDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * @return the declared length, -1 for chunked bodies.
+     */
+    public long getContentLength() {
+        return decoder.getContentLength();
+    }
+
+    /**
+     * @return whether the whole body was read.
+     */
+    public abstract boolean isFinished();
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int read = read(one, 0, 1);
+        return read < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        sendContinue();
+        return readBody(buffer, offset, length);
+    }
+
+    /**
+     * write the rest of the body to the file starting at the position.
+     *
+     * @return the number of bytes written.
+     */
+    public long transferTo(FileChannel file, long position) throws IOException {
+        sendContinue();
+        byte[] buffer = new byte[TRANSFER_SIZE];
+        long total = 0;
+        while (true) {
+            int read = readBody(buffer, 0, buffer.length);
+            if (read < 0) {
+                return total;
+            }
+            ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+            while (src.hasRemaining()) {
+                position += file.write(src, position);
+            }
+            total += read;
+        }
+    }
+
+    abstract int readBody(byte[] buffer, int offset, int length) throws IOException;
+
+    void expectContinue(OutputStream outputStream) {
+        this.continueOutput = outputStream;
+    }
+
+    /**
+     * whether the body can be skipped to reuse the connection, a client
+     * still waiting for "100 Continue" never sends it.
+     */
+    boolean canDrain(long maxSize) {
+        if (isFinished()) {
+            return true;
+        }
+        long remaining = decoder.remaining();
+        return continueOutput == null && remaining <= maxSize;
+    }
+
+    /**
+     * skip what the handler left unread.
+     *
+     * @return whether the body ended within the limit.
+     */
+    boolean drain(long maxSize) throws IOException {
+        if (continueOutput != null) {
+            return isFinished();
+        }
+        byte[] buffer = new byte[(int) Math.min(TRANSFER_SIZE, Math.max(maxSize, 1))];
+        long skipped = 0;
+        while (skipped <= maxSize) {
+            int read = readBody(buffer, 0, buffer.length);
+            if (read < 0) {
+                return true;
+            }
+            skipped += read;
+        }
+        return false;
+    }
+
+    void sendContinue() throws IOException {
+        OutputStream outputStream = continueOutput;
+        if (outputStream == null) {
+            return;
+        }
+        continueOutput = null;
+        outputStream.write(CONTINUE);
+        outputStream.flush();
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.kisstools.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * completes the response of an {@link AsyncRequestHandler}, exactly one of
+ * the methods may be used, from any thread.
+ */
+public interface ResponseCallback {
+
+    /**
+     * send the response as it is set now.
+     *
+     * @param handled false lets the server answer 404 instead.
+     */
+    void complete(boolean handled);
+
+    /**
+     * answer 500 with the failure.
+     */
+    void fail(Throwable t);
+
+    /**
+     * send status and headers now and write the body over time, with chunked
+     * encoding unless a Content-Length was set. closing the stream completes
+     * the response, flushing pushes the written bytes to the client.
+     */
+    OutputStream stream() throws IOException;
+
+}
@@ -0,0 +1,246 @@
+package com.kisstools.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * a routing tree of path patterns. patterns are split into segments, a
+ * segment is either a literal, a parameter like {id} or a trailing * which
+ * matches the rest of the path. literals win over parameters, exact matches
+ * win over wildcards, and among wildcards the longest prefix wins.
+ * <p>
+ * registration rebuilds the tree and publishes it with a volatile write, so
+ * lookups never lock and cost one map lookup per path segment.
+ */
+public class Router<T> {
+
+    public static final String ANY_METHOD = "*";
+
+    public static final String WILDCARD = "*";
+
+    private final List<Route<T>> routes;
+
+    private volatile Node<T> root;
+
+    public Router() {
+        routes = new ArrayList<>();
+        root = new Node<>();
+    }
+
+    /**
+     * @param method the request method, or {@link #ANY_METHOD}.
+     */
+    public synchronized void add(String method, String pattern, T handler) {
+        removeRoute(method, pattern);
+        routes.add(new Route<>(method, pattern, handler));
+        root = build(routes);
+    }
+
+    /**
+     * @param method the method to remove, null removes the pattern for all methods.
+     */
+    public synchronized void remove(String method, String pattern) {
+        removeRoute(method, pattern);
+        root = build(routes);
+    }
+
+    public Match<T> match(String method, String path) {
+        Node<T> tree = root;
+        Candidate<T> best = new Candidate<>();
+        List<String> values = new ArrayList<>(4);
+        if (!find(tree, path, 0, values, best)) {
+            if (best.node == null) {
+                return null;
+            }
+            // longest wildcard prefix
+            best.exact = false;
+        }
+        Map<String, Route<T>> candidates = best.exact ? best.node.routes : best.node.wildcardRoutes;
+        Route<T> route = selectRoute(candidates, method);
+        if (route == null) {
+            String pattern = candidates.values().iterator().next().pattern;
+            return new Match<>(null, pattern, Collections.<String, String>emptyMap(),
+                    new LinkedHashSet<>(candidates.keySet()));
+        }
+        Map<String, String> params = new HashMap<>();
+        for (int index = 0; index < route.paramNames.size(); ++index) {
+            params.put(route.paramNames.get(index), best.values.get(index));
+        }
+        if (!best.exact) {
+            params.put(WILDCARD, best.remainder);
+        }
+        return new Match<>(route.handler, route.pattern, params, null);
+    }
+
+    private Route<T> selectRoute(Map<String, Route<T>> candidates, String method) {
+        Route<T> route = candidates.get(method);
+        if (route == null && "HEAD".equals(method)) {
+            route = candidates.get("GET");
+        }
+        if (route == null) {
+            route = candidates.get(ANY_METHOD);
+        }
+        return route;
+    }
+
+    private boolean find(Node<T> node, String path, int start, List<String> values,
+                         Candidate<T> best) {
+        int length = path.length();
+        while (start < length && path.charAt(start) == '/') {
+            start++;
+        }
+        if (!node.wildcardRoutes.isEmpty() && start >= best.start) {
+            best.node = node;
+            best.start = start;
+            best.remainder = path.substring(start);
+            best.values = new ArrayList<>(values);
+        }
+        if (start == length) {
+            if (node.routes.isEmpty()) {
+                return false;
+            }
+            best.node = node;
+            best.exact = true;
+            best.values = values;
+            return true;
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = length;
+        }
+        String segment = path.substring(start, end);
+        Node<T> child = node.literals.get(segment);
+        if (child != null && find(child, path, end, values, best)) {
+            return true;
+        }
+        if (node.param != null) {
+            values.add(segment);
+            if (find(node.param, path, end, values, best)) {
+                return true;
+            }
+            values.remove(values.size() - 1);
+        }
+        return false;
+    }
+
+    private void removeRoute(String method, String pattern) {
+        for (int index = routes.size() - 1; index >= 0; --index) {
+            Route<T> route = routes.get(index);
+            if (route.pattern.equals(pattern) && (method == null || route.method.equals(method))) {
+                routes.remove(index);
+            }
+        }
+    }
+
+    private static <T> Node<T> build(List<Route<T>> routes) {
+        Node<T> root = new Node<>();
+        for (Route<T> route : routes) {
+            Node<T> node = root;
+            boolean wildcard = false;
+            for (String segment : route.pattern.split("/")) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                if (WILDCARD.equals(segment)) {
+                    wildcard = true;
+                    break;
+                }
+                if (segment.startsWith("{") && segment.endsWith("}")) {
+                    if (node.param == null) {
+                        node.param = new Node<>();
+                    }
+                    node = node.param;
+                } else {
+                    Node<T> child = node.literals.get(segment);
+                    if (child == null) {
+                        child = new Node<>();
+                        node.literals.put(segment, child);
+                    }
+                    node = child;
+                }
+            }
+            (wildcard ? node.wildcardRoutes : node.routes).put(route.method, route);
+        }
+        return root;
+    }
+
+    public static class Match<T> {
+
+        /**
+         * null if the path matched but no route accepts the method.
+         */
+        public final T handler;
+
+        /**
+         * the pattern of the matched route.
+         */
+        public final String pattern;
+
+        public final Map<String, String> params;
+
+        /**
+         * methods of the matched path, set when handler is null.
+         */
+        public final Set<String> allowedMethods;
+
+        Match(T handler, String pattern, Map<String, String> params, Set<String> allowedMethods) {
+            this.handler = handler;
+            this.pattern = pattern;
+            this.params = params;
+            this.allowedMethods = allowedMethods;
+        }
+    }
+
+    static class Route<T> {
+
+        final String method;
+
+        final String pattern;
+
+        final T handler;
+
+        final List<String> paramNames;
+
+        Route(String method, String pattern, T handler) {
+            this.method = method;
+            this.pattern = pattern;
+            this.handler = handler;
+            this.paramNames = new ArrayList<>();
+            for (String segment : pattern.split("/")) {
+                if (segment.startsWith("{") && segment.endsWith("}")) {
+                    paramNames.add(segment.substring(1, segment.length() - 1));
+                }
+            }
+        }
+    }
+
+    static class Node<T> {
+
+        final Map<String, Node<T>> literals = new HashMap<>();
+
+        final Map<String, Route<T>> routes = new HashMap<>();
+
+        final Map<String, Route<T>> wildcardRoutes = new HashMap<>();
+
+        Node<T> param;
+    }
+
+    static class Candidate<T> {
+
+        Node<T> node;
+
+        boolean exact;
+
+        int start = -1;
+
+        String remainder;
+
+        List<String> values;
+    }
+
+}
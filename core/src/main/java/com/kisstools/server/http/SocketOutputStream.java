@@ -0,0 +1,110 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.nio.ConnectionTimeout;
+import com.kisstools.server.nio.FileRegionWriter;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * buffered socket stream of the blocking engine, file regions go straight
+ * from the page cache to the socket with {@link FileChannel#transferTo}.
+ * every write to the socket is watched by the connection timeout.
+ */
+class SocketOutputStream extends BufferedOutputStream implements FileRegionWriter {
+
+    /**
+     * bytes of one transferTo, each call is a wait of its own for the timeout.
+     */
+    private static final long TRANSFER_CHUNK = 64 * 1024;
+
+    private final SocketChannel channel;
+
+    private final ConnectionTimeout timeout;
+
+    public SocketOutputStream(Socket socket, int size, ConnectionTimeout timeout) throws IOException {
+        super(new WatchedStream(socket.getOutputStream(), timeout), size);
+        this.channel = socket.getChannel();
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void writeFileRegion(FileChannel file, long position, long count) throws IOException {
+        try {
+            flush();
+            if (channel == null) {
+                copyRegion(file, position, count);
+                return;
+            }
+            while (count > 0) {
+                timeout.beginIo();
+                long sent = file.transferTo(position, Math.min(count, TRANSFER_CHUNK), channel);
+                timeout.endIo(Math.max(sent, 0));
+                if (sent <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("file truncated while sending");
+                    }
+                    continue;
+                }
+                position += sent;
+                count -= sent;
+            }
+        } finally {
+            IOUtil.close(file);
+        }
+    }
+
+    private void copyRegion(FileChannel file, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(buf.length);
+        while (count > 0) {
+            buffer.clear();
+            if (buffer.remaining() > count) {
+                buffer.limit((int) count);
+            }
+            int read = file.read(buffer, position);
+            if (read <= 0) {
+                throw new IOException("file truncated while sending");
+            }
+            out.write(buffer.array(), 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+
+    static class WatchedStream extends FilterOutputStream {
+
+        private final ConnectionTimeout timeout;
+
+        WatchedStream(OutputStream out, ConnectionTimeout timeout) {
+            super(out);
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            timeout.beginIo();
+            out.write(bytes, offset, length);
+            timeout.endIo(length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            timeout.beginIo();
+            out.flush();
+            timeout.endIo(0);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.nio.ConnectionTimeout;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * request body of the blocking engine, read through the connection buffer
+ * that also holds the pipelined requests behind it.
+ */
+class SocketRequestBody extends RequestBody {
+
+    /**
+     * bytes of one transferFrom, a blocking channel only returns once all
+     * of them arrived, so each call is one bounded and credited wait.
+     */
+    private static final long TRANSFER_CHUNK = 64 * 1024;
+
+    private final ByteBuffer buffer;
+
+    private final InputStream inputStream;
+
+    private final SocketChannel channel;
+
+    private final ConnectionTimeout timeout;
+
+    SocketRequestBody(BodyDecoder decoder, ByteBuffer buffer, InputStream inputStream,
+                      SocketChannel channel, ConnectionTimeout timeout) {
+        super(decoder);
+        this.buffer = buffer;
+        this.inputStream = inputStream;
+        this.channel = channel;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return decoder.isFinished();
+    }
+
+    @Override
+    int readBody(byte[] array, int offset, int length) throws IOException {
+        while (!decoder.isFinished()) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int read = decoder.decode(buffer, array, offset, length);
+            if (read > 0) {
+                return read;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * bodies of known length move from the socket to the file with transferFrom.
+     */
+    @Override
+    public long transferTo(FileChannel file, long position) throws IOException {
+        if (channel == null || !(decoder instanceof BodyDecoder.LengthDecoder)) {
+            return super.transferTo(file, position);
+        }
+        sendContinue();
+        BodyDecoder.LengthDecoder length = (BodyDecoder.LengthDecoder) decoder;
+        long total = 0;
+        int buffered = (int) Math.min(buffer.remaining(), length.remaining());
+        if (buffered > 0) {
+            ByteBuffer src = buffer.duplicate();
+            src.limit(src.position() + buffered);
+            while (src.hasRemaining()) {
+                position += file.write(src, position);
+            }
+            buffer.position(buffer.position() + buffered);
+            length.skip(buffered);
+            total = buffered;
+        }
+        // a stalled client is closed by the timeout, which ends the transfer
+        while (!length.isFinished()) {
+            timeout.beginIo();
+            long count = file.transferFrom(channel, position,
+                    Math.min(length.remaining(), TRANSFER_CHUNK));
+            timeout.endIo(Math.max(count, 0));
+            if (count <= 0) {
+                throw new EOFException("unexpected end of request body");
+            }
+            length.skip(count);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private void fill() throws IOException {
+        timeout.beginIo();
+        int read = inputStream.read(buffer.array(), 0, buffer.capacity());
+        timeout.endIo(Math.max(read, 0));
+        if (read < 0) {
+            throw new EOFException("unexpected end of request body");
+        }
+        buffer.position(0);
+        buffer.limit(read);
+    }
+
+}
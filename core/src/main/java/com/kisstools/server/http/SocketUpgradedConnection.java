@@ -0,0 +1,161 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * an upgraded connection of the blocking engine, its thread keeps reading
+ * and runs the protocol inline.
+ */
+class SocketUpgradedConnection implements UpgradedConnection {
+
+    private final Socket socket;
+
+    private final OutputStream outputStream;
+
+    private final Object readLock = new Object();
+
+    // a lock instead of a monitor, a virtual thread blocked in a write
+    // leaves its carrier
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile boolean paused;
+
+    private volatile boolean closed;
+
+    SocketUpgradedConnection(Socket socket, OutputStream outputStream) {
+        this.socket = socket;
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * read and hand bytes to the upgrade until either side closes.
+     *
+     * @param buffer bytes received after the request head in read mode.
+     */
+    void serve(ProtocolUpgrade upgrade, InputStream inputStream, ByteBuffer buffer) {
+        upgrade.onUpgraded(this);
+        try {
+            while (!closed) {
+                if (buffer.hasRemaining()) {
+                    upgrade.onReadable(this, buffer);
+                }
+                awaitResume();
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("unconsumed bytes fill the buffer");
+                }
+                int read = inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    break;
+                }
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+            }
+        } catch (IOException e) {
+            // the peer went away or close() shut the socket
+        } finally {
+            closed = true;
+            IOUtil.close(socket);
+            upgrade.onClosed(this);
+        }
+    }
+
+    private void awaitResume() throws IOException {
+        synchronized (readLock) {
+            while (paused && !closed) {
+                try {
+                    readLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, BufferPool pool) throws IOException {
+        try {
+            if (closed) {
+                throw new IOException("connection closed");
+            }
+            writeLock.lock();
+            try {
+                outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                outputStream.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            if (pool != null) {
+                pool.release(buffer.array());
+            }
+        }
+    }
+
+    /**
+     * writes block instead.
+     */
+    @Override
+    public boolean isWritable() {
+        return !closed;
+    }
+
+    @Override
+    public void setWritableListener(Runnable listener) {
+    }
+
+    @Override
+    public void pauseReading() {
+        paused = true;
+    }
+
+    @Override
+    public void resumeReading() {
+        synchronized (readLock) {
+            paused = false;
+            readLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        // writes are flushed as they happen
+        closed = true;
+        IOUtil.close(socket);
+        resumeReading();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * the connection thread is never refused.
+     */
+    @Override
+    public boolean tryExecute(Runnable task) {
+        task.run();
+        return true;
+    }
+
+    @Override
+    public void retryLater(Runnable task) {
+        task.run();
+    }
+
+}
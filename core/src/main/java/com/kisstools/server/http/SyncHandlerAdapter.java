@@ -0,0 +1,19 @@
+package com.kisstools.server.http;
+
+/**
+ * runs a synchronous {@link RequestHandler} on the dispatching thread.
+ */
+class SyncHandlerAdapter implements AsyncRequestHandler {
+
+    private final RequestHandler handler;
+
+    public SyncHandlerAdapter(RequestHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void handleRequest(HttpRequest request, HttpResponse response, ResponseCallback callback) {
+        callback.complete(handler.handleRequest(request, response));
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.kisstools.server.http;
+
+import com.kisstools.server.nio.BufferPool;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * a connection handed to a {@link ProtocolUpgrade}, the same for both engines.
+ */
+public interface UpgradedConnection {
+
+    /**
+     * write the buffer whole, safe to call from any thread. the array goes
+     * back to the pool once written if one is given.
+     */
+    void write(ByteBuffer buffer, BufferPool pool) throws IOException;
+
+    /**
+     * false while too many bytes wait for the socket.
+     */
+    boolean isWritable();
+
+    /**
+     * run once the waiting bytes drained after {@link #isWritable()} was false.
+     */
+    void setWritableListener(Runnable listener);
+
+    void pauseReading();
+
+    void resumeReading();
+
+    /**
+     * close once the queued bytes are written.
+     */
+    void close();
+
+    SocketAddress getRemoteAddress();
+
+    /**
+     * run work that may block, on the connection thread itself with the
+     * blocking engine and on the worker pool with nio.
+     *
+     * @return false if the pool is saturated and the task did not run, it
+     * must not run on the calling thread instead, see {@link #retryLater(Runnable)}.
+     */
+    boolean tryExecute(Runnable task);
+
+    /**
+     * run the task a moment later unless the connection closed, must not block.
+     */
+    void retryLater(Runnable task);
+
+}
@@ -0,0 +1,151 @@
+package com.kisstools.server.http2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * decodes the header blocks of one connection in the order they arrive,
+ * all of them, so the dynamic table stays in sync with the peer.
+ */
+public class HpackDecoder {
+
+    private final HpackTable table;
+
+    private final int maxTableSize;
+
+    private final int maxListSize;
+
+    /**
+     * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE sent to the peer.
+     * @param maxListSize  the SETTINGS_MAX_HEADER_LIST_SIZE sent to the peer.
+     */
+    public HpackDecoder(int maxTableSize, int maxListSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxListSize = maxListSize;
+    }
+
+    /**
+     * @return names and values, one after another, null if they exceed the
+     * max list size. the table follows the whole block either way.
+     * @throws Http2Exception a connection error if the block is malformed.
+     */
+    public List<String> decode(byte[] block, int length) throws Http2Exception {
+        List<String> fields = new ArrayList<String>(32);
+        Reader reader = new Reader(block, length);
+        int listSize = 0;
+        while (reader.position < length) {
+            if (listSize > maxListSize) {
+                // keep decoding for the table, drop what was decoded
+                listSize = -1;
+                fields.clear();
+            }
+            int b = block[reader.position] & 0xff;
+            if ((b & 0x80) != 0) {
+                // indexed field
+                int index = reader.readInt(7);
+                if (index == 0 || index > table.length()) {
+                    throw error("bad index " + index);
+                }
+                listSize = add(fields, listSize, table.getName(index), table.getValue(index));
+            } else if ((b & 0x40) != 0) {
+                // literal added to the table
+                String name = readName(reader, 6);
+                String value = reader.readString();
+                table.add(name, value);
+                listSize = add(fields, listSize, name, value);
+            } else if ((b & 0x20) != 0) {
+                // only allowed before the first field
+                if (listSize != 0) {
+                    throw error("table size update after a field");
+                }
+                int size = reader.readInt(5);
+                if (size > maxTableSize) {
+                    throw error("table size " + size);
+                }
+                table.setMaxSize(size);
+            } else {
+                // literal without indexing or never indexed
+                String name = readName(reader, 4);
+                listSize = add(fields, listSize, name, reader.readString());
+            }
+        }
+        return listSize < 0 || listSize > maxListSize ? null : fields;
+    }
+
+    /**
+     * @return the new list size, stays -1 once the limit was passed.
+     */
+    private static int add(List<String> fields, int listSize, String name, String value) {
+        if (listSize < 0) {
+            return listSize;
+        }
+        fields.add(name);
+        fields.add(value);
+        return listSize + HpackTable.entrySize(name, value);
+    }
+
+    private String readName(Reader reader, int prefix) throws Http2Exception {
+        int index = reader.readInt(prefix);
+        if (index == 0) {
+            return reader.readString();
+        }
+        if (index > table.length()) {
+            throw error("bad name index " + index);
+        }
+        return table.getName(index);
+    }
+
+    private static Http2Exception error(String message) {
+        return new Http2Exception(Http2Codec.COMPRESSION_ERROR, 0, message);
+    }
+
+    static class Reader {
+
+        private final byte[] block;
+
+        private final int length;
+
+        int position;
+
+        Reader(byte[] block, int length) {
+            this.block = block;
+            this.length = length;
+        }
+
+        int readInt(int prefix) throws Http2Exception {
+            int max = (1 << prefix) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                if (position >= length) {
+                    throw error("truncated integer");
+                }
+                int b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw error("integer overflow");
+        }
+
+        String readString() throws Http2Exception {
+            if (position >= length) {
+                throw error("truncated string");
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int size = readInt(7);
+            if (size > length - position) {
+                throw error("truncated string");
+            }
+            String text = huffman ? Huffman.decode(block, position, size)
+                    : new String(block, position, size, Http2Codec.ISO_8859_1);
+            position += size;
+            return text;
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.kisstools.server.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * encodes the header blocks of one connection, blocks go out in the order
+ * they are encoded. fields that repeat across responses are added to the
+ * dynamic table, values that change every time are sent as literals.
+ */
+public class HpackEncoder {
+
+    /**
+     * values unlikely to repeat, indexing them would only evict others.
+     */
+    private static final Set<String> UNINDEXED = new HashSet<String>(Arrays.asList(
+            "content-length", "content-range", "date", "etag", "expires", "last-modified",
+            "location", "age"));
+
+    /**
+     * never indexed, also by intermediaries.
+     */
+    private static final Set<String> SENSITIVE = new HashSet<String>(Arrays.asList(
+            "authorization", "proxy-authorization", "set-cookie"));
+
+    private final HpackTable table;
+
+    private final ByteArrayOutputStream out;
+
+    // table size changes to signal at the start of the next block
+    private int minTableSize = -1;
+
+    private int newTableSize = -1;
+
+    public HpackEncoder() {
+        this.table = new HpackTable(Http2Codec.DEFAULT_HEADER_TABLE_SIZE);
+        this.out = new ByteArrayOutputStream(256);
+    }
+
+    /**
+     * the SETTINGS_HEADER_TABLE_SIZE of the peer, the table never grows
+     * beyond the default.
+     */
+    public void setMaxTableSize(int size) {
+        size = Math.min(size, Http2Codec.DEFAULT_HEADER_TABLE_SIZE);
+        minTableSize = minTableSize < 0 ? size : Math.min(minTableSize, size);
+        newTableSize = size;
+    }
+
+    /**
+     * @param fields names in lower case and values, one after another.
+     */
+    public byte[] encode(List<String> fields) {
+        out.reset();
+        if (newTableSize >= 0) {
+            if (minTableSize < newTableSize) {
+                writeInt(0x20, 5, minTableSize);
+            }
+            writeInt(0x20, 5, newTableSize);
+            table.setMaxSize(newTableSize);
+            minTableSize = -1;
+            newTableSize = -1;
+        }
+        for (int index = 0; index + 1 < fields.size(); index += 2) {
+            encodeField(fields.get(index), fields.get(index + 1));
+        }
+        return out.toByteArray();
+    }
+
+    private void encodeField(String name, String value) {
+        int index = HpackTable.staticIndex(name, value);
+        if (index == 0) {
+            index = table.find(name, value);
+        }
+        if (index > 0) {
+            writeInt(0x80, 7, index);
+            return;
+        }
+        int nameIndex = HpackTable.staticNameIndex(name);
+        if (nameIndex == 0) {
+            nameIndex = table.findName(name);
+        }
+        if (SENSITIVE.contains(name)) {
+            writeInt(0x10, 4, nameIndex);
+        } else if (UNINDEXED.contains(name)
+                || HpackTable.entrySize(name, value) > table.getMaxSize() / 2) {
+            writeInt(0x00, 4, nameIndex);
+        } else {
+            writeInt(0x40, 6, nameIndex);
+            table.add(name, value);
+        }
+        if (nameIndex == 0) {
+            writeString(name);
+        }
+        writeString(value);
+    }
+
+    private void writeInt(int mask, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(mask | value);
+            return;
+        }
+        out.write(mask | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void writeString(String text) {
+        int length = Huffman.encodedLength(text);
+        if (length < text.length()) {
+            writeInt(0x80, 7, length);
+            Huffman.encode(text, out);
+            return;
+        }
+        writeInt(0x00, 7, text.length());
+        byte[] bytes = text.getBytes(Http2Codec.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+}
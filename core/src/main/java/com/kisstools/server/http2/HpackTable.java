@@ -0,0 +1,235 @@
+package com.kisstools.server.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * the static table of rfc 7541 appendix A followed by a dynamic table,
+ * index 1 is the first static entry and 62 the newest dynamic one.
+ */
+class HpackTable {
+
+    static final int STATIC_LENGTH = 61;
+
+    /**
+     * per entry overhead counted against the table size.
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // first static index of each name and of each name with a value
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+    static {
+        for (int index = STATIC_TABLE.length; index > 0; index--) {
+            String[] field = STATIC_TABLE[index - 1];
+            STATIC_NAMES.put(field[0], index);
+            if (!field[1].isEmpty()) {
+                STATIC_FIELDS.put(field[0] + '\0' + field[1], index);
+            }
+        }
+    }
+
+    // dynamic entries in a ring, head is the newest
+    private String[] names = new String[16];
+
+    private String[] values = new String[16];
+
+    private int head;
+
+    private int count;
+
+    private int size;
+
+    private int maxSize;
+
+    HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    static int staticIndex(String name, String value) {
+        Integer index = STATIC_FIELDS.get(name + '\0' + value);
+        return index == null ? 0 : index;
+    }
+
+    static int staticNameIndex(String name) {
+        Integer index = STATIC_NAMES.get(name);
+        return index == null ? 0 : index;
+    }
+
+    static int entrySize(String name, String value) {
+        return ENTRY_OVERHEAD + name.length() + value.length();
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * shrinking evicts the oldest entries.
+     */
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(0);
+    }
+
+    int length() {
+        return STATIC_LENGTH + count;
+    }
+
+    String getName(int index) throws Http2Exception {
+        if (index > 0 && index <= STATIC_LENGTH) {
+            return STATIC_TABLE[index - 1][0];
+        }
+        return names[slot(index)];
+    }
+
+    String getValue(int index) throws Http2Exception {
+        if (index > 0 && index <= STATIC_LENGTH) {
+            return STATIC_TABLE[index - 1][1];
+        }
+        return values[slot(index)];
+    }
+
+    private int slot(int index) throws Http2Exception {
+        int position = index - STATIC_LENGTH - 1;
+        if (position < 0 || position >= count) {
+            throw new Http2Exception(Http2Codec.COMPRESSION_ERROR, 0, "bad table index " + index);
+        }
+        return (head + position) & (names.length - 1);
+    }
+
+    /**
+     * @return the dynamic index of the field, 0 if it is not in the table.
+     */
+    int find(String name, String value) {
+        for (int position = 0; position < count; position++) {
+            int slot = (head + position) & (names.length - 1);
+            if (names[slot].equals(name) && values[slot].equals(value)) {
+                return STATIC_LENGTH + 1 + position;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the dynamic index of the newest entry with the name, 0 if none.
+     */
+    int findName(String name) {
+        for (int position = 0; position < count; position++) {
+            int slot = (head + position) & (names.length - 1);
+            if (names[slot].equals(name)) {
+                return STATIC_LENGTH + 1 + position;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * an entry larger than the table empties it and is not added.
+     */
+    void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+        evict(entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+        if (count == names.length) {
+            grow();
+        }
+        head = (head - 1) & (names.length - 1);
+        names[head] = name;
+        values[head] = value;
+        count++;
+        size += entrySize;
+    }
+
+    private void evict(int room) {
+        while (count > 0 && size + room > maxSize) {
+            int slot = (head + count - 1) & (names.length - 1);
+            size -= entrySize(names[slot], values[slot]);
+            names[slot] = null;
+            values[slot] = null;
+            count--;
+        }
+    }
+
+    private void grow() {
+        String[] newNames = new String[names.length * 2];
+        String[] newValues = new String[values.length * 2];
+        for (int position = 0; position < count; position++) {
+            int slot = (head + position) & (names.length - 1);
+            newNames[position] = names[slot];
+            newValues[position] = values[slot];
+        }
+        names = newNames;
+        values = newValues;
+        head = 0;
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.kisstools.server.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * rfc 7540 frame layout and constants. a frame is a 9 byte header of a 3
+ * byte length, the type, the flags and the stream id, followed by the payload.
+ */
+public class Http2Codec {
+
+    public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * the first bytes of a client, the server answers with its SETTINGS.
+     */
+    public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1);
+
+    /**
+     * the part of the preface that reads like an http/1.1 request head.
+     */
+    public static final int PREFACE_HEAD_LENGTH = 18;
+
+    /**
+     * the Upgrade token of cleartext http/2.
+     */
+    public static final String H2C = "h2c";
+
+    public static final int FRAME_HEADER_SIZE = 9;
+
+    public static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    public static final int MAX_FRAME_SIZE = 16777215;
+
+    public static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+    public static final int TYPE_DATA = 0x0;
+
+    public static final int TYPE_HEADERS = 0x1;
+
+    public static final int TYPE_PRIORITY = 0x2;
+
+    public static final int TYPE_RST_STREAM = 0x3;
+
+    public static final int TYPE_SETTINGS = 0x4;
+
+    public static final int TYPE_PUSH_PROMISE = 0x5;
+
+    public static final int TYPE_PING = 0x6;
+
+    public static final int TYPE_GOAWAY = 0x7;
+
+    public static final int TYPE_WINDOW_UPDATE = 0x8;
+
+    public static final int TYPE_CONTINUATION = 0x9;
+
+    public static final int FLAG_END_STREAM = 0x1;
+
+    public static final int FLAG_ACK = 0x1;
+
+    public static final int FLAG_END_HEADERS = 0x4;
+
+    public static final int FLAG_PADDED = 0x8;
+
+    public static final int FLAG_PRIORITY = 0x20;
+
+    public static final int NO_ERROR = 0x0;
+
+    public static final int PROTOCOL_ERROR = 0x1;
+
+    public static final int INTERNAL_ERROR = 0x2;
+
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+
+    public static final int STREAM_CLOSED = 0x5;
+
+    public static final int FRAME_SIZE_ERROR = 0x6;
+
+    public static final int REFUSED_STREAM = 0x7;
+
+    public static final int CANCEL = 0x8;
+
+    public static final int COMPRESSION_ERROR = 0x9;
+
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    public static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    public static final int SETTING_SIZE = 6;
+
+    public static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId & Integer.MAX_VALUE);
+    }
+
+    /**
+     * a SETTINGS frame of id and value pairs.
+     */
+    public static byte[] encodeSettings(int... settings) {
+        int length = settings.length / 2 * SETTING_SIZE;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        putFrameHeader(frame, length, TYPE_SETTINGS, 0, 0);
+        for (int index = 0; index + 1 < settings.length; index += 2) {
+            frame.putShort((short) settings[index]);
+            frame.putInt(settings[index + 1]);
+        }
+        return frame.array();
+    }
+
+    public static byte[] encodeWindowUpdate(int streamId, int increment) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4);
+        putFrameHeader(frame, 4, TYPE_WINDOW_UPDATE, 0, streamId);
+        frame.putInt(increment);
+        return frame.array();
+    }
+
+    public static byte[] encodeRstStream(int streamId, int errorCode) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4);
+        putFrameHeader(frame, 4, TYPE_RST_STREAM, 0, streamId);
+        frame.putInt(errorCode);
+        return frame.array();
+    }
+
+    public static byte[] encodeGoAway(int lastStreamId, int errorCode, String message) {
+        byte[] debug = message == null ? new byte[0] : message.getBytes(ISO_8859_1);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 8 + debug.length);
+        putFrameHeader(frame, 8 + debug.length, TYPE_GOAWAY, 0, 0);
+        frame.putInt(lastStreamId);
+        frame.putInt(errorCode);
+        frame.put(debug);
+        return frame.array();
+    }
+
+    /**
+     * the payload of the HTTP2-Settings header of an h2c upgrade, base64url
+     * without padding.
+     *
+     * @return null if the value is not valid.
+     */
+    public static byte[] decodeSettingsHeader(String value) {
+        value = value.trim();
+        if (value.length() % 4 == 1) {
+            return null;
+        }
+        byte[] bytes = new byte[value.length() * 3 / 4];
+        int bits = 0;
+        int count = 0;
+        int length = 0;
+        for (int index = 0; index < value.length(); index++) {
+            int digit = base64Digit(value.charAt(index));
+            if (digit < 0) {
+                return null;
+            }
+            bits = (bits << 6) | digit;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                bytes[length++] = (byte) (bits >>> count);
+            }
+        }
+        if (length % SETTING_SIZE != 0) {
+            return null;
+        }
+        return bytes;
+    }
+
+    private static int base64Digit(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        }
+        if (c == '-') {
+            return 62;
+        }
+        return c == '_' ? 63 : -1;
+    }
+
+}
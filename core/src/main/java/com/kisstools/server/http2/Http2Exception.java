@@ -0,0 +1,35 @@
+package com.kisstools.server.http2;
+
+import java.io.IOException;
+
+/**
+ * a frame breaking the protocol. an error of stream 0 ends the connection
+ * with GOAWAY, others reset their stream.
+ */
+public class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+
+    private final int streamId;
+
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public boolean isConnectionError() {
+        return streamId == 0;
+    }
+
+}
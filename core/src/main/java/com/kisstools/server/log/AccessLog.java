@@ -0,0 +1,289 @@
+package com.kisstools.server.log;
+
+import com.kisstools.server.util.IOUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * one line per request, written by a background thread. records are copied
+ * into a preallocated ring buffer, a full ring drops records instead of
+ * slowing requests down. the file is rotated to file.1, file.2 ... by size.
+ */
+public class AccessLog {
+
+    public static final String TAG = "AccessLog";
+
+    private static final int RING_SIZE = 4096;
+
+    private static final long MAX_FILE_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAX_FILES = 3;
+
+    private static final long IDLE_PARK_NANOS = 20 * 1000 * 1000;
+
+    private final File file;
+
+    private final Entry[] entries;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong sampled = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long head;
+
+    private volatile boolean running = true;
+
+    private volatile int sampleRate = 1;
+
+    private volatile long maxFileSize = MAX_FILE_SIZE;
+
+    private volatile int maxFiles = MAX_FILES;
+
+    private final Thread writerThread;
+
+    public AccessLog(File file) {
+        this(file, RING_SIZE);
+    }
+
+    /**
+     * @param ringSize records buffered for the writer, rounded up to a power of two.
+     */
+    public AccessLog(File file, int ringSize) {
+        this.file = file;
+        int size = 1;
+        while (size < ringSize) {
+            size <<= 1;
+        }
+        entries = new Entry[size];
+        for (int index = 0; index < size; index++) {
+            entries[index] = new Entry();
+        }
+        mask = size - 1;
+        writerThread = new Thread(new LogWriter(), TAG);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * log one of every n requests, server errors are always logged.
+     */
+    public void setSampleRate(int oneIn) {
+        this.sampleRate = Math.max(1, oneIn);
+    }
+
+    /**
+     * the file is rotated once it grows past the size.
+     */
+    public void setMaxFileSize(long bytes) {
+        this.maxFileSize = bytes;
+    }
+
+    /**
+     * number of rotated files kept besides the current one.
+     */
+    public void setMaxFiles(int count) {
+        this.maxFiles = count;
+    }
+
+    /**
+     * @return records lost because the writer fell behind.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void log(SocketAddress remote, String method, String path, String protocol,
+                    int status, long bytes, long micros) {
+        int rate = sampleRate;
+        if (rate > 1 && status < 500 && sampled.getAndIncrement() % rate != 0) {
+            return;
+        }
+        long sequence;
+        while (true) {
+            sequence = tail.get();
+            if (sequence - head >= entries.length || !running) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        Entry entry = entries[(int) (sequence & mask)];
+        entry.time = System.currentTimeMillis();
+        entry.remote = remote;
+        entry.method = method;
+        entry.path = path;
+        entry.protocol = protocol;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.micros = micros;
+        // publish to the writer
+        entry.sequence = sequence;
+    }
+
+    /**
+     * write what is buffered and stop the writer.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+    }
+
+    static class Entry {
+
+        volatile long sequence = -1;
+
+        long time;
+
+        SocketAddress remote;
+
+        String method;
+
+        String path;
+
+        String protocol;
+
+        int status;
+
+        long bytes;
+
+        long micros;
+    }
+
+    class LogWriter implements Runnable {
+
+        private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US);
+
+        private final StringBuilder sb = new StringBuilder(256);
+
+        private final Date date = new Date();
+
+        private Writer out;
+
+        private long fileSize;
+
+        private boolean dirty;
+
+        @Override
+        public void run() {
+            long next = head;
+            while (true) {
+                Entry entry = entries[(int) (next & mask)];
+                if (entry.sequence != next) {
+                    if (!running && tail.get() == next) {
+                        break;
+                    }
+                    flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                format(entry);
+                entry.remote = null;
+                entry.method = null;
+                entry.path = null;
+                entry.protocol = null;
+                next++;
+                head = next;
+                write();
+            }
+            flush();
+            IOUtil.close(out);
+        }
+
+        private void format(Entry entry) {
+            sb.setLength(0);
+            date.setTime(entry.time);
+            sb.append(format.format(date)).append(' ');
+            if (entry.remote instanceof InetSocketAddress) {
+                InetSocketAddress address = (InetSocketAddress) entry.remote;
+                sb.append(address.getAddress() == null ? address.getHostName()
+                        : address.getAddress().getHostAddress());
+            } else {
+                sb.append(entry.remote == null ? "-" : entry.remote.toString());
+            }
+            sb.append(' ').append(entry.method).append(' ').append(entry.path);
+            sb.append(' ').append(entry.protocol).append(' ').append(entry.status);
+            sb.append(' ').append(entry.bytes).append(' ');
+            sb.append(entry.micros / 1000).append('.');
+            long fraction = entry.micros % 1000;
+            if (fraction < 100) {
+                sb.append(fraction < 10 ? "00" : "0");
+            }
+            sb.append(fraction).append("ms\n");
+        }
+
+        private void write() {
+            try {
+                if (out == null) {
+                    open();
+                }
+                out.write(sb.toString());
+                fileSize += sb.length();
+                dirty = true;
+                if (fileSize >= maxFileSize) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                ServerLog.e(TAG, "write access log exception", e);
+                IOUtil.close(out);
+                out = null;
+            }
+        }
+
+        private void open() throws IOException {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            fileSize = file.length();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        }
+
+        private void rotate() throws IOException {
+            out.close();
+            out = null;
+            int count = maxFiles;
+            File oldest = new File(file.getPath() + "." + count);
+            oldest.delete();
+            for (int index = count - 1; index >= 1; index--) {
+                new File(file.getPath() + "." + index).renameTo(new File(file.getPath() + "." + (index + 1)));
+            }
+            if (count > 0) {
+                file.renameTo(new File(file.getPath() + ".1"));
+            } else {
+                file.delete();
+            }
+            dirty = false;
+        }
+
+        private void flush() {
+            if (!dirty || out == null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                ServerLog.e(TAG, "flush access log exception", e);
+            }
+            dirty = false;
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.kisstools.server.log;
+
+/**
+ * switch for per request and per connection debug output, callers check
+ * {@link #isEnabled()} before building the message so disabled logging
+ * costs a volatile read.
+ */
+public class DebugLog {
+
+    private static volatile boolean enabled;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        DebugLog.enabled = enabled;
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.kisstools.server.log;
+
+import java.io.PrintStream;
+
+/**
+ * logging of the server core, messages go to a pluggable {@link Sink} so
+ * the core does not depend on a platform logger. the default sink prints
+ * to standard error.
+ */
+public class ServerLog {
+
+    public static final int DEBUG = 3;
+
+    public static final int WARN = 5;
+
+    public static final int ERROR = 6;
+
+    public interface Sink {
+
+        void log(int level, String tag, String message, Throwable t);
+    }
+
+    private static volatile Sink sink = new ConsoleSink(System.err);
+
+    public static void setSink(Sink sink) {
+        ServerLog.sink = sink == null ? new ConsoleSink(System.err) : sink;
+    }
+
+    public static void d(String tag, String message) {
+        sink.log(DEBUG, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        sink.log(WARN, tag, message, null);
+    }
+
+    public static void e(String tag, String message) {
+        sink.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable t) {
+        sink.log(ERROR, tag, message, t);
+    }
+
+    static class ConsoleSink implements Sink {
+
+        private final PrintStream out;
+
+        ConsoleSink(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable t) {
+            char prefix = level >= ERROR ? 'E' : level >= WARN ? 'W' : 'D';
+            synchronized (out) {
+                out.println(prefix + "/" + tag + ": " + message);
+                if (t != null) {
+                    t.printStackTrace(out);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.kisstools.server.metrics;
+
+/**
+ * values of a {@link LatencyHistogram} at one moment, in microseconds.
+ */
+public class HistogramSnapshot {
+
+    private final long[] counts;
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100, like 99.9.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        rank = Math.max(1, Math.min(rank, count));
+        long seen = 0;
+        for (int index = 0; index < counts.length; index++) {
+            seen += counts[index];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueOf(index), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + count + " mean " + (long) getMean() + "us p50 " + getValueAtPercentile(50)
+                + "us p99 " + getValueAtPercentile(99) + "us max " + max + "us";
+    }
+
+}
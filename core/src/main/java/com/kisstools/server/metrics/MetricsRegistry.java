@@ -0,0 +1,97 @@
+package com.kisstools.server.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * named counters, gauges and latency histograms of a server. a name may be
+ * registered with several label sets like route="/file", each is its own series.
+ */
+public class MetricsRegistry {
+
+    public interface Gauge {
+
+        long getValue();
+    }
+
+    static final int COUNTER = 0;
+
+    static final int GAUGE = 1;
+
+    static final int HISTOGRAM = 2;
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    public StripedCounter counter(String name, String help) {
+        return counter(name, null, help);
+    }
+
+    /**
+     * @return the registered counter of the series, created on first use.
+     */
+    public StripedCounter counter(String name, String labels, String help) {
+        return (StripedCounter) register(name, labels, help, COUNTER, null);
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, null, help);
+    }
+
+    public LatencyHistogram histogram(String name, String labels, String help) {
+        return (LatencyHistogram) register(name, labels, help, HISTOGRAM, null);
+    }
+
+    /**
+     * a value sampled when a snapshot is taken, replaces an earlier gauge of the series.
+     */
+    public void gauge(String name, String help, Gauge gauge) {
+        metrics.put(key(name, null), new Metric(name, null, help, GAUGE, gauge));
+    }
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(metrics.values());
+    }
+
+    private Object register(String name, String labels, String help, int type, Object value) {
+        String key = key(name, labels);
+        Metric metric = metrics.get(key);
+        if (metric == null) {
+            Object created = type == COUNTER ? new StripedCounter() : new LatencyHistogram();
+            Metric fresh = new Metric(name, labels, help, type, created);
+            metric = metrics.putIfAbsent(key, fresh);
+            if (metric == null) {
+                metric = fresh;
+            }
+        }
+        if (metric.type != type) {
+            throw new IllegalArgumentException(key + " is registered with another type");
+        }
+        return metric.value;
+    }
+
+    static String key(String name, String labels) {
+        return labels == null ? name : name + "{" + labels + "}";
+    }
+
+    static class Metric {
+
+        final String name;
+
+        final String labels;
+
+        final String help;
+
+        final int type;
+
+        final Object value;
+
+        Metric(String name, String labels, String help, int type, Object value) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.kisstools.server.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * values of all metrics of a registry at one moment, sorted by name.
+ */
+public class MetricsSnapshot {
+
+    public static class Sample {
+
+        public final String name;
+
+        /**
+         * like route="/file", null without labels.
+         */
+        public final String labels;
+
+        public final String help;
+
+        /**
+         * counter or gauge value, 0 for histograms.
+         */
+        public final long value;
+
+        /**
+         * null for counters and gauges.
+         */
+        public final HistogramSnapshot histogram;
+
+        final int type;
+
+        Sample(MetricsRegistry.Metric metric, long value, HistogramSnapshot histogram) {
+            this.name = metric.name;
+            this.labels = metric.labels;
+            this.help = metric.help;
+            this.type = metric.type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+
+        public boolean isCounter() {
+            return type == MetricsRegistry.COUNTER;
+        }
+
+        public boolean isGauge() {
+            return type == MetricsRegistry.GAUGE;
+        }
+    }
+
+    private final List<Sample> samples;
+
+    MetricsSnapshot(Collection<MetricsRegistry.Metric> metrics) {
+        List<Sample> samples = new ArrayList<>(metrics.size());
+        for (MetricsRegistry.Metric metric : metrics) {
+            if (metric.type == MetricsRegistry.HISTOGRAM) {
+                samples.add(new Sample(metric, 0, ((LatencyHistogram) metric.value).snapshot()));
+            } else if (metric.type == MetricsRegistry.GAUGE) {
+                samples.add(new Sample(metric, ((MetricsRegistry.Gauge) metric.value).getValue(), null));
+            } else {
+                samples.add(new Sample(metric, ((StripedCounter) metric.value).sum(), null));
+            }
+        }
+        Collections.sort(samples, new Comparator<Sample>() {
+            @Override
+            public int compare(Sample left, Sample right) {
+                int result = left.name.compareTo(right.name);
+                if (result != 0) {
+                    return result;
+                }
+                if (left.labels == null) {
+                    return right.labels == null ? 0 : -1;
+                }
+                return right.labels == null ? 1 : left.labels.compareTo(right.labels);
+            }
+        });
+        this.samples = Collections.unmodifiableList(samples);
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the counter or gauge value, 0 if it is not registered.
+     */
+    public long getValue(String name, String labels) {
+        Sample sample = find(name, labels);
+        return sample == null ? 0 : sample.value;
+    }
+
+    public long getValue(String name) {
+        return getValue(name, null);
+    }
+
+    /**
+     * @return null if the histogram is not registered.
+     */
+    public HistogramSnapshot getHistogram(String name, String labels) {
+        Sample sample = find(name, labels);
+        return sample == null ? null : sample.histogram;
+    }
+
+    private Sample find(String name, String labels) {
+        for (Sample sample : samples) {
+            if (sample.name.equals(name)
+                    && (labels == null ? sample.labels == null : labels.equals(sample.labels))) {
+                return sample;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.kisstools.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a counter spread over padded cells so threads rarely update the same
+ * cache line, reading sums all cells.
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = stripeCount();
+
+    // 8 longs keep cells 64 bytes apart
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors() * 2;
+        int stripes = 4;
+        while (stripes < processors && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        int stripe = (hash >>> 16) & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += cells.get(stripe * PADDING);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.kisstools.server.nio;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * recycles fixed size byte arrays of connections, at most maxPooled arrays
+ * are kept, others are left to the garbage collector.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    private final Queue<byte[]> buffers;
+
+    private final AtomicInteger pooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.buffers = new ConcurrentLinkedQueue<byte[]>();
+        this.pooled = new AtomicInteger();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+
+}
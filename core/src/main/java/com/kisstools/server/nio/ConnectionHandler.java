@@ -0,0 +1,29 @@
+package com.kisstools.server.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * protocol callbacks of a {@link NioServer}, invoked on the event loop thread
+ * of the connection, implementations must not block.
+ */
+public interface ConnectionHandler {
+
+    void onConnected(NioConnection connection);
+
+    /**
+     * @param buffer received bytes in read mode, bytes left unconsumed are
+     *               kept and presented again on the next call.
+     */
+    void onReadable(NioConnection connection, ByteBuffer buffer);
+
+    void onClosed(NioConnection connection);
+
+    /**
+     * a timeout of {@link NioConnection#getTimeout()} expired, called on the
+     * timer thread right before the connection is closed.
+     *
+     * @param reason see {@link ConnectionTimeout#onExpired(String)}.
+     */
+    void onTimeout(NioConnection connection, String reason);
+
+}
@@ -0,0 +1,199 @@
+package com.kisstools.server.nio;
+
+/**
+ * the timeouts of one connection on a {@link TimerWheel}, any mix of
+ * <ul>
+ * <li>an idle timeout, pushed back by {@link #touch()} on traffic,</li>
+ * <li>a fixed deadline, like the time a client has to send a request head,</li>
+ * <li>a watch on reads and writes waiting for the peer, that limits a single
+ * wait and the average rate of a transfer.</li>
+ * </ul>
+ * the io thread only writes a few fields, the timer thread works out on
+ * expiry whether the connection is really late.
+ */
+public abstract class ConnectionTimeout extends TimerWheel.Timeout {
+
+    public static final String IDLE = "idle";
+
+    public static final String IO = "io";
+
+    public static final String RATE = "rate";
+
+    /**
+     * time a transfer gets before its rate counts.
+     */
+    private static final long RATE_GRACE = 5000;
+
+    private final TimerWheel wheel;
+
+    private volatile long idleTimeout;
+
+    private volatile long lastActive;
+
+    private volatile long deadline;
+
+    private volatile String reason;
+
+    private volatile long ioTimeout;
+
+    private volatile long minRate;
+
+    // the io watch, written by the io thread only
+    private volatile long waitStart;
+
+    private volatile long waited;
+
+    private volatile long transferred;
+
+    protected ConnectionTimeout(TimerWheel wheel) {
+        this.wheel = wheel;
+        this.lastActive = TimerWheel.now();
+    }
+
+    /**
+     * called on the timer thread, close the connection here without blocking.
+     *
+     * @param reason {@link #IDLE}, {@link #IO}, {@link #RATE} or the reason
+     *               of the deadline.
+     */
+    protected abstract void onExpired(String reason);
+
+    /**
+     * expire after the given time without {@link #touch()}, 0 disables it.
+     */
+    public void setIdleTimeout(long timeout) {
+        long now = TimerWheel.now();
+        lastActive = now;
+        idleTimeout = timeout;
+        if (timeout > 0) {
+            wheel.schedule(this, now + timeout);
+        }
+    }
+
+    public void touch() {
+        lastActive = TimerWheel.now();
+    }
+
+    /**
+     * expire once the time passed, whatever the traffic.
+     */
+    public void expireAfter(long timeout, String reason) {
+        long due = TimerWheel.now() + timeout;
+        this.reason = reason;
+        deadline = due;
+        wheel.schedule(this, due);
+    }
+
+    public void clearDeadline() {
+        deadline = 0;
+    }
+
+    /**
+     * start a transfer, from now on a read or write between
+     * {@link #beginIo()} and {@link #endIo(long)} may wait at most the
+     * timeout. after a short grace the transfer has to average the rate
+     * over the time spent waiting.
+     *
+     * @param minRate bytes per second, 0 for no rate.
+     */
+    public void watchIo(long timeout, long minRate) {
+        waitStart = 0;
+        waited = 0;
+        transferred = 0;
+        this.minRate = minRate;
+        ioTimeout = timeout;
+        if (timeout > 0) {
+            wheel.schedule(this, TimerWheel.now() + timeout);
+        }
+    }
+
+    public void stopWatching() {
+        ioTimeout = 0;
+    }
+
+    /**
+     * the calling thread is about to wait for the peer.
+     */
+    public void beginIo() {
+        long timeout = ioTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+        long now = TimerWheel.now();
+        waitStart = now;
+        wheel.schedule(this, now + ioLimit(timeout));
+    }
+
+    /**
+     * @param bytes moved by the wait that ended.
+     */
+    public void endIo(long bytes) {
+        long start = waitStart;
+        if (start == 0) {
+            return;
+        }
+        waitStart = 0;
+        waited += TimerWheel.now() - start;
+        transferred += bytes;
+    }
+
+    /**
+     * leave the wheel, the timeouts can be set again.
+     */
+    public void cancel() {
+        idleTimeout = 0;
+        deadline = 0;
+        ioTimeout = 0;
+        wheel.cancel(this);
+    }
+
+    /**
+     * @return how long the next wait may take.
+     */
+    private long ioLimit(long timeout) {
+        long rate = minRate;
+        if (rate <= 0) {
+            return timeout;
+        }
+        long budget = RATE_GRACE + transferred * 1000 / rate - waited;
+        return Math.max(0, Math.min(timeout, budget));
+    }
+
+    @Override
+    protected long expire(long now) {
+        long next = Long.MAX_VALUE;
+        long idle = idleTimeout;
+        if (idle > 0) {
+            long due = lastActive + idle;
+            if (now >= due) {
+                onExpired(IDLE);
+                return 0;
+            }
+            next = due;
+        }
+        long fixed = deadline;
+        if (fixed > 0) {
+            if (now >= fixed) {
+                onExpired(reason);
+                return 0;
+            }
+            next = Math.min(next, fixed);
+        }
+        long timeout = ioTimeout;
+        if (timeout > 0) {
+            long start = waitStart;
+            long limit = ioLimit(timeout);
+            if (start == 0) {
+                // not waiting, a wait starting later reschedules itself if it is shorter
+                next = Math.min(next, now + timeout);
+            } else if (now >= start + limit) {
+                onExpired(limit < timeout ? RATE : IO);
+                return 0;
+            } else {
+                next = Math.min(next, start + limit);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : next;
+    }
+
+}
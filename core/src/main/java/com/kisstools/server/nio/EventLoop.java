@@ -0,0 +1,138 @@
+package com.kisstools.server.nio;
+
+import com.kisstools.server.log.ServerLog;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * a selector thread serving the io of many connections.
+ */
+class EventLoop extends Thread {
+
+    public static final String TAG = "EventLoop";
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks;
+
+    private final ConnectionHandler handler;
+
+    private final TimerWheel timers;
+
+    private volatile boolean running;
+
+    EventLoop(String name, ConnectionHandler handler, TimerWheel timers) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.handler = handler;
+        this.timers = timers;
+        this.running = true;
+        setName(name);
+        setDaemon(true);
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * run the task on this loop, directly if already on it.
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(EventLoop.this, channel, key, handler,
+                            timers);
+                    key.attach(connection);
+                    connection.onConnected();
+                } catch (IOException e) {
+                    ServerLog.e(TAG, "register exception!", e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                processKeys();
+            } catch (Throwable t) {
+                ServerLog.e(TAG, "event loop exception!", t);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                ServerLog.e(TAG, "task exception!", t);
+            }
+        }
+    }
+
+    private void processKeys() {
+        Set<SelectionKey> selected = selector.selectedKeys();
+        Iterator<SelectionKey> iterator = selected.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection == null || !key.isValid()) {
+                continue;
+            }
+            if (key.isWritable()) {
+                connection.flushWrites();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.readChannel();
+            }
+        }
+    }
+
+}
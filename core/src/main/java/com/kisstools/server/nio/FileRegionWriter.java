@@ -0,0 +1,17 @@
+package com.kisstools.server.nio;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * an output able to send file content without copying it through the java heap.
+ */
+public interface FileRegionWriter {
+
+    /**
+     * send count bytes of the file starting at position, after any bytes
+     * written before. the writer takes ownership of the file channel and closes it.
+     */
+    void writeFileRegion(FileChannel file, long position, long count) throws IOException;
+
+}
@@ -0,0 +1,620 @@
+package com.kisstools.server.nio;
+
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a non-blocking connection owned by one {@link EventLoop}. reads happen on the
+ * loop, writes may be queued from any thread and are flushed by the loop.
+ */
+public class NioConnection implements FileRegionWriter {
+
+    public static final String TAG = "NioConnection";
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int HIGH_WATER_MARK = 256 * 1024;
+
+    private static final int LOW_WATER_MARK = 64 * 1024;
+
+    private static final long RETRY_DELAY = 100;
+
+    private final EventLoop loop;
+
+    private final SocketChannel channel;
+
+    private final SelectionKey key;
+
+    private final ConnectionHandler handler;
+
+    private final Queue<PendingWrite> writeQueue;
+
+    private final AtomicLong pendingBytes;
+
+    private final AtomicBoolean flushScheduled;
+
+    private final AtomicBoolean closed;
+
+    private final Object writeLock;
+
+    private final SocketAddress remoteAddress;
+
+    private ByteBuffer readBuffer;
+
+    private boolean readable;
+
+    private volatile boolean closeAfterFlush;
+
+    private final ConnectionTimeout timeout;
+
+    private final TimerWheel timers;
+
+    private OutputStream outputStream;
+
+    private volatile Runnable writableListener;
+
+    // run once the queue drained, loop only
+    private Runnable flushedTask;
+
+    private Object attachment;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flushWrites();
+        }
+    };
+
+    NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key, ConnectionHandler handler,
+                  TimerWheel timers) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+        this.writeQueue = new ConcurrentLinkedQueue<PendingWrite>();
+        this.pendingBytes = new AtomicLong();
+        this.flushScheduled = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+        this.writeLock = new Object();
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        this.readable = true;
+        this.timers = timers;
+        this.timeout = new ConnectionTimeout(timers) {
+            @Override
+            protected void onExpired(String reason) {
+                try {
+                    NioConnection.this.handler.onTimeout(NioConnection.this, reason);
+                } finally {
+                    close();
+                }
+            }
+        };
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * false while the queued bytes are above the high water mark, callers
+     * that must not block hold back further writes.
+     */
+    public boolean isWritable() {
+        return pendingBytes.get() < HIGH_WATER_MARK && !closed.get();
+    }
+
+    /**
+     * run on the event loop when the queued bytes drop below the low water
+     * mark, must not block.
+     */
+    public void setWritableListener(Runnable listener) {
+        this.writableListener = listener;
+    }
+
+    /**
+     * close the connection after the given time without traffic, 0 disables.
+     * queued writes that make no progress count as no traffic.
+     */
+    public void setIdleTimeout(long timeout) {
+        this.timeout.setIdleTimeout(timeout);
+    }
+
+    /**
+     * timeouts of the connection, reads and writes count as traffic. a
+     * worker blocked on a full write queue is watched as io.
+     */
+    public ConnectionTimeout getTimeout() {
+        return timeout;
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * run the task on the timer thread a moment later unless the connection
+     * closed by then, must not block. retries work a saturated worker pool
+     * refused, which must not run on the loop instead.
+     */
+    public void retryLater(final Runnable task) {
+        timers.schedule(new TimerWheel.Timeout() {
+            @Override
+            protected long expire(long now) {
+                if (!closed.get()) {
+                    task.run();
+                }
+                return 0;
+            }
+        }, TimerWheel.now() + RETRY_DELAY);
+    }
+
+    /**
+     * stop reading from the socket, received bytes stay buffered.
+     */
+    public void pauseReading() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                readable = false;
+                updateInterest();
+            }
+        });
+    }
+
+    /**
+     * continue reading, bytes buffered while paused are handed to the handler first.
+     */
+    public void resumeReading() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                readable = true;
+                updateInterest();
+                if (readBuffer != null && readBuffer.position() > 0) {
+                    dispatchRead();
+                }
+            }
+        });
+    }
+
+    /**
+     * queue the buffer for writing, safe to call from any thread.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        write(buffer, null);
+    }
+
+    /**
+     * queue a buffer backed by an array of the pool, the array is released
+     * once written or dropped.
+     */
+    public void write(ByteBuffer buffer, BufferPool pool) throws IOException {
+        if (closed.get()) {
+            if (pool != null) {
+                pool.release(buffer.array());
+            }
+            throw new IOException("connection closed");
+        }
+        int size = buffer.remaining();
+        if (size == 0) {
+            if (pool != null) {
+                pool.release(buffer.array());
+            }
+            return;
+        }
+        pendingBytes.addAndGet(size);
+        enqueue(new BufferWrite(buffer, pool));
+    }
+
+    /**
+     * queue a file region, the loop sends it with {@link FileChannel#transferTo}
+     * without blocking the caller. file bytes do not count against the water marks.
+     */
+    @Override
+    public void writeFileRegion(FileChannel file, long position, long count) throws IOException {
+        if (closed.get()) {
+            IOUtil.close(file);
+            throw new IOException("connection closed");
+        }
+        enqueue(new FileWrite(file, position, count));
+    }
+
+    private void enqueue(PendingWrite pending) {
+        writeQueue.add(pending);
+        if (closed.get()) {
+            // lost the race with close, nobody flushes this queue anymore
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseWrites();
+                }
+            });
+        } else if (loop.inEventLoop()) {
+            flushWrites();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * a blocking stream view for worker threads, blocks while too many bytes
+     * are waiting for the socket.
+     */
+    public synchronized OutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new ChannelOutputStream();
+        }
+        return outputStream;
+    }
+
+    /**
+     * close once all queued bytes are written.
+     */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        loop.execute(flushTask);
+    }
+
+    /**
+     * run the task on the loop once all queued bytes are written. until then
+     * the loop waiting for the socket is watched as io, the writer has
+     * nothing left to block on.
+     */
+    public void runAfterFlush(final Runnable task) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed.get()) {
+                    return;
+                }
+                if (writeQueue.isEmpty()) {
+                    task.run();
+                    return;
+                }
+                flushedTask = task;
+                timeout.beginIo();
+            }
+        });
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        timeout.cancel();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                releaseWrites();
+                readBuffer = null;
+                handler.onClosed(NioConnection.this);
+            }
+        });
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+    }
+
+    private void releaseWrites() {
+        PendingWrite pending;
+        while ((pending = writeQueue.poll()) != null) {
+            pending.release();
+        }
+    }
+
+    void onConnected() {
+        handler.onConnected(this);
+    }
+
+    void readChannel() {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE) {
+                ServerLog.d(TAG, "read buffer overflow " + remoteAddress);
+                close();
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+        timeout.touch();
+        dispatchRead();
+    }
+
+    private void dispatchRead() {
+        readBuffer.flip();
+        try {
+            handler.onReadable(this, readBuffer);
+        } catch (Throwable t) {
+            ServerLog.e(TAG, "handler exception!", t);
+            close();
+        }
+        if (readBuffer == null) {
+            return;
+        }
+        if (readBuffer.hasRemaining()) {
+            readBuffer.compact();
+        } else if (readBuffer.capacity() > READ_BUFFER_SIZE) {
+            // drop grown buffers so idle connections stay small
+            readBuffer = null;
+        } else {
+            readBuffer.clear();
+        }
+    }
+
+    void flushWrites() {
+        if (closed.get()) {
+            return;
+        }
+        long written = 0;
+        try {
+            PendingWrite pending;
+            while ((pending = writeQueue.peek()) != null) {
+                long count = pending.writeTo(channel);
+                if (count > 0) {
+                    written += count;
+                    timeout.touch();
+                }
+                if (!pending.isDone()) {
+                    break;
+                }
+                writeQueue.poll();
+                pending.release();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (writeQueue.isEmpty() && closeAfterFlush) {
+            close();
+            return;
+        }
+        Runnable task = flushedTask;
+        if (task != null) {
+            timeout.endIo(written);
+            if (writeQueue.isEmpty()) {
+                flushedTask = null;
+                task.run();
+            } else {
+                timeout.beginIo();
+            }
+        }
+        updateInterest();
+    }
+
+    private void releasePending(int written) {
+        long pending = pendingBytes.addAndGet(-written);
+        if (pending < LOW_WATER_MARK && pending + written >= LOW_WATER_MARK) {
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+            Runnable listener = writableListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (readable) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void awaitWritable() throws IOException {
+        long pending = pendingBytes.get();
+        if (pending < HIGH_WATER_MARK || loop.inEventLoop()) {
+            return;
+        }
+        timeout.beginIo();
+        try {
+            synchronized (writeLock) {
+                while (pendingBytes.get() >= LOW_WATER_MARK && !closed.get()) {
+                    try {
+                        writeLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted");
+                    }
+                }
+            }
+        } finally {
+            timeout.endIo(pending - pendingBytes.get());
+        }
+        if (closed.get()) {
+            throw new IOException("connection closed");
+        }
+    }
+
+    interface PendingWrite {
+
+        long writeTo(SocketChannel channel) throws IOException;
+
+        boolean isDone();
+
+        void release();
+    }
+
+    class BufferWrite implements PendingWrite {
+
+        private final ByteBuffer buffer;
+
+        private final BufferPool pool;
+
+        BufferWrite(ByteBuffer buffer, BufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel) throws IOException {
+            int written = channel.write(buffer);
+            if (written > 0) {
+                releasePending(written);
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isDone() {
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+            if (pool != null) {
+                pool.release(buffer.array());
+            }
+        }
+    }
+
+    static class FileWrite implements PendingWrite {
+
+        private final FileChannel file;
+
+        private long position;
+
+        private long remaining;
+
+        FileWrite(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel) throws IOException {
+            long sent = file.transferTo(position, remaining, channel);
+            if (sent <= 0 && position >= file.size()) {
+                throw new IOException("file truncated while sending");
+            }
+            position += sent;
+            remaining -= sent;
+            return sent;
+        }
+
+        @Override
+        public boolean isDone() {
+            return remaining <= 0;
+        }
+
+        @Override
+        public void release() {
+            IOUtil.close(file);
+        }
+    }
+
+    class ChannelOutputStream extends OutputStream implements FileRegionWriter {
+
+        private static final int CHUNK_SIZE = 16 * 1024;
+
+        private ByteBuffer current;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCurrent();
+            current.put((byte) b);
+            if (!current.hasRemaining()) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                ensureCurrent();
+                int size = Math.min(length, current.remaining());
+                current.put(bytes, offset, size);
+                offset += size;
+                length -= size;
+                if (!current.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (current == null || current.position() == 0) {
+                return;
+            }
+            current.flip();
+            ByteBuffer buffer = current;
+            current = null;
+            NioConnection.this.write(buffer);
+            awaitWritable();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        @Override
+        public void writeFileRegion(FileChannel file, long position, long count) throws IOException {
+            flush();
+            NioConnection.this.writeFileRegion(file, position, count);
+        }
+
+        private void ensureCurrent() throws IOException {
+            if (closed.get()) {
+                throw new IOException("connection closed");
+            }
+            if (current == null) {
+                current = ByteBuffer.allocate(CHUNK_SIZE);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.kisstools.server.nio;
+
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.util.IOUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * accepts connections on a {@link ServerSocketChannel} and spreads them over
+ * a fixed group of selector event loops, an idle connection costs its
+ * buffers only, no thread. the timeouts of all connections share one
+ * {@link TimerWheel}.
+ */
+public class NioServer {
+
+    public static final String TAG = "NioServer";
+
+    private final String name;
+
+    private final int port;
+
+    private final int loopCount;
+
+    private final ConnectionHandler handler;
+
+    private ServerSocketChannel serverChannel;
+
+    private EventLoop[] loops;
+
+    private final TimerWheel timers;
+
+    private Thread acceptThread;
+
+    private int nextLoop;
+
+    public NioServer(String name, int port, int loopCount, ConnectionHandler handler) {
+        this.name = name;
+        this.port = port;
+        this.loopCount = loopCount > 0 ? loopCount : 1;
+        this.handler = handler;
+        this.timers = new TimerWheel(name);
+    }
+
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+
+        timers.start();
+        loops = new EventLoop[loopCount];
+        for (int index = 0; index < loopCount; ++index) {
+            loops[index] = new EventLoop(name + "-loop-" + index, handler, timers);
+            loops[index].start();
+        }
+
+        acceptThread = new AcceptThread();
+        acceptThread.setName(name + "-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        ServerLog.d(TAG, name + " serve port " + port + " with " + loopCount + " event loops");
+    }
+
+    public void stop() {
+        IOUtil.close(serverChannel);
+        timers.stop();
+        if (loops == null) {
+            return;
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    class AcceptThread extends Thread {
+
+        public void run() {
+            try {
+                while (serverChannel.isOpen()) {
+                    SocketChannel channel = serverChannel.accept();
+                    if (DebugLog.isEnabled()) {
+                        ServerLog.d(TAG, "connection from " + channel.socket().getRemoteSocketAddress()
+                                + " established");
+                    }
+                    EventLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.register(channel);
+                }
+            } catch (IOException e) {
+                ServerLog.d(TAG, name + " stop accepting, " + e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.kisstools.server.nio;
+
+/**
+ * io model used by a server to serve its connections.
+ */
+public enum ServerEngine {
+
+    /**
+     * one blocking thread per connection.
+     */
+    BLOCKING,
+
+    /**
+     * selector based event loops, worker threads only for request processing.
+     */
+    NIO
+
+}
@@ -0,0 +1,20 @@
+package com.kisstools.server.nio;
+
+/**
+ * kind of threads a {@link WorkerPool} runs its work on.
+ */
+public enum ThreadMode {
+
+    /**
+     * a fixed number of platform threads behind a bounded queue.
+     */
+    PLATFORM,
+
+    /**
+     * a new virtual thread per task, blocking work no longer holds an os
+     * thread. needs java 21, older runtimes and android fall back to
+     * {@link #PLATFORM}.
+     */
+    VIRTUAL
+
+}
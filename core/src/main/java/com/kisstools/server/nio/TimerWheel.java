@@ -0,0 +1,258 @@
+package com.kisstools.server.nio;
+
+import com.kisstools.server.log.ServerLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * deadlines of many connections on one timer thread. a timeout is queued in
+ * the bucket of its tick and the thread visits one bucket per tick, adding,
+ * moving and expiring a timeout costs the same for a hundred of them or a
+ * hundred thousand. deadlines more than a turn of the wheel away stay in
+ * their bucket for the later turns.
+ * <p>
+ * expiry is lazy, a timeout decides when it is visited whether it is due,
+ * so pushing a deadline back is a field write and no wheel operation.
+ */
+public class TimerWheel {
+
+    public static final String TAG = "TimerWheel";
+
+    private static final long TICK_MILLIS = 100;
+
+    private static final int BUCKET_COUNT = 512;
+
+    private final String name;
+
+    private final long tickMillis;
+
+    private final Timeout[] buckets;
+
+    private final int mask;
+
+    // guarded by this
+    private long currentTick;
+
+    private int size;
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    public TimerWheel(String name) {
+        this(name, TICK_MILLIS, BUCKET_COUNT);
+    }
+
+    /**
+     * @param tickMillis  resolution of the deadlines.
+     * @param bucketCount rounded up to a power of two.
+     */
+    public TimerWheel(String name, long tickMillis, int bucketCount) {
+        int count = 1;
+        while (count < bucketCount) {
+            count <<= 1;
+        }
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[count];
+        this.mask = count - 1;
+        this.currentTick = now() / tickMillis;
+    }
+
+    /**
+     * @return milliseconds of a monotonic clock, the time base of all deadlines.
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        currentTick = now() / tickMillis;
+        thread = new TimerThread();
+        thread.setName(name + "-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * queued timeouts are dropped without expiring.
+     */
+    public void stop() {
+        Thread timer;
+        synchronized (this) {
+            running = false;
+            timer = thread;
+            thread = null;
+            for (int index = 0; index < buckets.length; index++) {
+                Timeout timeout = buckets[index];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.prev = null;
+                    timeout.next = null;
+                    timeout.queued = 0;
+                    timeout = next;
+                }
+                buckets[index] = null;
+            }
+            size = 0;
+        }
+        if (timer != null) {
+            timer.interrupt();
+        }
+    }
+
+    /**
+     * make sure the timeout is visited no later than the deadline, one
+     * queued for an earlier time stays where it is.
+     *
+     * @param deadline in {@link #now()} milliseconds.
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        long queued = timeout.queued;
+        if (queued != 0 && queued <= deadline) {
+            return;
+        }
+        synchronized (this) {
+            if (timeout.queued != 0) {
+                if (timeout.queued <= deadline) {
+                    return;
+                }
+                unlink(timeout);
+            }
+            // round up so a timeout is never visited before its deadline
+            long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+            int index = (int) (tick & mask);
+            timeout.tick = tick;
+            timeout.queued = Math.max(deadline, 1);
+            timeout.next = buckets[index];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            buckets[index] = timeout;
+            size++;
+        }
+    }
+
+    public synchronized void cancel(Timeout timeout) {
+        if (timeout.queued != 0) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * @return the number of queued timeouts.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.tick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.queued = 0;
+        size--;
+    }
+
+    private void runTimer() {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            long now;
+            synchronized (this) {
+                // a thread of an earlier start() ends here
+                if (thread != Thread.currentThread()) {
+                    return;
+                }
+                now = now();
+                long target = now / tickMillis;
+                // a late thread visits each bucket at most once
+                for (long tick = Math.max(currentTick + 1, target - mask); tick <= target; tick++) {
+                    collect(tick, expired);
+                }
+                currentTick = Math.max(currentTick, target);
+            }
+            for (Timeout timeout : expired) {
+                long next;
+                try {
+                    next = timeout.expire(now);
+                } catch (Throwable t) {
+                    ServerLog.e(TAG, "timeout exception!", t);
+                    next = 0;
+                }
+                if (next > 0 && running) {
+                    schedule(timeout, next);
+                }
+            }
+            expired.clear();
+            long sleep = (now / tickMillis + 1) * tickMillis - now();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // stop() wakes the thread up
+                }
+            }
+        }
+    }
+
+    private void collect(long tick, List<Timeout> expired) {
+        int index = (int) (tick & mask);
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.tick <= tick) {
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    class TimerThread extends Thread {
+
+        @Override
+        public void run() {
+            runTimer();
+        }
+    }
+
+    /**
+     * an entry of the wheel, one per connection that is reused for all its
+     * deadlines.
+     */
+    public abstract static class Timeout {
+
+        // bucket list, guarded by the wheel
+        private Timeout prev;
+
+        private Timeout next;
+
+        private long tick;
+
+        /**
+         * deadline it is queued for, 0 while not queued.
+         */
+        private volatile long queued;
+
+        /**
+         * called on the timer thread once the queued deadline passed, must
+         * not block.
+         *
+         * @return a later deadline to be visited again, 0 to leave the wheel.
+         */
+        protected abstract long expire(long now);
+    }
+
+}
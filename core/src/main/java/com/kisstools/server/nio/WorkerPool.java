@@ -0,0 +1,190 @@
+package com.kisstools.server.nio;
+
+import com.kisstools.server.log.ServerLog;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * fixed number of worker threads behind a bounded queue, new work is
+ * refused instead of piling up once both are full. with
+ * {@link ThreadMode#VIRTUAL} every task gets a virtual thread of its own
+ * and work is refused once the limit of running tasks is reached.
+ */
+public class WorkerPool {
+
+    public static final String TAG = "WorkerPool";
+
+    private static final long IDLE_TIMEOUT = 60;
+
+    private final ThreadPoolExecutor executor;
+
+    // virtual mode, a permit per running task
+    private final ThreadFactory virtualFactory;
+
+    private final Semaphore permits;
+
+    private final int maxTasks;
+
+    private volatile boolean shutdown;
+
+    public WorkerPool(String name, int threads, int queueSize) {
+        this(name, threads, queueSize, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * @param threads   with virtual threads the number of tasks running at once.
+     * @param queueSize not used by virtual threads, nothing waits for a thread.
+     */
+    public WorkerPool(final String name, int threads, int queueSize, ThreadMode mode) {
+        maxTasks = threads;
+        ThreadFactory virtual = null;
+        if (mode == ThreadMode.VIRTUAL) {
+            virtual = newVirtualThreadFactory(name + "-virtual-");
+            if (virtual == null) {
+                ServerLog.w(TAG, name + " has no virtual threads on this runtime, use platform threads");
+            }
+        }
+        virtualFactory = virtual;
+        if (virtual != null) {
+            permits = new Semaphore(threads);
+            executor = null;
+            return;
+        }
+        permits = null;
+        BlockingQueue<Runnable> queue;
+        if (queueSize > 0) {
+            queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        } else {
+            queue = new SynchronousQueue<Runnable>();
+        }
+        ThreadFactory factory = new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        executor = new ThreadPoolExecutor(threads, threads, IDLE_TIMEOUT, TimeUnit.SECONDS,
+                queue, factory);
+        // idle pools shrink to no threads at all
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return false if all threads are busy and the queue is full.
+     */
+    public boolean tryExecute(Runnable task) {
+        if (virtualFactory != null) {
+            return startVirtual(task);
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private boolean startVirtual(final Runnable task) {
+        if (shutdown || !permits.tryAcquire()) {
+            return false;
+        }
+        Runnable wrapper = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+        try {
+            virtualFactory.newThread(wrapper).start();
+            return true;
+        } catch (RuntimeException e) {
+            permits.release();
+            return false;
+        }
+    }
+
+    /**
+     * for work that must not be refused, a saturated or stopped pool runs it
+     * on the calling thread. never call it from an event loop, the task
+     * would stall every connection of the loop. use
+     * {@link #tryExecute(Runnable)} there and retry a refused task later.
+     */
+    public void executeOrRun(Runnable task) {
+        if (!tryExecute(task)) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return whether queued work waits for a free thread.
+     */
+    public boolean isSaturated() {
+        return executor != null && !executor.getQueue().isEmpty();
+    }
+
+    public int getQueuedCount() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        if (executor == null) {
+            return maxTasks - permits.availablePermits();
+        }
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the threads actually used, virtual falls back to platform
+     * where the runtime lacks them.
+     */
+    public ThreadMode getThreadMode() {
+        return virtualFactory != null ? ThreadMode.VIRTUAL : ThreadMode.PLATFORM;
+    }
+
+    /**
+     * running work finishes, new work is refused.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(prefix, 1).factory() by reflection, the
+     * sources stay on java 7.
+     *
+     * @return null if the runtime has no virtual threads.
+     */
+    static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, prefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // no such method before java 21, a preview feature on 19 and 20
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.server.packet;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+
+public class Packet {
+
+    public static final String COMMAND = "command";
+
+    public static final String CMD_NONE = null;
+
+    public static final String CMD_SYS_INFO = "sysinfo";
+
+    /**
+     * answer to a command that failed, the data holds the reason.
+     */
+    public static final String CMD_ERROR = "error";
+
+    public static final String CMD_SUBSCRIBE = "subscribe";
+
+    public static final String CMD_UNSUBSCRIBE = "unsubscribe";
+
+    /**
+     * pushed to subscribers, the params hold the {@link #TOPIC}.
+     */
+    public static final String CMD_EVENT = "event";
+
+    public static final String TOPIC = "topic";
+
+    public static final String ID = "id";
+
+    /**
+     * packets without an id are answered in the order they arrive.
+     */
+    public static final long NO_ID = 0;
+
+    public static final String DATA = "data";
+
+    public static final String PARAMS = "params";
+
+    public static Packet unpack(String text) {
+        Packet packet = new Packet();
+        if (text == null || text.isEmpty()) {
+            return packet;
+        }
+        JSONObject jo = parseObject(text);
+        if (jo == null) {
+            packet.data = text;
+            return packet;
+        }
+
+        Object id = jo.get(ID);
+        if (id instanceof Number) {
+            packet.id = ((Number) id).longValue();
+        }
+        packet.command = jo.getString(COMMAND);
+        packet.data = jo.getString(DATA);
+        Object params = jo.get(PARAMS);
+        if (params instanceof JSONObject) {
+            packet.params = (JSONObject) params;
+        }
+
+        return packet;
+    }
+
+    private static JSONObject parseObject(String text) {
+        try {
+            return JSON.parseObject(text);
+        } catch (RuntimeException e) {
+            // plain text lines are echoed as data
+            return null;
+        }
+    }
+
+    public static String pack(Packet packet) {
+        if (packet == null) {
+            return null;
+        }
+
+        JSONObject jo = new JSONObject();
+        if (packet.id != NO_ID) {
+            jo.put(ID, packet.id);
+        }
+        jo.put(COMMAND, packet.command);
+        jo.put(DATA, packet.getData());
+        jo.put(PARAMS, packet.getParams());
+        return jo.toJSONString();
+    }
+
+    private long id;
+
+    private String data;
+
+    private String command;
+
+    private JSONObject params;
+
+    // raw fields of binary frames, converted on first access
+    byte[] payload;
+
+    byte[] paramsBytes;
+
+    public Packet() {
+        this.command = CMD_NONE;
+    }
+
+    public String toString() {
+        JSONObject params = getParams();
+        String paramsText = params == null ? "" : params.toJSONString();
+        return "[id] " + id + " [command] " + command + " [data] " + getData() + " [params] "
+                + paramsText;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * set by clients to correlate responses of concurrent commands.
+     */
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getData() {
+        if (data == null && payload != null) {
+            data = new String(payload, PacketCodec.UTF_8);
+        }
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+        this.payload = null;
+    }
+
+    /**
+     * the data as bytes, binary frames carry it without conversion.
+     */
+    public byte[] getPayload() {
+        if (payload == null && data != null) {
+            payload = data.getBytes(PacketCodec.UTF_8);
+        }
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+        this.data = null;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    public JSONObject getParams() {
+        if (params == null && paramsBytes != null) {
+            params = JSON.parseObject(paramsBytes, JSONObject.class);
+            paramsBytes = null;
+        }
+        return params;
+    }
+
+    public void setParams(JSONObject params) {
+        this.params = params;
+        this.paramsBytes = null;
+    }
+}
@@ -0,0 +1,156 @@
+package com.kisstools.server.packet;
+
+import com.alibaba.fastjson.JSON;
+import com.kisstools.server.nio.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * binary framing of packets, negotiated by a client sending {@link #MAGIC}
+ * as the first bytes of a connection. the server answers with the magic of
+ * the version it speaks and both sides exchange frames from then on.
+ * <p>
+ * a frame is a 4 byte big endian length followed by fields, each field is a
+ * 1 byte tag, a 4 byte length and the value: the command in UTF-8, the data
+ * as raw bytes, the params as UTF-8 json and the request id as a long.
+ * unknown tags are skipped.
+ */
+public class PacketCodec {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * a zero byte never starts a text line, the last byte is the version.
+     */
+    public static final byte[] MAGIC = {0, 'K', 'S', 1};
+
+    public static final int HEADER_SIZE = 4;
+
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    static final byte FIELD_COMMAND = 1;
+
+    static final byte FIELD_DATA = 2;
+
+    static final byte FIELD_PARAMS = 3;
+
+    static final byte FIELD_ID = 4;
+
+    private static final int ID_SIZE = 8;
+
+    private static final int FIELD_HEADER_SIZE = 5;
+
+    /**
+     * @return true if the bytes are the magic, false for a text client.
+     * @throws IOException if the bytes start like the magic but differ.
+     */
+    public static boolean isMagic(byte[] bytes) throws IOException {
+        if (bytes[0] != MAGIC[0]) {
+            return false;
+        }
+        if (!Arrays.equals(bytes, MAGIC)) {
+            throw new IOException("unsupported framing " + Arrays.toString(bytes));
+        }
+        return true;
+    }
+
+    /**
+     * check the length read from a frame header.
+     */
+    public static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("bad frame length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * the frame of the packet including its header, written into an array
+     * of the pool when it fits. hand the array back with
+     * {@link BufferPool#release} once the frame is sent. without a pool the
+     * frame fills a new array of its exact size.
+     */
+    public static ByteBuffer encode(Packet packet, BufferPool pool) throws IOException {
+        String command = packet.getCommand();
+        byte[] commandBytes = command == null ? null : command.getBytes(UTF_8);
+        byte[] payload = packet.getPayload();
+        byte[] params = packet.paramsBytes;
+        if (params == null && packet.getParams() != null) {
+            params = JSON.toJSONBytes(packet.getParams());
+        }
+        long id = packet.getId();
+        int length = fieldSize(commandBytes) + fieldSize(payload) + fieldSize(params)
+                + (id == Packet.NO_ID ? 0 : FIELD_HEADER_SIZE + ID_SIZE);
+        checkLength(length);
+
+        int size = HEADER_SIZE + length;
+        byte[] array = pool != null && size <= pool.getBufferSize()
+                ? pool.acquire() : new byte[size];
+        ByteBuffer frame = ByteBuffer.wrap(array, 0, size);
+        frame.putInt(length);
+        if (id != Packet.NO_ID) {
+            frame.put(FIELD_ID);
+            frame.putInt(ID_SIZE);
+            frame.putLong(id);
+        }
+        putField(frame, FIELD_COMMAND, commandBytes);
+        putField(frame, FIELD_DATA, payload);
+        putField(frame, FIELD_PARAMS, params);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * decode the fields of one frame, from position to limit without the header.
+     */
+    public static Packet decode(ByteBuffer frame) throws IOException {
+        Packet packet = new Packet();
+        while (frame.hasRemaining()) {
+            if (frame.remaining() < FIELD_HEADER_SIZE) {
+                throw new IOException("truncated field");
+            }
+            byte tag = frame.get();
+            int length = frame.getInt();
+            if (length < 0 || length > frame.remaining()) {
+                throw new IOException("bad field length " + length);
+            }
+            if (tag == FIELD_COMMAND) {
+                packet.setCommand(new String(frame.array(), frame.arrayOffset() + frame.position(),
+                        length, UTF_8));
+                frame.position(frame.position() + length);
+            } else if (tag == FIELD_DATA) {
+                packet.payload = getBytes(frame, length);
+            } else if (tag == FIELD_PARAMS) {
+                packet.paramsBytes = getBytes(frame, length);
+            } else if (tag == FIELD_ID && length == ID_SIZE) {
+                packet.setId(frame.getLong());
+            } else {
+                frame.position(frame.position() + length);
+            }
+        }
+        return packet;
+    }
+
+    private static byte[] getBytes(ByteBuffer frame, int length) {
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static int fieldSize(byte[] value) {
+        return value == null ? 0 : FIELD_HEADER_SIZE + value.length;
+    }
+
+    private static void putField(ByteBuffer frame, byte tag, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        frame.put(tag);
+        frame.putInt(value.length);
+        frame.put(value);
+    }
+
+}
@@ -0,0 +1,348 @@
+package com.kisstools.server.socket;
+
+import com.alibaba.fastjson.JSONObject;
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.metrics.MetricsRegistry;
+import com.kisstools.server.metrics.StripedCounter;
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.nio.WorkerPool;
+import com.kisstools.server.packet.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * publish/subscribe topics of a {@link SocketServer}. an event is encoded
+ * once per framing and the bytes are shared by all subscribers, each
+ * connection has one bounded queue drained in batches on the publish pool,
+ * so a slow client only ever fills its own queue.
+ */
+public class Broadcaster {
+
+    public static final String TAG = "Broadcaster";
+
+    public enum OverflowPolicy {
+        /**
+         * a full queue drops its oldest event for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * a full queue closes the connection.
+         */
+        DISCONNECT
+    }
+
+    private static final int MAX_QUEUED_EVENTS = 1024;
+
+    private final ConcurrentHashMap<String, Set<Subscriber>> topics;
+
+    private final ConcurrentHashMap<SocketServer.PacketWriter, Subscriber> subscribers;
+
+    private final BufferPool bufferPool;
+
+    private volatile WorkerPool executor;
+
+    private volatile int maxQueuedEvents = MAX_QUEUED_EVENTS;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private final StripedCounter eventsPublished;
+
+    private final StripedCounter eventsSent;
+
+    private final StripedCounter eventsDropped;
+
+    private final StripedCounter subscribersDisconnected;
+
+    private final StripedCounter bytesSent;
+
+    Broadcaster(MetricsRegistry metrics, BufferPool bufferPool, StripedCounter bytesSent) {
+        this.topics = new ConcurrentHashMap<String, Set<Subscriber>>();
+        this.subscribers = new ConcurrentHashMap<SocketServer.PacketWriter, Subscriber>();
+        this.bufferPool = bufferPool;
+        this.bytesSent = bytesSent;
+        eventsPublished = metrics.counter("socket_events_published_total", "events passed to publish");
+        eventsSent = metrics.counter("socket_events_sent_total", "events written to subscribers");
+        eventsDropped = metrics.counter("socket_events_dropped_total", "events dropped by full queues");
+        subscribersDisconnected = metrics.counter("socket_subscribers_disconnected_total",
+                "connections closed by full queues");
+        metrics.gauge("socket_subscribers", "connections subscribed to any topic", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return subscribers.size();
+            }
+        });
+    }
+
+    void setExecutor(WorkerPool executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * events a connection may have waiting before the overflow policy kicks in.
+     */
+    public void setMaxQueuedEvents(int count) {
+        this.maxQueuedEvents = Math.max(1, count);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        if (policy != null) {
+            this.overflowPolicy = policy;
+        }
+    }
+
+    /**
+     * @return the number of connections the event was queued for.
+     */
+    public int publish(String topic, Packet event) {
+        eventsPublished.increment();
+        Set<Subscriber> set = topics.get(topic);
+        if (set == null || set.isEmpty()) {
+            return 0;
+        }
+        Event shared = new Event(event);
+        int count = 0;
+        for (Subscriber subscriber : set) {
+            if (subscriber.offer(shared)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int publish(String topic, String data) {
+        Packet event = newEvent(topic);
+        event.setData(data);
+        return publish(topic, event);
+    }
+
+    public int publish(String topic, byte[] payload) {
+        Packet event = newEvent(topic);
+        event.setPayload(payload);
+        return publish(topic, event);
+    }
+
+    private static Packet newEvent(String topic) {
+        Packet event = new Packet();
+        event.setCommand(Packet.CMD_EVENT);
+        JSONObject params = new JSONObject();
+        params.put(Packet.TOPIC, topic);
+        event.setParams(params);
+        return event;
+    }
+
+    void subscribe(String topic, SocketServer.PacketWriter writer) {
+        Subscriber subscriber = subscribers.get(writer);
+        if (subscriber == null) {
+            subscriber = new Subscriber(writer, maxQueuedEvents);
+            Subscriber previous = subscribers.putIfAbsent(writer, subscriber);
+            if (previous != null) {
+                subscriber = previous;
+            }
+        }
+        Set<Subscriber> set = topics.get(topic);
+        if (set == null) {
+            set = new CopyOnWriteArraySet<Subscriber>();
+            Set<Subscriber> previous = topics.putIfAbsent(topic, set);
+            if (previous != null) {
+                set = previous;
+            }
+        }
+        subscriber.topics.add(topic);
+        set.add(subscriber);
+    }
+
+    void unsubscribe(String topic, SocketServer.PacketWriter writer) {
+        Subscriber subscriber = subscribers.get(writer);
+        if (subscriber == null) {
+            return;
+        }
+        subscriber.topics.remove(topic);
+        Set<Subscriber> set = topics.get(topic);
+        if (set != null) {
+            set.remove(subscriber);
+        }
+    }
+
+    /**
+     * drop all subscriptions of a closed connection.
+     */
+    void remove(SocketServer.PacketWriter writer) {
+        Subscriber subscriber = subscribers.remove(writer);
+        if (subscriber == null) {
+            return;
+        }
+        subscriber.closed = true;
+        for (String topic : subscriber.topics) {
+            Set<Subscriber> set = topics.get(topic);
+            if (set != null) {
+                set.remove(subscriber);
+            }
+        }
+        subscriber.queue.clear();
+    }
+
+    /**
+     * the connection of the writer has room again, continue draining.
+     */
+    void onWritable(SocketServer.PacketWriter writer) {
+        Subscriber subscriber = subscribers.get(writer);
+        if (subscriber != null) {
+            subscriber.schedule();
+        }
+    }
+
+    /**
+     * a published packet with its bytes, encoded on first use for each framing.
+     */
+    static class Event {
+
+        private final Packet packet;
+
+        private final byte[][] encoded;
+
+        Event(Packet packet) {
+            this.packet = packet;
+            this.encoded = new byte[SocketServer.FRAMING_COUNT][];
+        }
+
+        synchronized byte[] getBytes(int framing) throws IOException {
+            byte[] bytes = encoded[framing];
+            if (bytes == null) {
+                bytes = SocketServer.encode(packet, framing);
+                encoded[framing] = bytes;
+            }
+            return bytes;
+        }
+    }
+
+    class Subscriber implements Runnable {
+
+        private final SocketServer.PacketWriter writer;
+
+        private final Set<String> topics;
+
+        private final BlockingQueue<Event> queue;
+
+        private final AtomicBoolean running;
+
+        private volatile boolean closed;
+
+        /**
+         * polled by the drain but left for the next batch.
+         */
+        private Event pending;
+
+        Subscriber(SocketServer.PacketWriter writer, int capacity) {
+            this.writer = writer;
+            this.topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            this.queue = new ArrayBlockingQueue<Event>(capacity);
+            this.running = new AtomicBoolean();
+        }
+
+        boolean offer(Event event) {
+            if (closed) {
+                return false;
+            }
+            while (!queue.offer(event)) {
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                    disconnect();
+                    return false;
+                }
+                if (queue.poll() != null) {
+                    eventsDropped.increment();
+                }
+            }
+            schedule();
+            return true;
+        }
+
+        void schedule() {
+            if (closed || (queue.isEmpty() && pending == null) || !writer.isWritable()
+                    || !running.compareAndSet(false, true)) {
+                return;
+            }
+            WorkerPool pool = executor;
+            if (pool == null || !pool.tryExecute(this)) {
+                // the next publish or writable signal tries again
+                running.set(false);
+            }
+        }
+
+        private void disconnect() {
+            closed = true;
+            subscribersDisconnected.increment();
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "disconnect slow subscriber " + topics);
+            }
+            remove(writer);
+            writer.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                int framing = writer.getFraming();
+                while (!closed && writer.isWritable()) {
+                    Event event = pending != null ? pending : queue.poll();
+                    pending = null;
+                    if (event == null) {
+                        break;
+                    }
+                    writeBatch(event.getBytes(framing), framing);
+                }
+            } catch (IOException e) {
+                if (DebugLog.isEnabled()) {
+                    ServerLog.d(TAG, "drop subscriber " + e.getMessage());
+                }
+                remove(writer);
+            } finally {
+                running.set(false);
+            }
+            // events queued after the last poll
+            schedule();
+        }
+
+        /**
+         * copy the following events into one pooled buffer while they fit,
+         * a single or large event is written from its shared bytes.
+         */
+        private void writeBatch(byte[] first, int framing) throws IOException {
+            int size = bufferPool.getBufferSize();
+            Event next = first.length < size ? queue.poll() : null;
+            if (next == null) {
+                writer.writeBytes(ByteBuffer.wrap(first), null);
+                eventsSent.increment();
+                bytesSent.add(first.length);
+                return;
+            }
+            byte[] batch = bufferPool.acquire();
+            System.arraycopy(first, 0, batch, 0, first.length);
+            int length = first.length;
+            int count = 1;
+            for (; next != null; next = queue.poll()) {
+                byte[] bytes = next.getBytes(framing);
+                if (length + bytes.length > size) {
+                    // starts the next batch
+                    pending = next;
+                    break;
+                }
+                System.arraycopy(bytes, 0, batch, length, bytes.length);
+                length += bytes.length;
+                count++;
+            }
+            writer.writeBytes(ByteBuffer.wrap(batch, 0, length), bufferPool);
+            eventsSent.add(count);
+            bytesSent.add(length);
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.kisstools.server.socket;
+
+import com.kisstools.server.packet.Packet;
+
+/**
+ * handles one command of the socket protocol, see
+ * {@link SocketServer#addCommandHandler}. packets carrying an id run
+ * concurrently on command threads, so handlers must be thread safe.
+ */
+public interface CommandHandler {
+
+    /**
+     * @return the response, null echoes the request. the id of the request
+     * is copied to the response. an exception is answered with an
+     * {@link Packet#CMD_ERROR} packet.
+     */
+    Packet handleCommand(Packet request) throws Exception;
+
+}
@@ -0,0 +1,137 @@
+package com.kisstools.server.socket;
+
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.packet.Packet;
+import com.kisstools.server.packet.PacketCodec;
+import com.kisstools.server.websocket.WebSocket;
+import com.kisstools.server.websocket.WebSocketCodec;
+import com.kisstools.server.websocket.WebSocketHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+/**
+ * packets of a {@link SocketServer} over websockets, register it with
+ * {@link com.kisstools.server.http.HttpServer#addWebSocketHandler}. a text
+ * message holds one json packet, a binary message the fields of one binary
+ * frame without its length header. responses and events use the framing of
+ * the last message received.
+ */
+public class PacketWebSocketHandler implements WebSocketHandler {
+
+    public static final String TAG = "PacketWebSocketHandler";
+
+    private final SocketServer server;
+
+    public PacketWebSocketHandler(SocketServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void onOpen(WebSocket socket) {
+        final WebSocketWriter writer = new WebSocketWriter(socket);
+        socket.setAttachment(writer);
+        socket.setWritableListener(new Runnable() {
+            @Override
+            public void run() {
+                server.getBroadcaster().onWritable(writer);
+            }
+        });
+    }
+
+    @Override
+    public void onText(WebSocket socket, String text) {
+        WebSocketWriter writer = (WebSocketWriter) socket.getAttachment();
+        writer.binary = false;
+        dispatch(writer, server.decodeText(text));
+    }
+
+    @Override
+    public void onBinary(WebSocket socket, byte[] data) {
+        WebSocketWriter writer = (WebSocketWriter) socket.getAttachment();
+        writer.binary = true;
+        Packet request;
+        try {
+            request = PacketCodec.decode(ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            socket.close(WebSocketCodec.CLOSE_INVALID_DATA, e.getMessage());
+            return;
+        }
+        dispatch(writer, request);
+    }
+
+    @Override
+    public void onClose(WebSocket socket, int code, String reason) {
+        WebSocketWriter writer = (WebSocketWriter) socket.getAttachment();
+        if (writer != null) {
+            server.getBroadcaster().remove(writer);
+        }
+    }
+
+    private void dispatch(WebSocketWriter writer, Packet request) {
+        try {
+            server.dispatchPacket(request, writer);
+        } catch (IOException e) {
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "drop response " + e.getMessage());
+            }
+        }
+    }
+
+    class WebSocketWriter implements SocketServer.PacketWriter {
+
+        private final WebSocket socket;
+
+        private final Semaphore inFlight;
+
+        private volatile boolean binary;
+
+        WebSocketWriter(WebSocket socket) {
+            this.socket = socket;
+            this.inFlight = new Semaphore(server.getMaxInFlight());
+        }
+
+        @Override
+        public void writePacket(Packet response) throws IOException {
+            socket.sendFrames(server.encodeWebSocket(response, getFraming()), null);
+        }
+
+        /**
+         * blocks the message lane of the socket, its reading pauses once
+         * enough messages wait behind it.
+         */
+        @Override
+        public void onCommandStarted() {
+            inFlight.acquireUninterruptibly();
+        }
+
+        @Override
+        public void onCommandFinished() {
+            inFlight.release();
+        }
+
+        @Override
+        public int getFraming() {
+            return binary ? SocketServer.FRAMING_WEBSOCKET_BINARY : SocketServer.FRAMING_WEBSOCKET_TEXT;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return socket.isWritable();
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer bytes, BufferPool pool) throws IOException {
+            socket.sendFrames(bytes, pool);
+        }
+
+        @Override
+        public void close() {
+            socket.close(WebSocketCodec.CLOSE_POLICY_VIOLATION, "too slow");
+        }
+    }
+
+}
@@ -0,0 +1,1154 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.server.socket;
+
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.metrics.LatencyHistogram;
+import com.kisstools.server.metrics.MetricsRegistry;
+import com.kisstools.server.metrics.StripedCounter;
+import com.kisstools.server.nio.BufferPool;
+import com.kisstools.server.nio.ConnectionHandler;
+import com.kisstools.server.nio.ConnectionTimeout;
+import com.kisstools.server.nio.NioConnection;
+import com.kisstools.server.nio.NioServer;
+import com.kisstools.server.nio.ServerEngine;
+import com.kisstools.server.nio.ThreadMode;
+import com.kisstools.server.nio.TimerWheel;
+import com.kisstools.server.nio.WorkerPool;
+import com.kisstools.server.packet.Packet;
+import com.kisstools.server.packet.PacketCodec;
+import com.kisstools.server.util.IOUtil;
+import com.kisstools.server.websocket.WebSocketCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SocketServer {
+
+    public static final String TAG = "SocketServer";
+
+    public static final int PORT = 8964;
+
+    private static final int MAX_LINE_SIZE = 64 * 1024;
+
+    private static final int MAX_QUEUED_PACKETS = 64;
+
+    static final int FRAMING_UNKNOWN = 0;
+
+    static final int FRAMING_TEXT = 1;
+
+    static final int FRAMING_BINARY = 2;
+
+    /**
+     * packets of websockets, see {@link PacketWebSocketHandler}.
+     */
+    static final int FRAMING_WEBSOCKET_TEXT = 3;
+
+    static final int FRAMING_WEBSOCKET_BINARY = 4;
+
+    static final int FRAMING_COUNT = 5;
+
+    private static final int FRAME_BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final int WORKER_THREADS = 10;
+
+    private static final int WORKER_QUEUE_SIZE = 64;
+
+    private static final int MAX_CONNECTIONS = 256;
+
+    private static final int COMMAND_THREADS = 16;
+
+    private static final int COMMAND_QUEUE_SIZE = 256;
+
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private static final long COMMAND_DRAIN_TIMEOUT = 30 * 1000;
+
+    private static final int PUBLISH_THREADS = 4;
+
+    private static final int PUBLISH_QUEUE_SIZE = 1024;
+
+    private static final int WRITE_TIMEOUT = 30 * 1000;
+
+    private int port = PORT;
+
+    private Thread listenerThread;
+
+    private ServerSocket portListener;
+
+    private volatile WorkerPool executor;
+
+    private volatile WorkerPool commandPool;
+
+    private volatile WorkerPool publishPool;
+
+    private final Broadcaster broadcaster;
+
+    private int maxInFlight = MAX_IN_FLIGHT;
+
+    private int workerThreads = WORKER_THREADS;
+
+    private int maxConnections = MAX_CONNECTIONS;
+
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    private int idleTimeout;
+
+    private int writeTimeout = WRITE_TIMEOUT;
+
+    private volatile TimerWheel timers;
+
+    private final Map<String, CommandHandler> commandHandlers;
+
+    private final Set<Socket> openConnections;
+
+    private final BufferPool bufferPool = new BufferPool(FRAME_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    private final ServerEngine engine;
+
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    private NioServer nioServer;
+
+    private final MetricsRegistry metrics;
+
+    private final StripedCounter connectionsTotal;
+
+    private final AtomicInteger activeConnections;
+
+    private final StripedCounter packetsReceived;
+
+    private final StripedCounter packetsSent;
+
+    private final StripedCounter bytesSent;
+
+    private final StripedCounter timeouts;
+
+    private final LatencyHistogram packetLatency;
+
+    public SocketServer() {
+        this(ServerEngine.BLOCKING);
+    }
+
+    public SocketServer(ServerEngine engine) {
+        this.engine = engine;
+        openConnections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+        commandHandlers = new ConcurrentHashMap<String, CommandHandler>();
+        addCommandHandler(Packet.CMD_SYS_INFO, new CommandHandler() {
+            @Override
+            public Packet handleCommand(Packet request) {
+                Packet response = new Packet();
+                response.setData(getSystemInfo());
+                return response;
+            }
+        });
+        metrics = new MetricsRegistry();
+        connectionsTotal = metrics.counter("socket_connections_total", "accepted connections");
+        activeConnections = new AtomicInteger();
+        metrics.gauge("socket_connections_active", "open connections", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return activeConnections.get();
+            }
+        });
+        packetsReceived = metrics.counter("socket_packets_received_total", "packets read from clients");
+        packetsSent = metrics.counter("socket_packets_sent_total", "packets written to clients");
+        bytesSent = metrics.counter("socket_sent_bytes_total", "packet bytes written");
+        timeouts = metrics.counter("socket_timeouts_total", "connections closed by a timeout");
+        packetLatency = metrics.histogram("socket_packet_duration_seconds", "packet processing time");
+        broadcaster = new Broadcaster(metrics, bufferPool, bytesSent);
+    }
+
+    /**
+     * topics clients join with the subscribe command.
+     */
+    public Broadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    /**
+     * push an event to the subscribers of the topic.
+     *
+     * @return the number of connections the event was queued for.
+     */
+    public int publish(String topic, String data) {
+        return broadcaster.publish(topic, data);
+    }
+
+    public int publish(String topic, byte[] payload) {
+        return broadcaster.publish(topic, payload);
+    }
+
+    /**
+     * connection and packet metrics, see {@link com.kisstools.server.http.MetricsHandler}.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private void onConnectionOpened() {
+        connectionsTotal.increment();
+        activeConnections.incrementAndGet();
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * commands with an id one connection may have running at once, further
+     * packets wait unread.
+     */
+    public void setMaxInFlight(int count) {
+        this.maxInFlight = Math.max(1, count);
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * connections of the blocking engine served at once, each holds a worker
+     * thread. takes effect on the next {@link #start()}.
+     */
+    public void setWorkerThreads(int count) {
+        this.workerThreads = Math.max(1, count);
+    }
+
+    public int getWorkerThreads() {
+        return this.workerThreads;
+    }
+
+    /**
+     * open connections above the limit are closed right away. with virtual
+     * threads the blocking engine runs one thread per connection up to it.
+     */
+    public void setMaxConnections(int count) {
+        this.maxConnections = Math.max(1, count);
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * threads of the connection, command and publish pools, takes effect on
+     * the next {@link #start()}.
+     */
+    public void setThreadMode(ThreadMode mode) {
+        this.threadMode = mode;
+    }
+
+    public ThreadMode getThreadMode() {
+        return this.threadMode;
+    }
+
+    /**
+     * milliseconds a connection may go without a packet either way before
+     * it is closed, 0 keeps quiet subscribers open.
+     */
+    public void setIdleTimeout(int timeout) {
+        this.idleTimeout = Math.max(0, timeout);
+    }
+
+    public int getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+    /**
+     * milliseconds a single write may wait for the client to read, a client
+     * that stops reading is closed after it. 0 disables it.
+     */
+    public void setWriteTimeout(int timeout) {
+        this.writeTimeout = Math.max(0, timeout);
+    }
+
+    public int getWriteTimeout() {
+        return this.writeTimeout;
+    }
+
+    private void watch(ConnectionTimeout timeout) {
+        if (idleTimeout > 0) {
+            timeout.setIdleTimeout(idleTimeout);
+        }
+        timeout.watchIo(writeTimeout, 0);
+    }
+
+    private void onTimeout(String reason, Object address) {
+        timeouts.increment();
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, reason + " timeout " + address);
+        }
+    }
+
+    /**
+     * number of selector threads, only used by {@link ServerEngine#NIO}.
+     */
+    public void setEventLoopCount(int count) {
+        this.eventLoopCount = count;
+    }
+
+    private void registerClient(Socket socket) {
+        openConnections.add(socket);
+        onConnectionOpened();
+    }
+
+    private void unregisterClient(Socket socket) {
+        openConnections.remove(socket);
+        activeConnections.decrementAndGet();
+    }
+
+    public void closeAllConnections() {
+        for (Socket socket : openConnections) {
+            IOUtil.close(socket);
+        }
+    }
+
+    Packet decodeText(String content) {
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "receive request " + content);
+        }
+        return Packet.unpack(content);
+    }
+
+    private byte[] encodeText(Packet response) {
+        byte[] bytes = encodeLine(response);
+        bytesSent.add(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * the packet as one line of the text framing, the reader splits on the newline.
+     */
+    private static byte[] encodeLine(Packet packet) {
+        return (Packet.pack(packet) + '\n').getBytes(PacketCodec.UTF_8);
+    }
+
+    /**
+     * @return the response frame in an array of the buffer pool.
+     */
+    private ByteBuffer encodeFrame(Packet response) throws IOException {
+        ByteBuffer frame = PacketCodec.encode(response, bufferPool);
+        bytesSent.add(frame.remaining());
+        return frame;
+    }
+
+    /**
+     * the response as one websocket message, for {@link PacketWebSocketHandler}.
+     */
+    ByteBuffer encodeWebSocket(Packet response, int framing) throws IOException {
+        byte[] frame = encode(response, framing);
+        bytesSent.add(frame.length);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * the packet as sent on a connection of the framing, in an array of its own.
+     */
+    static byte[] encode(Packet packet, int framing) throws IOException {
+        if (framing == FRAMING_BINARY) {
+            return PacketCodec.encode(packet, null).array();
+        }
+        if (framing == FRAMING_WEBSOCKET_BINARY) {
+            // the message length replaces the length of the frame header
+            byte[] frame = PacketCodec.encode(packet, null).array();
+            return WebSocketCodec.encodeFrame(WebSocketCodec.OP_BINARY, frame,
+                    PacketCodec.HEADER_SIZE, frame.length - PacketCodec.HEADER_SIZE);
+        }
+        if (framing == FRAMING_WEBSOCKET_TEXT) {
+            // a message is delimited by its frame
+            byte[] text = Packet.pack(packet).getBytes(PacketCodec.UTF_8);
+            return WebSocketCodec.encodeFrame(WebSocketCodec.OP_TEXT, text, 0, text.length);
+        }
+        return encodeLine(packet);
+    }
+
+    /**
+     * packets without an id are answered right away in arrival order, others
+     * run on the command pool and are answered as they complete.
+     */
+    void dispatchPacket(final Packet request, final PacketWriter writer) throws IOException {
+        packetsReceived.increment();
+        if (request.getId() == Packet.NO_ID) {
+            writer.writePacket(handlePacket(request, writer));
+            return;
+        }
+        writer.onCommandStarted();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.writePacket(handlePacket(request, writer));
+                } catch (IOException e) {
+                    if (DebugLog.isEnabled()) {
+                        ServerLog.d(TAG, "drop response " + request.getId() + " " + e.getMessage());
+                    }
+                } finally {
+                    writer.onCommandFinished();
+                }
+            }
+        };
+        WorkerPool pool = commandPool;
+        if (pool == null || !pool.tryExecute(task)) {
+            // saturated pool, run it on the connection thread, a worker with nio
+            task.run();
+        }
+    }
+
+    private Packet handlePacket(Packet request, PacketWriter writer) {
+        long start = System.nanoTime();
+        Packet response;
+        try {
+            response = processPacket(request, writer);
+        } catch (Exception e) {
+            ServerLog.e(TAG, "command exception " + request.getCommand(), e);
+            response = new Packet();
+            response.setCommand(Packet.CMD_ERROR);
+            response.setData(String.valueOf(e.getMessage()));
+        }
+        packetLatency.recordSince(start);
+
+        // just send back the request
+        if (response == null) {
+            response = request;
+        }
+        response.setId(request.getId());
+
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "sending response " + response);
+        }
+        packetsSent.increment();
+        return response;
+    }
+
+    /**
+     * the response side of one connection, called from command threads.
+     */
+    interface PacketWriter {
+
+        void writePacket(Packet response) throws IOException;
+
+        /**
+         * before a packet with an id is dispatched, may block to hold back
+         * the reader.
+         */
+        void onCommandStarted();
+
+        void onCommandFinished();
+
+        /**
+         * one of the FRAMING constants, how packets are encoded for the connection.
+         */
+        int getFraming();
+
+        /**
+         * false while events should wait in the subscriber queue.
+         */
+        boolean isWritable();
+
+        /**
+         * write encoded packets, the array goes back to the pool if given.
+         */
+        void writeBytes(ByteBuffer bytes, BufferPool pool) throws IOException;
+
+        void close();
+    }
+
+    class SocketHandler implements Runnable, PacketWriter {
+
+        private volatile boolean connected;
+
+        private volatile boolean binary;
+
+        private OutputStream out;
+
+        private final Semaphore inFlight;
+
+        // not a monitor, writes may block a virtual thread
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        private Socket socket;
+
+        private InetAddress address;
+
+        private int port;
+
+        private final ConnectionTimeout timeout;
+
+        public SocketHandler(final Socket socket) {
+            this.connected = true;
+            this.socket = socket;
+            this.address = socket.getInetAddress();
+            this.port = socket.getPort();
+            this.inFlight = new Semaphore(maxInFlight);
+            this.timeout = new ConnectionTimeout(timers) {
+                @Override
+                protected void onExpired(String reason) {
+                    onTimeout(reason, socket.getRemoteSocketAddress());
+                    close();
+                }
+            };
+        }
+
+        public void run() {
+            registerClient(socket);
+            OutputStream outputStream = null;
+            InputStream inputStream = null;
+
+            watch(timeout);
+            try {
+                inputStream = new BufferedInputStream(socket.getInputStream());
+                outputStream = socket.getOutputStream();
+                if (readMagic(inputStream)) {
+                    serveFrames(inputStream, outputStream);
+                } else {
+                    serveLines(inputStream, outputStream);
+                }
+                awaitCommands();
+            } catch (Exception e) {
+                // closed by close() if no longer connected
+                if (connected) {
+                    ServerLog.e(TAG, "socket exception!", e);
+                }
+                connected = false;
+            } finally {
+                timeout.cancel();
+                broadcaster.remove(this);
+                IOUtil.close(inputStream);
+                IOUtil.close(outputStream);
+                IOUtil.close(socket);
+                unregisterClient(socket);
+            }
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "finish socket " + address + ":" + port);
+            }
+        }
+
+        /**
+         * @return true if the client asked for binary frames, text clients
+         * get their bytes back.
+         */
+        private boolean readMagic(InputStream inputStream) throws IOException {
+            inputStream.mark(PacketCodec.MAGIC.length);
+            byte[] magic = new byte[PacketCodec.MAGIC.length];
+            int first = inputStream.read();
+            if (first < 0 || first != PacketCodec.MAGIC[0]) {
+                inputStream.reset();
+                return false;
+            }
+            magic[0] = (byte) first;
+            new DataInputStream(inputStream).readFully(magic, 1, magic.length - 1);
+            return PacketCodec.isMagic(magic);
+        }
+
+        private void serveLines(InputStream inputStream, OutputStream outputStream)
+                throws IOException {
+            InputStreamReader isr = new InputStreamReader(inputStream, PacketCodec.UTF_8);
+            BufferedReader bf = new BufferedReader(isr);
+
+            BufferedOutputStream bos = new BufferedOutputStream(
+                    outputStream);
+            out = new DataOutputStream(bos);
+            while (connected) {
+                String content = bf.readLine();
+                if (content == null || !connected) {
+                    break;
+                }
+                timeout.touch();
+                dispatchPacket(decodeText(content), this);
+            }
+        }
+
+        private void serveFrames(InputStream inputStream, OutputStream outputStream)
+                throws IOException {
+            DataInputStream dis = new DataInputStream(inputStream);
+            binary = true;
+            out = outputStream;
+            writeLock.lock();
+            try {
+                timeout.beginIo();
+                out.write(PacketCodec.MAGIC);
+                out.flush();
+                timeout.endIo(PacketCodec.MAGIC.length);
+            } finally {
+                writeLock.unlock();
+            }
+            while (connected) {
+                int length;
+                try {
+                    length = PacketCodec.checkLength(dis.readInt());
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] array = length <= bufferPool.getBufferSize()
+                        ? bufferPool.acquire() : new byte[length];
+                Packet request;
+                try {
+                    dis.readFully(array, 0, length);
+                    request = PacketCodec.decode(ByteBuffer.wrap(array, 0, length));
+                } finally {
+                    bufferPool.release(array);
+                }
+                timeout.touch();
+                dispatchPacket(request, this);
+            }
+        }
+
+        /**
+         * let running commands answer before the socket is closed.
+         */
+        private void awaitCommands() throws InterruptedException {
+            if (inFlight.tryAcquire(maxInFlight, COMMAND_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                inFlight.release(maxInFlight);
+            }
+        }
+
+        @Override
+        public void writePacket(Packet response) throws IOException {
+            writeLock.lock();
+            try {
+                timeout.beginIo();
+                if (binary) {
+                    ByteBuffer frame = encodeFrame(response);
+                    try {
+                        out.write(frame.array(), frame.position(), frame.remaining());
+                    } finally {
+                        bufferPool.release(frame.array());
+                    }
+                } else {
+                    out.write(encodeText(response));
+                }
+                out.flush();
+                timeout.endIo(0);
+                timeout.touch();
+            } finally {
+                writeLock.unlock();
+            }
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "response sent");
+            }
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer bytes, BufferPool pool) throws IOException {
+            writeLock.lock();
+            try {
+                timeout.beginIo();
+                out.write(bytes.array(), bytes.position(), bytes.remaining());
+                out.flush();
+                timeout.endIo(bytes.remaining());
+                timeout.touch();
+            } finally {
+                writeLock.unlock();
+                if (pool != null) {
+                    pool.release(bytes.array());
+                }
+            }
+        }
+
+        @Override
+        public int getFraming() {
+            return binary ? FRAMING_BINARY : FRAMING_TEXT;
+        }
+
+        /**
+         * writes block the publish thread, a stalled client holds one of them
+         * until the write timeout closes it.
+         */
+        @Override
+        public boolean isWritable() {
+            return connected;
+        }
+
+        @Override
+        public void close() {
+            connected = false;
+            IOUtil.close(socket);
+        }
+
+        @Override
+        public void onCommandStarted() {
+            inFlight.acquireUninterruptibly();
+        }
+
+        @Override
+        public void onCommandFinished() {
+            inFlight.release();
+        }
+
+    }
+
+    /**
+     * splits received bytes into text lines or binary frames on the event
+     * loop, packets of one connection are processed in order on the worker
+     * executor.
+     */
+    class PacketConnectionHandler implements ConnectionHandler {
+
+        @Override
+        public void onConnected(NioConnection connection) {
+            if (activeConnections.get() >= maxConnections) {
+                ServerLog.w(TAG, "server busy, reject " + connection.getRemoteAddress());
+                connection.close();
+                return;
+            }
+            final PacketState state = new PacketState(connection);
+            connection.setAttachment(state);
+            connection.setWritableListener(new Runnable() {
+                @Override
+                public void run() {
+                    broadcaster.onWritable(state);
+                }
+            });
+            watch(connection.getTimeout());
+            onConnectionOpened();
+        }
+
+        @Override
+        public void onReadable(NioConnection connection, ByteBuffer buffer) {
+            PacketState state = (PacketState) connection.getAttachment();
+            if (state.framing == FRAMING_UNKNOWN && !negotiate(connection, state, buffer)) {
+                return;
+            }
+            boolean ok = state.framing == FRAMING_BINARY
+                    ? splitFrames(connection, state, buffer)
+                    : splitLines(connection, state, buffer);
+            if (!ok) {
+                connection.close();
+                return;
+            }
+            if (state.queued.get() >= MAX_QUEUED_PACKETS) {
+                connection.pauseReading();
+            }
+            state.schedule();
+        }
+
+        /**
+         * @return false until the framing is known.
+         */
+        private boolean negotiate(NioConnection connection, PacketState state, ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            if (buffer.get(buffer.position()) != PacketCodec.MAGIC[0]) {
+                state.framing = FRAMING_TEXT;
+                return true;
+            }
+            if (buffer.remaining() < PacketCodec.MAGIC.length) {
+                return false;
+            }
+            byte[] magic = new byte[PacketCodec.MAGIC.length];
+            buffer.get(magic);
+            try {
+                PacketCodec.isMagic(magic);
+                connection.write(ByteBuffer.wrap(PacketCodec.MAGIC));
+            } catch (IOException e) {
+                ServerLog.d(TAG, e.getMessage() + " " + connection.getRemoteAddress());
+                connection.close();
+                return false;
+            }
+            state.framing = FRAMING_BINARY;
+            return true;
+        }
+
+        private boolean splitLines(NioConnection connection, PacketState state, ByteBuffer buffer) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            for (int index = start; index < limit; ++index) {
+                if (buffer.get(index) != '\n') {
+                    continue;
+                }
+                int end = index;
+                if (end > start && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                byte[] line = new byte[end - start];
+                buffer.get(line);
+                buffer.position(index + 1);
+                start = index + 1;
+                state.add(new String(line, PacketCodec.UTF_8));
+            }
+            if (buffer.remaining() >= MAX_LINE_SIZE) {
+                ServerLog.d(TAG, "line too long " + connection.getRemoteAddress());
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * frames are copied into pooled arrays, larger ones are collected
+         * across reads since the read buffer is limited.
+         */
+        private boolean splitFrames(NioConnection connection, PacketState state, ByteBuffer buffer) {
+            while (true) {
+                ByteBuffer frame = state.frame;
+                if (frame != null) {
+                    int count = Math.min(frame.remaining(), buffer.remaining());
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + count);
+                    frame.put(buffer);
+                    buffer.limit(limit);
+                    if (frame.hasRemaining()) {
+                        return true;
+                    }
+                    frame.flip();
+                    state.frame = null;
+                    state.add(frame);
+                }
+                if (buffer.remaining() < PacketCodec.HEADER_SIZE) {
+                    return true;
+                }
+                int length;
+                try {
+                    length = PacketCodec.checkLength(buffer.getInt());
+                } catch (IOException e) {
+                    ServerLog.d(TAG, e.getMessage() + " " + connection.getRemoteAddress());
+                    return false;
+                }
+                byte[] array = length <= bufferPool.getBufferSize()
+                        ? bufferPool.acquire() : new byte[length];
+                state.frame = ByteBuffer.wrap(array, 0, length);
+            }
+        }
+
+        @Override
+        public void onTimeout(NioConnection connection, String reason) {
+            SocketServer.this.onTimeout(reason, connection.getRemoteAddress());
+        }
+
+        @Override
+        public void onClosed(NioConnection connection) {
+            PacketState state = (PacketState) connection.getAttachment();
+            if (state == null) {
+                // rejected in onConnected
+                return;
+            }
+            activeConnections.decrementAndGet();
+            broadcaster.remove(state);
+            if (DebugLog.isEnabled()) {
+                ServerLog.d(TAG, "finish socket " + connection.getRemoteAddress());
+            }
+        }
+    }
+
+    class PacketState implements Runnable, PacketWriter {
+
+        private final NioConnection connection;
+
+        /**
+         * text lines or binary frames depending on the framing.
+         */
+        private final Queue<Object> packets;
+
+        private final AtomicInteger queued;
+
+        private final AtomicBoolean running;
+
+        // set while a lane refused by the worker pool waits for its retry
+        private final AtomicBoolean refused;
+
+        /**
+         * commands dispatched and not answered yet.
+         */
+        private final AtomicInteger inFlight;
+
+        private volatile int framing = FRAMING_UNKNOWN;
+
+        // touched by the event loop only
+        private ByteBuffer frame;
+
+        public PacketState(NioConnection connection) {
+            this.connection = connection;
+            this.packets = new ConcurrentLinkedQueue<Object>();
+            this.queued = new AtomicInteger();
+            this.running = new AtomicBoolean();
+            this.refused = new AtomicBoolean();
+            this.inFlight = new AtomicInteger();
+        }
+
+        void add(Object packet) {
+            packets.add(packet);
+            queued.incrementAndGet();
+        }
+
+        /**
+         * packets are decoded in order, the lane stops taking new ones while
+         * too many commands are in flight and the read pause kicks in.
+         */
+        void schedule() {
+            if (packets.isEmpty() || inFlight.get() >= maxInFlight
+                    || !running.compareAndSet(false, true)) {
+                return;
+            }
+            if (executor.tryExecute(this)) {
+                return;
+            }
+            // a saturated pool, packets never run on the event loop
+            running.set(false);
+            if (refused.compareAndSet(false, true)) {
+                connection.pauseReading();
+                connection.retryLater(retry);
+            }
+        }
+
+        private final Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                refused.set(false);
+                if (queued.get() < MAX_QUEUED_PACKETS) {
+                    connection.resumeReading();
+                }
+                schedule();
+            }
+        };
+
+        public void run() {
+            try {
+                Object packet;
+                while (inFlight.get() < maxInFlight && (packet = packets.poll()) != null) {
+                    if (queued.decrementAndGet() == MAX_QUEUED_PACKETS / 2) {
+                        connection.resumeReading();
+                    }
+                    if (packet instanceof String) {
+                        dispatchPacket(decodeText((String) packet), this);
+                        continue;
+                    }
+                    ByteBuffer frame = (ByteBuffer) packet;
+                    Packet request;
+                    try {
+                        request = PacketCodec.decode(frame);
+                    } finally {
+                        bufferPool.release(frame.array());
+                    }
+                    dispatchPacket(request, this);
+                }
+            } catch (Exception e) {
+                ServerLog.e(TAG, "socket exception!", e);
+                connection.close();
+            } finally {
+                running.set(false);
+            }
+            // packets queued after the last poll
+            schedule();
+        }
+
+        @Override
+        public void writePacket(Packet response) throws IOException {
+            if (framing == FRAMING_BINARY) {
+                connection.write(encodeFrame(response), bufferPool);
+            } else {
+                connection.write(ByteBuffer.wrap(encodeText(response)));
+            }
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer bytes, BufferPool pool) throws IOException {
+            connection.write(bytes, pool);
+        }
+
+        @Override
+        public int getFraming() {
+            return framing;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return connection.isWritable();
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+
+        @Override
+        public void onCommandStarted() {
+            inFlight.incrementAndGet();
+        }
+
+        @Override
+        public void onCommandFinished() {
+            inFlight.decrementAndGet();
+            schedule();
+        }
+    }
+
+    class ServerThread extends Thread {
+
+        public void run() {
+            try {
+                boolean running = true;
+                while (running) {
+                    Socket socket = portListener.accept();
+                    InetAddress address = socket.getInetAddress();
+                    int port = socket.getPort();
+                    if (DebugLog.isEnabled()) {
+                        ServerLog.d(TAG, "connection from " + address + ":" + port
+                                + " established");
+                    }
+                    SocketHandler handler = new SocketHandler(socket);
+                    if (activeConnections.get() >= maxConnections
+                            || !executor.tryExecute(handler)) {
+                        ServerLog.w(TAG, "server busy, reject " + address + ":" + port);
+                        IOUtil.close(socket);
+                    }
+                }
+            } catch (Exception e) {
+                // closing the listener in stop() ends the accept loop
+                if (!portListener.isClosed()) {
+                    ServerLog.e(TAG, "accept exception", e);
+                }
+            }
+        }
+    }
+
+    public void start() {
+        int threads = workerThreads;
+        if (threadMode == ThreadMode.VIRTUAL) {
+            threads = Math.max(workerThreads, maxConnections);
+        }
+        executor = new WorkerPool(TAG, threads, WORKER_QUEUE_SIZE, threadMode);
+        commandPool = new WorkerPool(TAG + "-command", COMMAND_THREADS, COMMAND_QUEUE_SIZE, threadMode);
+        publishPool = new WorkerPool(TAG + "-publish", PUBLISH_THREADS, PUBLISH_QUEUE_SIZE, threadMode);
+        broadcaster.setExecutor(publishPool);
+        if (engine == ServerEngine.NIO) {
+            try {
+                nioServer = new NioServer(TAG, port, eventLoopCount, new PacketConnectionHandler());
+                nioServer.start();
+                ServerLog.e(TAG, "server socket at port " + port + " succeed!");
+            } catch (Exception e) {
+                ServerLog.e(TAG, "server socket at port " + port + " failed!", e);
+            }
+            return;
+        }
+        timers = new TimerWheel(TAG);
+        timers.start();
+        try {
+            portListener = new ServerSocket(port);
+            ServerLog.e(TAG, "server socket at port " + port + " succeed!");
+        } catch (Exception e) {
+            ServerLog.e(TAG, "server socket at port " + port + " failed!");
+            e.printStackTrace();
+        }
+        listenerThread = new ServerThread();
+        listenerThread.setName("SocketServer");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    public void stop() {
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        IOUtil.close(portListener);
+        closeAllConnections();
+        if (timers != null) {
+            timers.stop();
+            timers = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (commandPool != null) {
+            commandPool.shutdown();
+        }
+        if (publishPool != null) {
+            broadcaster.setExecutor(null);
+            publishPool.shutdown();
+        }
+    }
+
+    /**
+     * register the handler of a command, replacing an earlier one.
+     */
+    public void addCommandHandler(String command, CommandHandler handler) {
+        if (command == null || handler == null) {
+            return;
+        }
+        commandHandlers.put(command, handler);
+    }
+
+    public void removeCommandHandler(String command) {
+        if (command == null) {
+            return;
+        }
+        commandHandlers.remove(command);
+    }
+
+    private static String getSystemInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.getProperty("os.name")).append(' ')
+                .append(System.getProperty("os.version")).append(' ')
+                .append(System.getProperty("os.arch")).append(", ")
+                .append(System.getProperty("java.vm.name")).append(' ')
+                .append(System.getProperty("java.vm.version"));
+        // carries the device model and build on android
+        String agent = System.getProperty("http.agent");
+        if (agent != null) {
+            sb.append(", ").append(agent);
+        }
+        return sb.toString();
+    }
+
+    private Packet processPacket(Packet request, PacketWriter writer) throws Exception {
+        if (request == null || request.getCommand() == Packet.CMD_NONE) {
+            return null;
+        }
+
+        String command = request.getCommand();
+        if (Packet.CMD_SUBSCRIBE.equals(command) || Packet.CMD_UNSUBSCRIBE.equals(command)) {
+            String topic = request.getData();
+            if (topic == null || topic.isEmpty()) {
+                throw new IllegalArgumentException("missing topic");
+            }
+            if (Packet.CMD_SUBSCRIBE.equals(command)) {
+                broadcaster.subscribe(topic, writer);
+            } else {
+                broadcaster.unsubscribe(topic, writer);
+            }
+            // acknowledged by the echo
+            return null;
+        }
+
+        CommandHandler handler = commandHandlers.get(command);
+        if (handler == null) {
+            // unknown commands get an empty answer
+            return new Packet();
+        }
+        return handler.handleCommand(request);
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.kisstools.server.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * stream helpers of the server core.
+ */
+public class IOUtil {
+
+    public static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // sockets are not Closeable before api 19
+    public static void close(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void close(ServerSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * read the stream to the end as UTF-8 and close it, null on failure.
+     */
+    public static String read(InputStream is) {
+        if (is == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(is);
+        }
+    }
+
+}
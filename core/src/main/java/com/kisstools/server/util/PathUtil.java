@@ -0,0 +1,92 @@
+package com.kisstools.server.util;
+
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * file path helpers of the server core.
+ */
+public class PathUtil {
+
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+    static {
+        // common types missing from the platform file name map
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm", "text/html");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("xml", "text/xml");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("log", "text/plain");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("mp3", "audio/mpeg");
+        MIME_TYPES.put("mp4", "video/mp4");
+        MIME_TYPES.put("pdf", "application/pdf");
+        MIME_TYPES.put("zip", "application/zip");
+        MIME_TYPES.put("apk", "application/vnd.android.package-archive");
+    }
+
+    /**
+     * the last segment of the path.
+     */
+    public static String getName(String path) {
+        if (path == null) {
+            return null;
+        }
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        int index = path.lastIndexOf('/', end - 1);
+        return path.substring(index + 1, end);
+    }
+
+    /**
+     * the path without its last segment, null for the root or a bare name.
+     */
+    public static String getParent(String path) {
+        if (path == null) {
+            return null;
+        }
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        int index = path.lastIndexOf('/', end - 1);
+        if (index < 0 || end <= 1) {
+            return null;
+        }
+        return index == 0 ? "/" : path.substring(0, index);
+    }
+
+    /**
+     * @return null if the type of the file is unknown.
+     */
+    public static String getMimeType(String path) {
+        String name = getName(path);
+        if (name == null) {
+            return null;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            String type = MIME_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.US));
+            if (type != null) {
+                return type;
+            }
+        }
+        FileNameMap fileNameMap = URLConnection.getFileNameMap();
+        return fileNameMap.getContentTypeFor(name);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.kisstools.server.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * string helpers of the server core.
+ */
+public class TextUtil {
+
+    public static boolean isEmpty(CharSequence text) {
+        return text == null || text.length() == 0;
+    }
+
+    public static String join(CharSequence delimiter, Iterable<?> tokens) {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (Object token : tokens) {
+            if (!first) {
+                sb.append(delimiter);
+            }
+            sb.append(token);
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * whether the comma separated header value lists the token.
+     */
+    public static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String item : value.split(",")) {
+            if (token.equalsIgnoreCase(item.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the stack trace of t.
+     */
+    public static String stringify(Throwable t) {
+        StringWriter writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    /**
+     * form encoding in UTF-8, the counterpart of the query decoding.
+     */
+    public static String urlEncode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return text;
+        }
+    }
+
+}
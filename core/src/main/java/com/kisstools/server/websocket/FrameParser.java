@@ -0,0 +1,99 @@
+package com.kisstools.server.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * reads masked client frames from received bytes, the payload is unmasked
+ * into its own array while it arrives.
+ */
+class FrameParser {
+
+    private final int maxFrameSize;
+
+    boolean fin;
+
+    int opcode;
+
+    byte[] payload;
+
+    private final byte[] mask = new byte[4];
+
+    private int received;
+
+    private boolean inFrame;
+
+    FrameParser(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return true once a whole frame is read, the fields hold it until the
+     * next call.
+     */
+    boolean parse(ByteBuffer buffer) throws WebSocketException {
+        if (!inFrame && !parseHeader(buffer)) {
+            return false;
+        }
+        int count = Math.min(buffer.remaining(), payload.length - received);
+        int position = buffer.position();
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset() + position;
+        for (int index = 0; index < count; index++) {
+            payload[received + index] = (byte) (array[offset + index] ^ mask[(received + index) & 3]);
+        }
+        buffer.position(position + count);
+        received += count;
+        if (received < payload.length) {
+            return false;
+        }
+        inFrame = false;
+        return true;
+    }
+
+    private boolean parseHeader(ByteBuffer buffer) throws WebSocketException {
+        if (buffer.remaining() < 2) {
+            return false;
+        }
+        int position = buffer.position();
+        int first = buffer.get(position) & 0xff;
+        int second = buffer.get(position + 1) & 0xff;
+        if ((first & 0x70) != 0) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "reserved bits set");
+        }
+        if ((second & 0x80) == 0) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "unmasked client frame");
+        }
+        int lengthBits = second & 0x7f;
+        int size = 2 + (lengthBits == 126 ? 2 : lengthBits == 127 ? 8 : 0) + 4;
+        if (buffer.remaining() < size) {
+            return false;
+        }
+        boolean fin = (first & 0x80) != 0;
+        int opcode = first & 0x0f;
+        boolean control = (opcode & 0x08) != 0;
+        if (opcode > WebSocketCodec.OP_BINARY && !control || opcode > WebSocketCodec.OP_PONG) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "unknown opcode " + opcode);
+        }
+        buffer.position(position + 2);
+        long length = lengthBits;
+        if (lengthBits == 126) {
+            length = buffer.getShort() & 0xffff;
+        } else if (lengthBits == 127) {
+            length = buffer.getLong();
+        }
+        if (control && (!fin || length > WebSocketCodec.MAX_CONTROL_PAYLOAD)) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "bad control frame");
+        }
+        if (length < 0 || length > maxFrameSize) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_TOO_BIG, "frame of " + length + " bytes");
+        }
+        buffer.get(mask);
+        this.fin = fin;
+        this.opcode = opcode;
+        this.payload = new byte[(int) length];
+        this.received = 0;
+        this.inFrame = true;
+        return true;
+    }
+
+}
@@ -0,0 +1,379 @@
+package com.kisstools.server.websocket;
+
+import com.kisstools.server.http.HttpRequest;
+import com.kisstools.server.http.ProtocolUpgrade;
+import com.kisstools.server.http.UpgradedConnection;
+import com.kisstools.server.log.DebugLog;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.nio.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * one websocket connection. frames are parsed as they arrive, pings are
+ * answered right away and complete messages are handed to the
+ * {@link WebSocketHandler} in order on the executor of the connection.
+ */
+public class WebSocket {
+
+    public static final String TAG = "WebSocket";
+
+    /**
+     * largest message accepted, fragments included.
+     */
+    public static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private static final int MAX_QUEUED_MESSAGES = 64;
+
+    private final WebSocketHandler handler;
+
+    private final HttpRequest request;
+
+    private final FrameParser parser;
+
+    private volatile UpgradedConnection connection;
+
+    // fragments of the message being received, only touched while reading
+    private int messageOpcode = -1;
+
+    private ByteArrayOutputStream fragments;
+
+    private boolean inputClosed;
+
+    private final AtomicBoolean closeSent;
+
+    private final AtomicBoolean closeReported;
+
+    private final Queue<Runnable> events;
+
+    private final AtomicInteger queued;
+
+    private final AtomicBoolean running;
+
+    // set while a drain refused by the worker pool waits for its retry
+    private final AtomicBoolean refused;
+
+    private volatile Object attachment;
+
+    final ProtocolUpgrade upgrade = new ProtocolUpgrade() {
+
+        @Override
+        public void onUpgraded(UpgradedConnection connection) {
+            WebSocket.this.connection = connection;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onOpen(WebSocket.this);
+                }
+            });
+        }
+
+        @Override
+        public void onReadable(UpgradedConnection connection, ByteBuffer buffer) throws IOException {
+            try {
+                while (!inputClosed && parser.parse(buffer)) {
+                    onFrame(parser.fin, parser.opcode, parser.payload);
+                }
+            } catch (WebSocketException e) {
+                fail(e.getCloseCode(), e.getMessage());
+            }
+            if (inputClosed) {
+                // nothing is read after a close frame
+                buffer.position(buffer.limit());
+            }
+        }
+
+        @Override
+        public void onClosed(UpgradedConnection connection) {
+            closeSent.set(true);
+            reportClose(WebSocketCodec.CLOSE_ABNORMAL, "");
+        }
+    };
+
+    WebSocket(WebSocketHandler handler, HttpRequest request) {
+        this.handler = handler;
+        this.request = request;
+        this.parser = new FrameParser(MAX_MESSAGE_SIZE);
+        this.closeSent = new AtomicBoolean();
+        this.closeReported = new AtomicBoolean();
+        this.events = new ConcurrentLinkedQueue<Runnable>();
+        this.queued = new AtomicInteger();
+        this.running = new AtomicBoolean();
+        this.refused = new AtomicBoolean();
+    }
+
+    /**
+     * the handshake request, with its query and path parameters.
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return request.remoteAddress;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public boolean isOpen() {
+        return !closeSent.get();
+    }
+
+    public void send(String text) throws IOException {
+        byte[] bytes = text.getBytes(WebSocketCodec.UTF_8);
+        writeFrame(WebSocketCodec.OP_TEXT, bytes);
+    }
+
+    public void send(byte[] data) throws IOException {
+        writeFrame(WebSocketCodec.OP_BINARY, data);
+    }
+
+    /**
+     * the client answers with a pong, at most 125 bytes of data.
+     */
+    public void ping(byte[] data) throws IOException {
+        if (data.length > WebSocketCodec.MAX_CONTROL_PAYLOAD) {
+            throw new IllegalArgumentException("ping of " + data.length + " bytes");
+        }
+        writeFrame(WebSocketCodec.OP_PING, data);
+    }
+
+    /**
+     * write complete frames encoded with {@link WebSocketCodec}, e.g. one
+     * message shared by many sockets. the array goes back to the pool once
+     * written if one is given.
+     */
+    public void sendFrames(ByteBuffer frames, BufferPool pool) throws IOException {
+        if (closeSent.get()) {
+            if (pool != null) {
+                pool.release(frames.array());
+            }
+            throw new IOException("websocket closed");
+        }
+        connection.write(frames, pool);
+    }
+
+    /**
+     * false while too many bytes wait for the client.
+     */
+    public boolean isWritable() {
+        return !closeSent.get() && connection.isWritable();
+    }
+
+    /**
+     * run once the client caught up after {@link #isWritable()} was false.
+     */
+    public void setWritableListener(Runnable listener) {
+        connection.setWritableListener(listener);
+    }
+
+    /**
+     * send a close frame and close the connection once it is written.
+     */
+    public void close(int code, String reason) {
+        reportClose(code, reason);
+        sendClose(code, reason);
+    }
+
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        if (closeSent.get()) {
+            throw new IOException("websocket closed");
+        }
+        byte[] frame = WebSocketCodec.encodeFrame(opcode, payload, 0, payload.length);
+        connection.write(ByteBuffer.wrap(frame), null);
+    }
+
+    private void onFrame(boolean fin, int opcode, byte[] payload) throws IOException {
+        switch (opcode) {
+            case WebSocketCodec.OP_PING:
+                if (!closeSent.get()) {
+                    writeFrame(WebSocketCodec.OP_PONG, payload);
+                }
+                return;
+            case WebSocketCodec.OP_PONG:
+                return;
+            case WebSocketCodec.OP_CLOSE:
+                onCloseFrame(payload);
+                return;
+            case WebSocketCodec.OP_CONTINUATION:
+                if (messageOpcode < 0) {
+                    throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR,
+                            "continuation without a message");
+                }
+                appendFragment(payload);
+                if (fin) {
+                    byte[] message = fragments.toByteArray();
+                    int messageType = messageOpcode;
+                    messageOpcode = -1;
+                    fragments = null;
+                    deliver(messageType, message);
+                }
+                return;
+            default:
+                if (messageOpcode >= 0) {
+                    throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR,
+                            "new message before the last one ended");
+                }
+                if (fin) {
+                    deliver(opcode, payload);
+                    return;
+                }
+                messageOpcode = opcode;
+                fragments = new ByteArrayOutputStream();
+                appendFragment(payload);
+        }
+    }
+
+    private void appendFragment(byte[] payload) throws WebSocketException {
+        if (fragments.size() + payload.length > MAX_MESSAGE_SIZE) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_TOO_BIG, "message too big");
+        }
+        fragments.write(payload, 0, payload.length);
+    }
+
+    private void deliver(int opcode, final byte[] data) throws WebSocketException {
+        if (opcode == WebSocketCodec.OP_TEXT) {
+            final String text = WebSocketCodec.decodeText(data, 0, data.length);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onText(WebSocket.this, text);
+                }
+            });
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                handler.onBinary(WebSocket.this, data);
+            }
+        });
+    }
+
+    private void onCloseFrame(byte[] payload) throws WebSocketException {
+        inputClosed = true;
+        int code = WebSocketCodec.CLOSE_NO_STATUS;
+        String reason = "";
+        if (payload.length == 1) {
+            throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "truncated close code");
+        }
+        if (payload.length >= 2) {
+            code = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+            if (!WebSocketCodec.isValidCloseCode(code)) {
+                throw new WebSocketException(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "close code " + code);
+            }
+            reason = WebSocketCodec.decodeText(payload, 2, payload.length - 2);
+        }
+        // reported before the connection closes, echo the code, then close
+        reportClose(code, reason);
+        sendClose(code == WebSocketCodec.CLOSE_NO_STATUS ? WebSocketCodec.CLOSE_NORMAL : code, "");
+    }
+
+    private void fail(int code, String message) {
+        inputClosed = true;
+        if (DebugLog.isEnabled()) {
+            ServerLog.d(TAG, "close " + code + " " + message + " " + getRemoteAddress());
+        }
+        reportClose(code, message);
+        sendClose(code, message);
+    }
+
+    private void sendClose(int code, String reason) {
+        if (!closeSent.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            connection.write(ByteBuffer.wrap(WebSocketCodec.encodeClose(code, reason)), null);
+        } catch (IOException ignored) {
+            // closed already
+        }
+        connection.close();
+    }
+
+    private void reportClose(final int code, final String reason) {
+        if (!closeReported.compareAndSet(false, true)) {
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                handler.onClose(WebSocket.this, code, reason);
+            }
+        });
+    }
+
+    /**
+     * queue a handler callback, reading pauses while too many wait.
+     */
+    private void post(Runnable event) {
+        events.add(event);
+        if (queued.incrementAndGet() == MAX_QUEUED_MESSAGES) {
+            connection.pauseReading();
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (events.isEmpty() || !running.compareAndSet(false, true)) {
+            return;
+        }
+        if (connection.tryExecute(drain)) {
+            return;
+        }
+        // a saturated pool, handlers never run on the event loop
+        running.set(false);
+        if (refused.compareAndSet(false, true)) {
+            connection.pauseReading();
+            connection.retryLater(retry);
+        }
+    }
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            refused.set(false);
+            if (queued.get() < MAX_QUEUED_MESSAGES) {
+                connection.resumeReading();
+            }
+            schedule();
+        }
+    };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Runnable event;
+                while ((event = events.poll()) != null) {
+                    if (queued.decrementAndGet() == MAX_QUEUED_MESSAGES / 2) {
+                        connection.resumeReading();
+                    }
+                    try {
+                        event.run();
+                    } catch (Throwable t) {
+                        ServerLog.e(TAG, "handler exception!", t);
+                        close(WebSocketCodec.CLOSE_INTERNAL_ERROR, "");
+                    }
+                }
+            } finally {
+                running.set(false);
+            }
+            // events posted after the last poll
+            schedule();
+        }
+    };
+
+}
@@ -0,0 +1,167 @@
+package com.kisstools.server.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * rfc 6455 handshake and frames. frames of the server are never masked,
+ * frames of clients always are.
+ */
+public class WebSocketCodec {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String VERSION = "13";
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static final int OP_CONTINUATION = 0x0;
+
+    public static final int OP_TEXT = 0x1;
+
+    public static final int OP_BINARY = 0x2;
+
+    public static final int OP_CLOSE = 0x8;
+
+    public static final int OP_PING = 0x9;
+
+    public static final int OP_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+
+    public static final int CLOSE_GOING_AWAY = 1001;
+
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+
+    /**
+     * reported when a close frame has no code, never sent.
+     */
+    public static final int CLOSE_NO_STATUS = 1005;
+
+    /**
+     * reported when the connection ends without a close frame, never sent.
+     */
+    public static final int CLOSE_ABNORMAL = 1006;
+
+    public static final int CLOSE_INVALID_DATA = 1007;
+
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+    /**
+     * payloads of control frames are limited to 125 bytes.
+     */
+    public static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * the Sec-WebSocket-Accept value for the key of the client.
+     */
+    public static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key.trim() + GUID).getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String base64(byte[] bytes) {
+        StringBuilder sb = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int index = 0; index < bytes.length; index += 3) {
+            int remaining = bytes.length - index;
+            int value = (bytes[index] & 0xff) << 16;
+            if (remaining > 1) {
+                value |= (bytes[index + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                value |= bytes[index + 2] & 0xff;
+            }
+            sb.append(BASE64[(value >> 18) & 0x3f]);
+            sb.append(BASE64[(value >> 12) & 0x3f]);
+            sb.append(remaining > 1 ? BASE64[(value >> 6) & 0x3f] : '=');
+            sb.append(remaining > 2 ? BASE64[value & 0x3f] : '=');
+        }
+        return sb.toString();
+    }
+
+    public static int headerSize(int length) {
+        if (length <= 125) {
+            return 2;
+        }
+        return length <= 0xffff ? 4 : 10;
+    }
+
+    /**
+     * a final frame carrying the payload.
+     */
+    public static byte[] encodeFrame(int opcode, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[headerSize(length) + length];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        putHeader(buffer, opcode, length);
+        buffer.put(payload, offset, length);
+        return frame;
+    }
+
+    /**
+     * write the header of a final frame of the payload length.
+     */
+    public static void putHeader(ByteBuffer buffer, int opcode, int length) {
+        buffer.put((byte) (0x80 | opcode));
+        if (length <= 125) {
+            buffer.put((byte) length);
+        } else if (length <= 0xffff) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+    }
+
+    public static byte[] encodeClose(int code, String reason) {
+        byte[] text = reason == null ? new byte[0] : reason.getBytes(UTF_8);
+        int length = Math.min(2 + text.length, MAX_CONTROL_PAYLOAD);
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.putShort((short) code);
+        payload.put(text, 0, length - 2);
+        return encodeFrame(OP_CLOSE, payload.array(), 0, length);
+    }
+
+    /**
+     * codes a peer may send in a close frame.
+     */
+    public static boolean isValidCloseCode(int code) {
+        if (code >= 3000 && code <= 4999) {
+            return true;
+        }
+        return code >= 1000 && code <= 1011 && code != 1004 && code != CLOSE_NO_STATUS
+                && code != CLOSE_ABNORMAL;
+    }
+
+    /**
+     * strict decoding, text messages must be valid UTF-8.
+     */
+    public static String decodeText(byte[] bytes, int offset, int length) throws WebSocketException {
+        try {
+            return UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            throw new WebSocketException(CLOSE_INVALID_DATA, "invalid UTF-8 text");
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.kisstools.server.websocket;
+
+import java.io.IOException;
+
+/**
+ * a frame breaking the protocol, answered with the close code before closing.
+ */
+public class WebSocketException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int closeCode;
+
+    public WebSocketException(int closeCode, String message) {
+        super(message);
+        this.closeCode = closeCode;
+    }
+
+    public int getCloseCode() {
+        return closeCode;
+    }
+
+}
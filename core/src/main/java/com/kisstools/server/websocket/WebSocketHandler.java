@@ -0,0 +1,26 @@
+package com.kisstools.server.websocket;
+
+/**
+ * callbacks of the websockets of one path, see
+ * {@link com.kisstools.server.http.HttpServer#addWebSocketHandler}. the
+ * callbacks of one websocket run one after another in arrival order and may
+ * block, sends are allowed from any thread.
+ */
+public interface WebSocketHandler {
+
+    void onOpen(WebSocket socket);
+
+    /**
+     * a complete text message, fragments are joined.
+     */
+    void onText(WebSocket socket, String text);
+
+    void onBinary(WebSocket socket, byte[] data);
+
+    /**
+     * called once, {@link WebSocketCodec#CLOSE_ABNORMAL} if the connection
+     * ended without a close frame.
+     */
+    void onClose(WebSocket socket, int code, String reason);
+
+}
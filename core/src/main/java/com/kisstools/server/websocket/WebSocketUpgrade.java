@@ -0,0 +1,48 @@
+package com.kisstools.server.websocket;
+
+import com.kisstools.server.http.HttpRequest;
+import com.kisstools.server.http.HttpResponse;
+import com.kisstools.server.http.HttpStatus;
+import com.kisstools.server.http.RequestHandler;
+import com.kisstools.server.util.TextUtil;
+
+/**
+ * answers the opening handshake of rfc 6455 with 101 and hands the
+ * connection to a {@link WebSocket}, other requests get 426 or 400.
+ */
+public class WebSocketUpgrade implements RequestHandler {
+
+    private static final int KEY_LENGTH = 24;
+
+    private final WebSocketHandler handler;
+
+    public WebSocketUpgrade(WebSocketHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public boolean handleRequest(HttpRequest request, HttpResponse response) {
+        if (!"HTTP/1.1".equals(request.protocol)
+                || !"websocket".equalsIgnoreCase(request.header.get("upgrade"))
+                || !TextUtil.hasToken(request.header.get("connection"), "upgrade")
+                || !WebSocketCodec.VERSION.equals(request.header.get("sec-websocket-version"))) {
+            response.status = HttpStatus.UPGRADE_REQUIRED;
+            response.header.put("Upgrade", "websocket");
+            response.header.put("Sec-WebSocket-Version", WebSocketCodec.VERSION);
+            response.setBody(HttpStatus.UPGRADE_REQUIRED.getDescription());
+            return true;
+        }
+        String key = request.header.get("sec-websocket-key");
+        if (key == null || key.trim().length() != KEY_LENGTH || request.body != null) {
+            response.status = HttpStatus.BAD_REQUEST;
+            response.setBody(HttpStatus.BAD_REQUEST.getDescription());
+            return true;
+        }
+        response.status = HttpStatus.SWITCH_PROTOCOL;
+        response.header.put("Upgrade", "websocket");
+        response.header.put("Sec-WebSocket-Accept", WebSocketCodec.acceptKey(key));
+        response.upgrade = new WebSocket(handler, request).upgrade;
+        return true;
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.kisstools.server;
+
+import android.content.Context;
+
+import com.kisstools.KissTools;
+import com.kisstools.server.http.HttpServer;
+import com.kisstools.server.log.ServerLog;
+import com.kisstools.server.packet.Packet;
+import com.kisstools.server.socket.CommandHandler;
+import com.kisstools.server.socket.SocketServer;
+import com.kisstools.utils.DeviceUtil;
+import com.kisstools.utils.LogUtil;
+
+/**
+ * wires the server core to the app, call {@link #install()} once before
+ * servers are created.
+ */
+public class AndroidPlatform {
+
+    public static void install() {
+        ServerLog.setSink(new LogUtilSink());
+    }
+
+    /**
+     * link the app data folder from the file listing.
+     */
+    public static void configure(HttpServer server) {
+        Context context = KissTools.getApplicationContext();
+        server.getFileHandler().setDataPath(context.getApplicationInfo().dataDir);
+    }
+
+    /**
+     * answer sysinfo with the device build info.
+     */
+    public static void configure(SocketServer server) {
+        server.addCommandHandler(Packet.CMD_SYS_INFO, new CommandHandler() {
+            @Override
+            public Packet handleCommand(Packet request) {
+                Packet response = new Packet();
+                response.setData(DeviceUtil.getBuildInfo());
+                return response;
+            }
+        });
+    }
+
+    static class LogUtilSink implements ServerLog.Sink {
+
+        @Override
+        public void log(int level, String tag, String message, Throwable t) {
+            if (level < ServerLog.WARN) {
+                LogUtil.d(tag, message);
+            } else if (t == null) {
+                LogUtil.e(tag, message);
+            } else {
+                LogUtil.e(tag, message, t);
+            }
+        }
+    }
+
+}